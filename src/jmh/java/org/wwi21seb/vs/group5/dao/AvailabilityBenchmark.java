@@ -0,0 +1,61 @@
+package org.wwi21seb.vs.group5.dao;
+
+import org.openjdk.jmh.annotations.*;
+import org.wwi21seb.vs.group5.communication.DatabaseConnection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Availability searches for date ranges of different widths
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {BenchmarkDatabase.DB_URL_ARG, BenchmarkDatabase.DB_USER_ARG, BenchmarkDatabase.DB_PASSWORD_ARG})
+public class AvailabilityBenchmark {
+
+    @Param({"10000"})
+    public int fleetSize;
+
+    @Param({"1", "7", "30", "180"})
+    public int rangeDays;
+
+    private RentalDAO rentalDAO;
+    private AvailabilityIndex availabilityIndex;
+    private LocalDate startDate;
+    private LocalDate endDate;
+    private String payload;
+
+    @Setup
+    public void setup() throws SQLException {
+        BenchmarkDatabase.create(fleetSize, 20);
+        rentalDAO = new RentalDAO();
+        availabilityIndex = new AvailabilityIndex();
+
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            availabilityIndex.load(conn);
+        }
+
+        startDate = BenchmarkDatabase.FIRST_DAY.plusDays(60);
+        endDate = startDate.plusDays(rangeDays - 1);
+        payload = String.format("{\"startDate\":\"%s\",\"endDate\":\"%s\",\"numberOfPersons\":2}", startDate, endDate);
+    }
+
+    @Benchmark
+    public List<UUID> indexLookup() {
+        return availabilityIndex.findAvailableCars(2, startDate, endDate);
+    }
+
+    @Benchmark
+    public String getAvailableCars() {
+        return rentalDAO.getAvailableCars(payload);
+    }
+
+}
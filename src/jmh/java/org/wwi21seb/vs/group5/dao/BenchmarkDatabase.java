@@ -0,0 +1,132 @@
+package org.wwi21seb.vs.group5.dao;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import org.wwi21seb.vs.group5.communication.DatabaseConnection;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Creates and fills the embedded database the DAO benchmarks run against.
+ * The benchmarks fork with -Drental.db.url pointing to an in-memory H2 database
+ * in PostgreSQL mode, see {@link #DB_URL_ARG}.
+ */
+public final class BenchmarkDatabase {
+
+    public static final String DB_URL_ARG = "-Drental.db.url=jdbc:h2:mem:rentals;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+    public static final String DB_USER_ARG = "-Drental.db.user=sa";
+    public static final String DB_PASSWORD_ARG = "-Drental.db.password=";
+
+    public static final LocalDate FIRST_DAY = LocalDate.of(2024, 1, 1);
+
+    private BenchmarkDatabase() {
+    }
+
+    /**
+     * Recreate the schema and fill it with random cars and rentals
+     * @param numberOfCars the size of the fleet
+     * @param rentalsPerCar the number of rentals of every car, one week each with a gap of one week
+     * @return the IDs of the cars
+     */
+    public static List<UUID> create(int numberOfCars, int rentalsPerCar) throws SQLException {
+        Random random = new Random(42);
+        List<UUID> carIds = new ArrayList<>(numberOfCars);
+
+        try (Connection conn = DatabaseConnection.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS rentals");
+            stmt.execute("DROP TABLE IF EXISTS cars");
+            stmt.execute("CREATE TABLE cars (car_id uuid PRIMARY KEY, model varchar(50), manufacturer varchar(50), capacity integer, price_per_day numeric(10, 2))");
+            stmt.execute("CREATE TABLE rentals (rental_id uuid PRIMARY KEY, booking_id uuid NOT NULL, car_id uuid NOT NULL REFERENCES cars (car_id), start_date date, end_date date, total_price numeric(10, 2), is_confirmed boolean)");
+            stmt.execute("CREATE INDEX rentals_car_id ON rentals (car_id, start_date)");
+            stmt.execute("CREATE INDEX rentals_booking_id ON rentals (booking_id)");
+
+            try (PreparedStatement insertCar = conn.prepareStatement("INSERT INTO cars VALUES (?, ?, ?, ?, ?)");
+                 PreparedStatement insertRental = conn.prepareStatement("INSERT INTO rentals VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+                for (int i = 0; i < numberOfCars; i++) {
+                    UUID carId = UUID.randomUUID();
+                    carIds.add(carId);
+
+                    insertCar.setObject(1, carId);
+                    insertCar.setString(2, "Model " + i);
+                    insertCar.setString(3, "Manufacturer " + (i % 20));
+                    insertCar.setInt(4, 2 + random.nextInt(7));
+                    insertCar.setDouble(5, 30 + random.nextInt(150));
+                    insertCar.addBatch();
+
+                    long offset = random.nextInt(14);
+                    for (int j = 0; j < rentalsPerCar; j++) {
+                        LocalDate start = FIRST_DAY.plusDays(offset + j * 14L);
+                        UUID rentalId = UUID.randomUUID();
+                        insertRental.setObject(1, rentalId);
+                        insertRental.setObject(2, rentalId);
+                        insertRental.setObject(3, carId);
+                        insertRental.setDate(4, Date.valueOf(start));
+                        insertRental.setDate(5, Date.valueOf(start.plusDays(6)));
+                        insertRental.setDouble(6, 350);
+                        insertRental.setBoolean(7, true);
+                        insertRental.addBatch();
+                    }
+
+                    if (i % 1000 == 999) {
+                        insertCar.executeBatch();
+                        insertRental.executeBatch();
+                    }
+                }
+
+                insertCar.executeBatch();
+                insertRental.executeBatch();
+            }
+        }
+
+        return carIds;
+    }
+
+    /**
+     * Reject overlapping rentals of the same car like the exclusion constraint of PostgreSQL,
+     * without it the embedded database inserts every reservation that passes the admission
+     */
+    public static void rejectOverlaps() throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection(); Statement stmt = conn.createStatement()) {
+            // Concurrent reservations of the same car wait for the lock of the car in the trigger
+            stmt.execute("SET DEFAULT_LOCK_TIMEOUT 10000");
+            stmt.execute("CREATE TRIGGER rentals_no_overlap BEFORE INSERT ON rentals FOR EACH ROW CALL \"" + OverlapTrigger.class.getName() + "\"");
+        }
+    }
+
+    /**
+     * Write the cars of the database as the fleet file of the {@link EmbeddedRentalStore}
+     * @param file the fleet file to write
+     */
+    public static void exportFleet(Path file) throws SQLException, IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        ArrayNode fleet = mapper.createArrayNode();
+
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT car_id, model, manufacturer, capacity, price_per_day FROM cars");
+             ResultSet resultSet = stmt.executeQuery()) {
+            while (resultSet.next()) {
+                fleet.addObject()
+                        .put("carId", resultSet.getObject("car_id", UUID.class).toString())
+                        .put("model", resultSet.getString("model"))
+                        .put("manufacturer", resultSet.getString("manufacturer"))
+                        .put("capacity", resultSet.getInt("capacity"))
+                        .put("pricePerDay", resultSet.getBigDecimal("price_per_day"));
+            }
+        }
+
+        mapper.writeValue(file.toFile(), fleet);
+    }
+
+}
@@ -0,0 +1,182 @@
+package org.wwi21seb.vs.group5.dao;
+
+import org.wwi21seb.vs.group5.Request.ReservationRequest;
+import org.wwi21seb.vs.group5.communication.DatabaseConnection;
+import org.wwi21seb.vs.group5.communication.SchemaMigrator;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Races many reservations of a few cars against each other and checks that no car was ever booked twice.
+ * Every thread reserves one or two random cars for a few days of a short window, like concurrent PREPAREs of
+ * several coordinators, and removes some of its bookings again so the window never fills up.
+ * Afterwards the rentals of the cars must not overlap and must be exactly the reservations that succeeded.
+ * The reservation admission is disabled by default, so only the database keeps the reservations apart.
+ * <p>
+ * Runs against PostgreSQL from the rental.db.* properties, which is migrated first and keeps its other cars,
+ * or against the embedded database with the arguments of {@link BenchmarkDatabase}, which rejects overlaps with
+ * an {@link OverlapTrigger}. The trigger only emulates the exclusion constraint of PostgreSQL, only a run against
+ * PostgreSQL tests the constraint itself.
+ * Exits with status 1 if a car was double-booked, a reservation got lost or a thread failed.
+ * The jmh profile runs it against the embedded database in the integration-test phase, so it fails the build.
+ * <p>
+ * Settings: stress.threads (16), stress.cars (4), stress.reservations per thread (500), stress.days (30),
+ * stress.admission (false)
+ */
+public final class DoubleBookingStressTest {
+
+    private static final String MODEL = "Stress test car";
+    private static final String CARS_SQL = "SELECT car_id FROM cars WHERE model = '" + MODEL + "'";
+    private static final String OVERLAPPING_RENTALS_SQL = "SELECT count(*) FROM rentals a JOIN rentals b " +
+            "ON a.car_id = b.car_id AND a.rental_id < b.rental_id AND a.start_date <= b.end_date AND b.start_date <= a.end_date " +
+            "WHERE a.car_id IN (" + CARS_SQL + ")";
+    private static final String RENTALS_SQL = "SELECT count(*) FROM rentals WHERE car_id IN (" + CARS_SQL + ")";
+
+    private DoubleBookingStressTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Integer.getInteger("stress.threads", 16);
+        int cars = Integer.getInteger("stress.cars", 4);
+        int reservationsPerThread = Integer.getInteger("stress.reservations", 500);
+        int days = Integer.getInteger("stress.days", 30);
+
+        System.setProperty("rental.store", "jdbc");
+        System.setProperty("rental.admission.enabled", System.getProperty("stress.admission", "false"));
+
+        List<UUID> carIds = createCars(cars);
+        RentalDAO rentalDAO = new RentalDAO();
+
+        LongAdder reserved = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        LongAdder removed = new LongAdder();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>(threads);
+
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int j = 0; j < reservationsPerThread; j++) {
+                    List<ReservationRequest> requests = new ArrayList<>(2);
+                    // Every fourth booking takes two cars, which are only reserved together
+                    int carsOfBooking = random.nextInt(4) == 0 ? 2 : 1;
+                    for (int k = 0; k < carsOfBooking; k++) {
+                        LocalDate first = BenchmarkDatabase.FIRST_DAY.plusDays(random.nextInt(days));
+                        LocalDate last = first.plusDays(random.nextInt(5));
+                        requests.add(new ReservationRequest(carIds.get(random.nextInt(carIds.size())), first.toString(), last.toString(), 2));
+                    }
+
+                    UUID bookingId = requests.size() == 1 ? rentalDAO.reserveCar(requests.get(0)) : rentalDAO.reserveCars(requests);
+                    if (bookingId == null) {
+                        rejected.increment();
+                        continue;
+                    }
+
+                    reserved.add(requests.size());
+                    if (random.nextInt(3) == 0 && rentalDAO.abortRental(bookingId)) {
+                        removed.add(requests.size());
+                    }
+                }
+            }, "stress-" + i);
+            // A thread that dies early would make fewer reservations, which the checks can't tell from a passing run
+            worker.setUncaughtExceptionHandler((thread, e) -> {
+                failure.compareAndSet(null, e);
+                e.printStackTrace();
+            });
+            worker.start();
+            workers.add(worker);
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long millis = (System.nanoTime() - startNanos) / 1_000_000;
+        rentalDAO.close();
+
+        long doubleBookings = count(OVERLAPPING_RENTALS_SQL);
+        long expectedRentals = reserved.sum() - removed.sum();
+        long rentals = count(RENTALS_SQL);
+
+        System.out.printf("%d bookings of %d cars by %d threads in %d ms%n", threads * reservationsPerThread, cars, threads, millis);
+        System.out.printf("Reserved %d rentals, removed %d, rejected %d bookings%n", reserved.sum(), removed.sum(), rejected.sum());
+        System.out.printf("Overlapping rentals: %d, rentals in the database: %d of %d%n", doubleBookings, rentals, expectedRentals);
+
+        deleteCars();
+
+        if (failure.get() != null) {
+            System.err.println("A thread failed: " + failure.get());
+            System.exit(1);
+        }
+        if (doubleBookings > 0 || rentals != expectedRentals) {
+            System.err.println("A car was double-booked or a reservation got lost");
+            System.exit(1);
+        }
+        System.out.println("No car was double-booked");
+    }
+
+    /**
+     * Create the schema if needed and add the cars the threads compete for
+     */
+    private static List<UUID> createCars(int cars) throws SQLException {
+        if (DatabaseConnection.isPostgres()) {
+            SchemaMigrator.migrate();
+            deleteCars();
+        } else {
+            BenchmarkDatabase.create(0, 0);
+            BenchmarkDatabase.rejectOverlaps();
+        }
+
+        List<UUID> carIds = new ArrayList<>(cars);
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("INSERT INTO cars (car_id, model, manufacturer, capacity, price_per_day) VALUES (?, ?, 'Stress test', 4, 50)")) {
+            for (int i = 0; i < cars; i++) {
+                UUID carId = UUID.randomUUID();
+                carIds.add(carId);
+                stmt.setObject(1, carId);
+                stmt.setString(2, MODEL);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+        return carIds;
+    }
+
+    /**
+     * Remove the cars of a run and their rentals, the other cars of the database are kept
+     */
+    private static void deleteCars() throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DELETE FROM rentals WHERE car_id IN (" + CARS_SQL + ")");
+            stmt.executeUpdate("DELETE FROM cars WHERE model = '" + MODEL + "'");
+        }
+    }
+
+    private static long count(String sql) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection(); Statement stmt = conn.createStatement(); ResultSet resultSet = stmt.executeQuery(sql)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+}
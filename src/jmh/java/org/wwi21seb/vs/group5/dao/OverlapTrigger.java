@@ -0,0 +1,47 @@
+package org.wwi21seb.vs.group5.dao;
+
+import org.h2.api.Trigger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Rejects a rental that overlaps another rental of the same car, like the exclusion constraint of PostgreSQL
+ * does for the embedded database, which has no exclusion constraints.
+ * The row of the car is locked first, so the inserts of the same car are serialized until their transactions end
+ * and two concurrent reservations can't both miss each other.
+ * Installed by {@link BenchmarkDatabase#rejectOverlaps()}.
+ */
+public class OverlapTrigger implements Trigger {
+
+    // The SQL state of an exclusion violation in PostgreSQL
+    static final String EXCLUSION_VIOLATION = "23P01";
+
+    @Override
+    public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+        // The columns in the order of BenchmarkDatabase: rental_id, booking_id, car_id, start_date, end_date, ...
+        Object rentalId = newRow[0];
+        Object carId = newRow[2];
+
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT car_id FROM cars WHERE car_id = ? FOR UPDATE")) {
+            stmt.setObject(1, carId);
+            stmt.executeQuery().close();
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM rentals WHERE car_id = ? AND rental_id <> ? AND " + JdbcRentalStore.DATES_OVERLAP)) {
+            stmt.setObject(1, carId);
+            stmt.setObject(2, rentalId);
+            stmt.setObject(3, newRow[3]);
+            stmt.setObject(4, newRow[4]);
+
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (resultSet.next()) {
+                    throw new SQLException("Rental overlaps another rental of car " + carId, EXCLUSION_VIOLATION);
+                }
+            }
+        }
+    }
+
+}
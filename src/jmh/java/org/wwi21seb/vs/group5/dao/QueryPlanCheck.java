@@ -0,0 +1,92 @@
+package org.wwi21seb.vs.group5.dao;
+
+import org.wwi21seb.vs.group5.communication.DatabaseConnection;
+import org.wwi21seb.vs.group5.communication.SchemaMigrator;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Checks with EXPLAIN that the rental queries of the DAO are answered with an index.
+ * Meant to run against a PostgreSQL database filled by {@link RentalDataGenerator},
+ * at a few thousand rentals a sequential scan is the better plan and the check is meaningless.
+ * Prints the plans and exits with status 1 if a query reads the rentals table sequentially.
+ */
+public final class QueryPlanCheck {
+
+    private QueryPlanCheck() {
+    }
+
+    public static void main(String[] args) throws SQLException {
+        SchemaMigrator.migrate();
+
+        LocalDate startDate = BenchmarkDatabase.FIRST_DAY.plusDays(700);
+        Date start = Date.valueOf(startDate);
+        Date end = Date.valueOf(startDate.plusDays(6));
+        List<String> failures = new ArrayList<>();
+
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            UUID carId;
+            UUID bookingId;
+            try (Statement stmt = conn.createStatement();
+                 ResultSet resultSet = stmt.executeQuery("SELECT count(*) OVER () AS rentals, car_id, booking_id FROM rentals LIMIT 1")) {
+                if (!resultSet.next()) {
+                    System.err.println("There are no rentals, fill the database with RentalDataGenerator first");
+                    System.exit(1);
+                    return;
+                }
+                System.out.printf("Checking query plans at %d rentals%n", resultSet.getLong("rentals"));
+                carId = resultSet.getObject("car_id", UUID.class);
+                bookingId = resultSet.getObject("booking_id", UUID.class);
+            }
+
+            check(conn, failures, "availability search",
+                    String.format(JdbcRentalStore.AVAILABLE_CARS_SQL, JdbcRentalStore.PERIOD_OVERLAPS), 4, start, end);
+            check(conn, failures, "overlap check of a car",
+                    "SELECT 1 FROM rentals WHERE car_id = ? AND " + JdbcRentalStore.PERIOD_OVERLAPS, carId, start, end);
+            check(conn, failures, "bookings in a date range",
+                    "SELECT rental_id, car_id, start_date, end_date, total_price FROM rentals WHERE " + JdbcRentalStore.PERIOD_OVERLAPS + " ORDER BY rental_id LIMIT ?", start, end, 1001);
+            check(conn, failures, "bookings of a car",
+                    "SELECT rental_id, car_id, start_date, end_date, total_price FROM rentals WHERE car_id = ? ORDER BY rental_id LIMIT ?", carId, 1001);
+            // Only planned, EXPLAIN without ANALYZE doesn't delete anything
+            check(conn, failures, "abort of a booking",
+                    "DELETE FROM rentals WHERE booking_id = ?", bookingId);
+        }
+
+        if (!failures.isEmpty()) {
+            System.err.println("Sequential scan of rentals in: " + String.join(", ", failures));
+            System.exit(1);
+        }
+        System.out.println("All queries use an index on rentals");
+    }
+
+    private static void check(Connection conn, List<String> failures, String name, String sql, Object... parameters) throws SQLException {
+        StringBuilder plan = new StringBuilder();
+
+        try (PreparedStatement stmt = conn.prepareStatement("EXPLAIN " + sql)) {
+            for (int i = 0; i < parameters.length; i++) {
+                stmt.setObject(i + 1, parameters[i]);
+            }
+
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    plan.append(resultSet.getString(1)).append('\n');
+                }
+            }
+        }
+
+        System.out.printf("%n%s:%n%s", name, plan);
+        if (plan.toString().matches("(?s).*Seq Scan on rentals.*")) {
+            failures.add(name);
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.wwi21seb.vs.group5.dao;
+
+import org.wwi21seb.vs.group5.communication.DatabaseConnection;
+import org.wwi21seb.vs.group5.communication.SchemaMigrator;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Fills a PostgreSQL database with generated cars and rentals, e.g. to check the query plans at production size.
+ * The database is taken from the rental.db.* properties and migrated first.
+ * Only new cars are added, every one with rentals of up to a week and a gap of one week in between,
+ * like {@link BenchmarkDatabase}. The rows are generated by the server, a million rentals take a few seconds.
+ * <p>
+ * Arguments: [numberOfCars, default 10000] [rentalsPerCar, default 100]
+ */
+public final class RentalDataGenerator {
+
+    private static final String INSERT_SQL = "WITH new_cars AS (" +
+            "INSERT INTO cars (car_id, model, manufacturer, capacity, price_per_day) " +
+            "SELECT gen_random_uuid(), 'Model ' || i, 'Manufacturer ' || (i % 20), 2 + (random() * 6)::int, 30 + (random() * 150)::int " +
+            "FROM generate_series(1, ?) i " +
+            "RETURNING car_id, price_per_day) " +
+            "INSERT INTO rentals (rental_id, booking_id, car_id, start_date, end_date, total_price, is_confirmed) " +
+            "SELECT id, id, car_id, start_date, start_date + days, price_per_day * (days + 1), random() < 0.9 " +
+            "FROM (SELECT gen_random_uuid() AS id, c.car_id, c.price_per_day, " +
+            "?::date + j * 14 + (random() * 7)::int AS start_date, (random() * 6)::int AS days " +
+            "FROM new_cars c CROSS JOIN generate_series(0, ? - 1) j) r";
+
+    private RentalDataGenerator() {
+    }
+
+    public static void main(String[] args) throws SQLException {
+        int numberOfCars = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rentalsPerCar = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        SchemaMigrator.migrate();
+
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            int rentals;
+            try (PreparedStatement stmt = conn.prepareStatement(INSERT_SQL)) {
+                stmt.setInt(1, numberOfCars);
+                stmt.setDate(2, Date.valueOf(BenchmarkDatabase.FIRST_DAY));
+                stmt.setInt(3, rentalsPerCar);
+                rentals = stmt.executeUpdate();
+            }
+
+            // Fresh statistics, otherwise the planner still sees the empty tables
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("ANALYZE cars");
+                stmt.execute("ANALYZE rentals");
+            }
+
+            System.out.printf("Generated %d cars with %d rentals in %d ms%n", numberOfCars, rentals, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+}
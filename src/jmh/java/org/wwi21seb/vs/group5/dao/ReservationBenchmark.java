@@ -0,0 +1,80 @@
+package org.wwi21seb.vs.group5.dao;
+
+import org.openjdk.jmh.annotations.*;
+import org.wwi21seb.vs.group5.Request.ReservationRequest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The datastore side of the two-phase commit: reserving a car in the prepare phase
+ * and confirming or removing the rental in the commit or abort phase,
+ * on the database or on the embedded store with the fleet exported from it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {BenchmarkDatabase.DB_URL_ARG, BenchmarkDatabase.DB_USER_ARG, BenchmarkDatabase.DB_PASSWORD_ARG})
+public class ReservationBenchmark {
+
+    @Param({"1000"})
+    public int fleetSize;
+
+    @Param({"jdbc", "embedded"})
+    public String store;
+
+    private RentalDAO rentalDAO;
+    private List<UUID> carIds;
+    private long counter;
+
+    @Setup
+    public void setup() throws SQLException, IOException {
+        carIds = BenchmarkDatabase.create(fleetSize, 10);
+
+        if (store.equals("embedded")) {
+            Path directory = Files.createTempDirectory("rental-store");
+            BenchmarkDatabase.exportFleet(directory.resolve("fleet.json"));
+            System.setProperty("rental.store.fleet", directory.resolve("fleet.json").toString());
+            System.setProperty("rental.store.dir", directory.resolve("log").toString());
+        }
+        System.setProperty("rental.store", store);
+
+        rentalDAO = new RentalDAO();
+    }
+
+    @TearDown
+    public void tearDown() {
+        rentalDAO.close();
+    }
+
+    /**
+     * Every call books the next car, once all cars are booked the date range moves on by a week
+     */
+    private ReservationRequest nextRequest() {
+        long call = counter++;
+        UUID carId = carIds.get((int) (call % carIds.size()));
+        LocalDate start = BenchmarkDatabase.FIRST_DAY.plusYears(1).plusDays(7 * (call / carIds.size()));
+        return new ReservationRequest(carId, start.toString(), start.plusDays(6).toString(), 2);
+    }
+
+    @Benchmark
+    public boolean prepareCommit() {
+        UUID bookingId = rentalDAO.reserveCar(nextRequest());
+        return bookingId != null && rentalDAO.confirmRental(bookingId);
+    }
+
+    @Benchmark
+    public boolean prepareAbort() {
+        UUID bookingId = rentalDAO.reserveCar(nextRequest());
+        return bookingId != null && rentalDAO.abortRental(bookingId);
+    }
+
+}
@@ -0,0 +1,64 @@
+package org.wwi21seb.vs.group5.dao;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.openjdk.jmh.annotations.*;
+import org.wwi21seb.vs.group5.Model.Car;
+import org.wwi21seb.vs.group5.Model.Rental;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the GET_AVAILABILITY and GET_BOOKINGS payloads
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {BenchmarkDatabase.DB_URL_ARG, BenchmarkDatabase.DB_USER_ARG, BenchmarkDatabase.DB_PASSWORD_ARG})
+public class SerializationBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int fleetSize;
+
+    private RentalDAO rentalDAO;
+    private List<Car> cars;
+    private List<Rental> rentals;
+
+    @Setup
+    public void setup() throws SQLException {
+        // The DAO loads its availability index on construction, an empty schema is enough here
+        BenchmarkDatabase.create(0, 0);
+        rentalDAO = new RentalDAO();
+
+        Random random = new Random(42);
+        cars = new ArrayList<>(fleetSize);
+        rentals = new ArrayList<>(fleetSize);
+
+        for (int i = 0; i < fleetSize; i++) {
+            UUID carId = UUID.randomUUID();
+            cars.add(new Car(carId, "Model " + i, "Manufacturer " + (i % 20), 2 + random.nextInt(7), 30 + random.nextInt(150)));
+
+            LocalDate start = BenchmarkDatabase.FIRST_DAY.plusDays(random.nextInt(365));
+            rentals.add(new Rental(UUID.randomUUID(), carId, Date.valueOf(start), Date.valueOf(start.plusDays(6)), 350));
+        }
+    }
+
+    @Benchmark
+    public String serializeCars() throws JsonProcessingException {
+        return rentalDAO.serializeCars(cars);
+    }
+
+    @Benchmark
+    public String serializeRentals() throws JsonProcessingException {
+        return rentalDAO.serializeRentals(rentals);
+    }
+
+}
@@ -0,0 +1,84 @@
+package org.wwi21seb.vs.group5.loadtest;
+
+import org.wwi21seb.vs.group5.communication.DatabaseConnection;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Checks the rentals in the datastore against the decisions of the coordinator after a run.
+ * Every committed booking reserves exactly one car, so once all transactions are resolved
+ * the number of confirmed rentals has to grow by the number of commits and no rental may be left unconfirmed.
+ */
+final class ConsistencyChecker {
+
+    private static final String OVERLAPPING_RENTALS_SQL = "SELECT count(*) FROM rentals a JOIN rentals b " +
+            "ON a.car_id = b.car_id AND a.rental_id < b.rental_id AND a.start_date <= b.end_date AND b.start_date <= a.end_date";
+    private static final String UNCONFIRMED_RENTALS_SQL = "SELECT count(*) FROM rentals WHERE NOT is_confirmed";
+    private static final String CONFIRMED_RENTALS_SQL = "SELECT count(*) FROM rentals WHERE is_confirmed";
+
+    /**
+     * The violations found by a check
+     * @param doubleBookings pairs of rentals of the same car with overlapping periods
+     * @param orphanedRentals reservations that were neither confirmed nor removed
+     * @param lostCommits committed bookings without a confirmed rental
+     * @param phantomCommits confirmed rentals without a committed booking
+     */
+    record Violations(long doubleBookings, long orphanedRentals, long lostCommits, long phantomCommits) {
+
+        long total() {
+            return doubleBookings + orphanedRentals + lostCommits + phantomCommits;
+        }
+
+    }
+
+    private final long initialConfirmedRentals;
+
+    /**
+     * Remember the state of the datastore before the run
+     */
+    ConsistencyChecker() throws SQLException {
+        this.initialConfirmedRentals = count(CONFIRMED_RENTALS_SQL);
+    }
+
+    /**
+     * Wait until no rental is unconfirmed anymore, i.e. all transactions were resolved
+     * @param timeoutMillis the maximum time to wait
+     * @return whether the datastore settled in time
+     */
+    boolean awaitResolved(long timeoutMillis) throws SQLException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while (count(UNCONFIRMED_RENTALS_SQL) > 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(200);
+        }
+        return true;
+    }
+
+    /**
+     * @param committedBookings the number of bookings the coordinator committed
+     */
+    Violations check(long committedBookings) throws SQLException {
+        long newConfirmedRentals = count(CONFIRMED_RENTALS_SQL) - initialConfirmedRentals;
+
+        return new Violations(
+                count(OVERLAPPING_RENTALS_SQL),
+                count(UNCONFIRMED_RENTALS_SQL),
+                Math.max(0, committedBookings - newConfirmedRentals),
+                Math.max(0, newConfirmedRentals - committedBookings)
+        );
+    }
+
+    private static long count(String sql) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+}
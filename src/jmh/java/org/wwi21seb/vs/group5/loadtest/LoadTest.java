@@ -0,0 +1,335 @@
+package org.wwi21seb.vs.group5.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.wwi21seb.vs.group5.communication.DatabaseConnection;
+import org.wwi21seb.vs.group5.communication.SchemaMigrator;
+import org.wwi21seb.vs.group5.dao.BenchmarkDatabase;
+import org.wwi21seb.vs.group5.metrics.LatencyHistogram;
+import org.wwi21seb.vs.group5.service.RentalService;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+/**
+ * Drives a RentalService in the same process with a simulated TravelBroker and HotelProvider on the loopback interface.
+ * Clients run a mix of availability searches and bookings through the two-phase commit for a fixed time,
+ * optionally with lost datagrams, coordinators that crash before sending the decision to the RentalService,
+ * and restarts of the RentalService, which then recovers its transactions from its log.
+ * Afterwards the in-doubt transactions get time to be resolved and the datastore is checked for double bookings,
+ * orphaned reservations and commits that went missing.
+ * <p>
+ * The report is printed and written as JSON. The process exits with 1 if a consistency check or one of the
+ * configured gates failed, so it can fail a build. See {@link LoadTestConfig} for the loadtest.* settings.
+ * Without rental.db.url an in-memory H2 database with a generated fleet is used, otherwise the cars of the
+ * given database are booked. The RentalService is configured through its rental.* properties as usual.
+ * <p>
+ * Run with: mvn -Pjmh compile exec:java -Dexec.mainClass=org.wwi21seb.vs.group5.loadtest.LoadTest -Dloadtest.durationSeconds=60
+ */
+public final class LoadTest {
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestConfig config = new LoadTestConfig();
+        LoadTestResults results = new LoadTestResults();
+        ObjectMapper mapper = new ObjectMapper();
+
+        // Resolve the transactions of crashed coordinators within the run
+        setDefault("-Drental.termination.decisionTimeoutMillis=1000");
+        // The simulated coordinator understands busy replies, unlike the real TravelBroker
+        setDefault("-Drental.ingress.busyReplies=true");
+        setDefault("-Drental.log.dir=" + Files.createTempDirectory("loadtest-log"));
+        setDefault("-Drental.port=" + getFreePort());
+        List<UUID> carIds = setDefault(BenchmarkDatabase.DB_URL_ARG) ? createDatabase(config) : readCars(config);
+
+        ServiceRunner service = new ServiceRunner();
+        service.start();
+        ConsistencyChecker checker = new ConsistencyChecker();
+
+        try (SimulatedHotelProvider hotel = new SimulatedHotelProvider(mapper, config.hotelYesRatio, config.lossRate, results.lostDatagrams, results.resultRequests)) {
+            SimulatedCoordinator.Target serviceTarget = new SimulatedCoordinator.Target(SimulatedCoordinator.CAR_PROVIDER,
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.getInteger("rental.port")));
+            SimulatedCoordinator.Target hotelTarget = new SimulatedCoordinator.Target(SimulatedHotelProvider.NAME, hotel.getAddress());
+
+            try (SimulatedCoordinator coordinator = new SimulatedCoordinator(mapper, config, results, serviceTarget, hotelTarget)) {
+                hotel.start();
+                coordinator.start();
+
+                long elapsedNanos = run(config, results, coordinator, service, carIds);
+
+                System.out.printf("Load finished, waiting up to %d s for the open transactions%n", config.drainSeconds);
+                boolean resolved = checker.awaitResolved(TimeUnit.SECONDS.toMillis(config.drainSeconds));
+                ConsistencyChecker.Violations violations = checker.check(results.committed.sum());
+
+                ObjectNode report = report(mapper, config, results, violations, resolved, elapsedNanos);
+                File reportFile = new File(config.report);
+                if (reportFile.getParentFile() != null) {
+                    Files.createDirectories(reportFile.getParentFile().toPath());
+                }
+                mapper.writerWithDefaultPrettyPrinter().writeValue(reportFile, report);
+
+                System.out.println(mapper.enable(SerializationFeature.INDENT_OUTPUT).writeValueAsString(report));
+                System.out.println("Report written to " + reportFile.getAbsolutePath());
+
+                service.stop();
+                System.exit(report.get("passed").asBoolean() ? 0 : 1);
+            }
+        }
+    }
+
+    /**
+     * Run the clients, and the restarts of the service if enabled, for the configured time
+     * @return the time the clients ran
+     */
+    private static long run(LoadTestConfig config, LoadTestResults results, SimulatedCoordinator coordinator, ServiceRunner service, List<UUID> carIds) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+
+        ExecutorService clients = Executors.newFixedThreadPool(config.clients);
+        for (int i = 0; i < config.clients; i++) {
+            clients.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+
+                while (System.nanoTime() < end) {
+                    LocalDate startDate = BenchmarkDatabase.FIRST_DAY.plusDays(random.nextInt(config.days));
+                    LocalDate endDate = startDate.plusDays(random.nextInt(7));
+                    int numberOfPersons = 1 + random.nextInt(4);
+
+                    if (random.nextDouble() < config.searchRatio) {
+                        coordinator.search(startDate, endDate, numberOfPersons);
+                    } else {
+                        coordinator.book(carIds.get(random.nextInt(carIds.size())), startDate, endDate, numberOfPersons);
+                    }
+                }
+            });
+        }
+
+        Thread crasher = null;
+        if (config.serviceCrashIntervalSeconds > 0) {
+            crasher = new Thread(() -> crashService(config, results, service, end), "loadtest-crasher");
+            crasher.start();
+        }
+
+        clients.shutdown();
+        clients.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        if (crasher != null) {
+            crasher.join();
+        }
+        return elapsed;
+    }
+
+    /**
+     * Restart the service at a fixed interval, the datagrams sent while it is down are lost
+     */
+    private static void crashService(LoadTestConfig config, LoadTestResults results, ServiceRunner service, long end) {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(config.serviceCrashIntervalSeconds);
+
+        try {
+            while (System.nanoTime() + intervalNanos < end) {
+                TimeUnit.NANOSECONDS.sleep(intervalNanos);
+                System.out.println("Restarting the RentalService");
+                service.stop();
+                TimeUnit.MILLISECONDS.sleep(config.serviceDowntimeMillis);
+                service.start();
+                results.serviceRestarts.increment();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ObjectNode report(ObjectMapper mapper, LoadTestConfig config, LoadTestResults results, ConsistencyChecker.Violations violations,
+                                     boolean resolved, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long bookings = results.getBookings();
+        double operationsPerSecond = (results.searches.sum() + bookings) / seconds;
+
+        ObjectNode report = mapper.createObjectNode();
+        report.putObject("config")
+                .put("durationSeconds", config.durationSeconds)
+                .put("clients", config.clients)
+                .put("searchRatio", config.searchRatio)
+                .put("cars", config.cars)
+                .put("lossRate", config.lossRate)
+                .put("hotelYesRatio", config.hotelYesRatio)
+                .put("coordinatorCrashRatio", config.coordinatorCrashRatio)
+                .put("serviceCrashIntervalSeconds", config.serviceCrashIntervalSeconds);
+
+        report.putObject("throughput")
+                .put("operationsPerSecond", operationsPerSecond)
+                .put("searchesPerSecond", results.searches.sum() / seconds)
+                .put("bookingsPerSecond", bookings / seconds);
+
+        ObjectNode latency = report.putObject("latencyMillis");
+        latency.set("search", percentiles(mapper, results.searchLatency));
+        latency.set("booking", percentiles(mapper, results.bookingLatency));
+
+        report.putObject("counts")
+                .put("searches", results.searches.sum())
+                .put("failedSearches", results.failedSearches.sum())
+                .put("bookings", bookings)
+                .put("committed", results.committed.sum())
+                .put("abortedByVote", results.abortedByVote.sum())
+                .put("abortedByTimeout", results.abortedByTimeout.sum())
+                .put("undeliveredDecisions", results.undeliveredDecisions.sum())
+                .put("retransmissions", results.retransmissions.sum())
+                .put("busyReplies", results.busyReplies.sum())
+                .put("lostDatagrams", results.lostDatagrams.sum())
+                .put("coordinatorCrashes", results.coordinatorCrashes.sum())
+                .put("resultRequestsToHotel", results.resultRequests.sum())
+                .put("serviceRestarts", results.serviceRestarts.sum());
+
+        report.putObject("violations")
+                .put("doubleBookings", violations.doubleBookings())
+                .put("orphanedRentals", violations.orphanedRentals())
+                .put("lostCommits", violations.lostCommits())
+                .put("phantomCommits", violations.phantomCommits())
+                .put("resolvedInTime", resolved);
+
+        ArrayNode failures = report.putArray("failures");
+        if (violations.total() > 0) {
+            failures.add("consistency violations: " + violations.total());
+        }
+        if (config.minOperationsPerSecond > 0 && operationsPerSecond < config.minOperationsPerSecond) {
+            failures.add(String.format("throughput %.1f/s below %.1f/s", operationsPerSecond, config.minOperationsPerSecond));
+        }
+        gateP99(failures, "booking", results.bookingLatency, config.maxBookingP99Millis);
+        gateP99(failures, "search", results.searchLatency, config.maxSearchP99Millis);
+        report.put("passed", failures.isEmpty());
+
+        return report;
+    }
+
+    private static ObjectNode percentiles(ObjectMapper mapper, LatencyHistogram histogram) {
+        return mapper.createObjectNode()
+                .put("count", histogram.getCount())
+                .put("p50", toMillis(histogram.getQuantile(0.5)))
+                .put("p90", toMillis(histogram.getQuantile(0.9)))
+                .put("p99", toMillis(histogram.getQuantile(0.99)))
+                .put("p999", toMillis(histogram.getQuantile(0.999)))
+                .put("max", toMillis(histogram.getQuantile(1)));
+    }
+
+    private static void gateP99(ArrayNode failures, String operation, LatencyHistogram histogram, double maxMillis) {
+        double p99 = toMillis(histogram.getQuantile(0.99));
+        if (maxMillis > 0 && p99 > maxMillis) {
+            failures.add(String.format("%s p99 %.1f ms above %.1f ms", operation, p99, maxMillis));
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Set a system property given as a -D argument unless it is set already
+     * @return whether the default was used
+     */
+    private static boolean setDefault(String argument) {
+        int separator = argument.indexOf('=');
+        String key = argument.substring("-D".length(), separator);
+        if (System.getProperty(key) != null) {
+            return false;
+        }
+
+        System.setProperty(key, argument.substring(separator + 1));
+        return true;
+    }
+
+    private static List<UUID> createDatabase(LoadTestConfig config) throws SQLException {
+        setDefault(BenchmarkDatabase.DB_USER_ARG);
+        setDefault(BenchmarkDatabase.DB_PASSWORD_ARG);
+        return BenchmarkDatabase.create(config.cars, 0);
+    }
+
+    private static List<UUID> readCars(LoadTestConfig config) throws SQLException {
+        SchemaMigrator.migrate();
+        List<UUID> carIds = new ArrayList<>();
+
+        try (Connection conn = DatabaseConnection.getConnection(); Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT car_id FROM cars ORDER BY car_id LIMIT " + config.cars)) {
+            while (rs.next()) {
+                carIds.add(rs.getObject(1, UUID.class));
+            }
+        }
+
+        if (carIds.isEmpty()) {
+            throw new IllegalStateException("The database has no cars to book");
+        }
+        return carIds;
+    }
+
+    private static int getFreePort() throws IOException {
+        try (DatagramChannel channel = DatagramChannel.open().bind(new InetSocketAddress(0))) {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        }
+    }
+
+    /**
+     * Keep the log of the service at the given level, by default it logs every message
+     */
+    private static void setLogLevel(Level level) {
+        LogManager manager = LogManager.getLogManager();
+
+        for (String name : Collections.list(manager.getLoggerNames())) {
+            Logger logger = manager.getLogger(name);
+            if (logger != null && name.startsWith("org.wwi21seb")) {
+                logger.setLevel(level);
+                for (Handler handler : logger.getHandlers()) {
+                    handler.setLevel(level);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the RentalService on a thread of its own, a restart creates a new instance on the same port and log
+     */
+    private static final class ServiceRunner {
+
+        private final Level logLevel = Level.parse(System.getProperty("loadtest.logLevel", "WARNING"));
+        private volatile RentalService service;
+
+        void start() {
+            service = new RentalService();
+            setLogLevel(logLevel);
+
+            Thread thread = new Thread(service::start, "rental-service");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() {
+            service.stop();
+        }
+
+    }
+
+}
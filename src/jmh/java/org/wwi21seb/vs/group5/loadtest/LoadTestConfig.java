@@ -0,0 +1,45 @@
+package org.wwi21seb.vs.group5.loadtest;
+
+/**
+ * The settings of a load test run, read from the loadtest.* system properties.
+ * The gates fail the run if they are set, a value of 0 disables them.
+ */
+final class LoadTestConfig {
+
+    // Workload
+    final int durationSeconds = Integer.getInteger("loadtest.durationSeconds", 30);
+    final int clients = Integer.getInteger("loadtest.clients", 8);
+    final double searchRatio = getDouble("loadtest.searchRatio", 0.8);
+    final int cars = Integer.getInteger("loadtest.cars", 50);
+    final int days = Integer.getInteger("loadtest.days", 90);
+
+    // Protocol of the simulated coordinator
+    final long requestTimeoutMillis = Long.getLong("loadtest.requestTimeoutMillis", 300);
+    final int prepareAttempts = Integer.getInteger("loadtest.prepareAttempts", 5);
+    final int searchAttempts = Integer.getInteger("loadtest.searchAttempts", 3);
+    // The decision is repeated until it is acknowledged, like a real coordinator, within this limit
+    final int decisionAttempts = Integer.getInteger("loadtest.decisionAttempts", 100);
+
+    // Faults
+    final double hotelYesRatio = getDouble("loadtest.hotelYesRatio", 0.95);
+    final double lossRate = getDouble("loadtest.lossRate", 0);
+    final double coordinatorCrashRatio = getDouble("loadtest.coordinatorCrashRatio", 0);
+    final int serviceCrashIntervalSeconds = Integer.getInteger("loadtest.serviceCrashIntervalSeconds", 0);
+    final long serviceDowntimeMillis = Long.getLong("loadtest.serviceDowntimeMillis", 500);
+
+    // Time for the in-doubt transactions to be resolved before the datastore is checked
+    final int drainSeconds = Integer.getInteger("loadtest.drainSeconds", 30);
+
+    // Regression gates
+    final double minOperationsPerSecond = getDouble("loadtest.minOperationsPerSecond", 0);
+    final double maxBookingP99Millis = getDouble("loadtest.maxBookingP99Millis", 0);
+    final double maxSearchP99Millis = getDouble("loadtest.maxSearchP99Millis", 0);
+
+    final String report = System.getProperty("loadtest.report", "target/loadtest-report.json");
+
+    private static double getDouble(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+}
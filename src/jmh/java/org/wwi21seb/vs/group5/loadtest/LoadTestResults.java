@@ -0,0 +1,35 @@
+package org.wwi21seb.vs.group5.loadtest;
+
+import org.wwi21seb.vs.group5.metrics.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The measurements of a load test run, recorded by the simulated services
+ */
+final class LoadTestResults {
+
+    // Latency as seen by the coordinator, a booking takes from the first PREPARE until every decision was acknowledged
+    final LatencyHistogram searchLatency = new LatencyHistogram();
+    final LatencyHistogram bookingLatency = new LatencyHistogram();
+
+    final LongAdder searches = new LongAdder();
+    final LongAdder failedSearches = new LongAdder();
+    final LongAdder committed = new LongAdder();
+    final LongAdder abortedByVote = new LongAdder();
+    // Aborted because a vote didn't arrive in time
+    final LongAdder abortedByTimeout = new LongAdder();
+    final LongAdder undeliveredDecisions = new LongAdder();
+
+    final LongAdder retransmissions = new LongAdder();
+    final LongAdder busyReplies = new LongAdder();
+    final LongAdder lostDatagrams = new LongAdder();
+    final LongAdder resultRequests = new LongAdder();
+    final LongAdder coordinatorCrashes = new LongAdder();
+    final LongAdder serviceRestarts = new LongAdder();
+
+    long getBookings() {
+        return committed.sum() + abortedByVote.sum() + abortedByTimeout.sum();
+    }
+
+}
@@ -0,0 +1,261 @@
+package org.wwi21seb.vs.group5.loadtest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.wwi21seb.vs.group5.UDP.Operation;
+import org.wwi21seb.vs.group5.UDP.UDPMessage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+/**
+ * A TravelBroker that runs the two-phase commit of a booking with the RentalService and the simulated HotelProvider.
+ * Requests are sent to all participants at once and repeated for those that didn't answer in time,
+ * a busy reply of the RentalService is repeated after a short pause. A booking is aborted if a vote
+ * is still missing after the last attempt, the decision is repeated until every participant acknowledged it.
+ * <p>
+ * A crash of the coordinator is simulated by not sending the decision to the RentalService and ignoring
+ * its RESULT requests, so it has to learn the decision from the HotelProvider.
+ * The decisions are kept as the expected outcome for the consistency checks.
+ */
+final class SimulatedCoordinator extends SimulatedPeer {
+
+    static final String NAME = "TravelBroker";
+    static final String CAR_PROVIDER = "CarProvider";
+
+    private static final long BUSY_PAUSE_MILLIS = 100;
+
+    /**
+     * A participant of the bookings
+     */
+    record Target(String name, InetSocketAddress address) {
+    }
+
+    private record Key(UUID transactionId, Operation operation, String sender) {
+    }
+
+    private final LoadTestConfig config;
+    private final LoadTestResults results;
+    private final Target service;
+    private final Target hotel;
+    private final ConcurrentHashMap<Key, CompletableFuture<UDPMessage>> pending = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, Boolean> decisions = new ConcurrentHashMap<>();
+    private final Set<UUID> crashed = ConcurrentHashMap.newKeySet();
+
+    SimulatedCoordinator(ObjectMapper mapper, LoadTestConfig config, LoadTestResults results, Target service, Target hotel) throws IOException {
+        super(NAME, mapper, config.lossRate, results.lostDatagrams);
+        this.config = config;
+        this.results = results;
+        this.service = service;
+        this.hotel = hotel;
+    }
+
+    @Override
+    protected void handle(UDPMessage message, InetSocketAddress sender) {
+        if (message.getOperation() == Operation.RESULT) {
+            // A recovering participant asks for the decision
+            Boolean commit = decisions.get(message.getTransactionId());
+            if (commit != null && !crashed.contains(message.getTransactionId())) {
+                send(new UDPMessage(commit ? Operation.COMMIT : Operation.ABORT, message.getTransactionId(), NAME, null), sender);
+            }
+            return;
+        }
+
+        CompletableFuture<UDPMessage> reply = pending.remove(new Key(message.getTransactionId(), message.getOperation(), message.getSender()));
+        if (reply != null) {
+            reply.complete(message);
+        }
+    }
+
+    /**
+     * Search for the cars available in a period
+     * @return whether the search was answered
+     */
+    boolean search(LocalDate startDate, LocalDate endDate, int numberOfPersons) {
+        long start = System.nanoTime();
+        String request = "{\"startDate\":\"" + startDate + "\",\"endDate\":\"" + endDate + "\",\"numberOfPersons\":" + numberOfPersons + "}";
+        Map<String, UDPMessage> replies = requestAll(Operation.GET_AVAILABILITY, UUID.randomUUID(), request, List.of(service), config.searchAttempts, reply -> true);
+
+        results.searches.increment();
+        if (replies.isEmpty()) {
+            results.failedSearches.increment();
+            return false;
+        }
+
+        results.searchLatency.recordSince(start);
+        return true;
+    }
+
+    /**
+     * Book a car and a hotel room in one transaction
+     * @return whether the booking was committed
+     */
+    boolean book(UUID carId, LocalDate startDate, LocalDate endDate, int numberOfPersons) {
+        long start = System.nanoTime();
+        UUID transactionId = UUID.randomUUID();
+        List<Target> participants = List.of(service, hotel);
+
+        String context = coordinatorContext(transactionId, carId, startDate, endDate, numberOfPersons);
+        Map<String, UDPMessage> votes = requestAll(Operation.PREPARE, transactionId, context, participants, config.prepareAttempts, reply -> true);
+
+        boolean commit = votes.size() == participants.size() && votes.values().stream().allMatch(SimulatedCoordinator::isSuccess);
+        if (commit) {
+            results.committed.increment();
+        } else if (votes.size() < participants.size()) {
+            results.abortedByTimeout.increment();
+        } else {
+            results.abortedByVote.increment();
+        }
+        decisions.put(transactionId, commit);
+
+        List<Target> recipients = participants;
+        if (config.coordinatorCrashRatio > 0 && ThreadLocalRandom.current().nextDouble() < config.coordinatorCrashRatio) {
+            crashed.add(transactionId);
+            results.coordinatorCrashes.increment();
+            recipients = List.of(hotel);
+        }
+
+        Map<String, UDPMessage> acknowledgements = requestAll(commit ? Operation.COMMIT : Operation.ABORT, transactionId, null, recipients,
+                config.decisionAttempts, SimulatedCoordinator::isSuccess);
+        results.undeliveredDecisions.add(recipients.size() - acknowledgements.size());
+
+        results.bookingLatency.recordSince(start);
+        return commit;
+    }
+
+    /**
+     * Send a request to the targets and repeat it for those whose reply is missing or not accepted
+     * @param accepted whether a reply that isn't busy ends the request to its sender
+     * @return the accepted replies by the name of the target
+     */
+    private Map<String, UDPMessage> requestAll(Operation operation, UUID transactionId, String data, List<Target> targets, int attempts, Predicate<UDPMessage> accepted) {
+        UDPMessage request = new UDPMessage(operation, transactionId, NAME, data);
+        Map<String, UDPMessage> replies = new HashMap<>();
+        List<Target> remaining = new ArrayList<>(targets);
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.requestTimeoutMillis);
+
+        for (int attempt = 0; attempt < attempts && !remaining.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                results.retransmissions.add(remaining.size());
+            }
+
+            Map<Target, CompletableFuture<UDPMessage>> futures = new HashMap<>();
+            for (Target target : remaining) {
+                CompletableFuture<UDPMessage> future = new CompletableFuture<>();
+                pending.put(new Key(transactionId, operation, target.name()), future);
+                futures.put(target, future);
+                send(request, target.address());
+            }
+
+            long deadline = System.nanoTime() + timeoutNanos;
+            boolean busy = false;
+
+            for (Map.Entry<Target, CompletableFuture<UDPMessage>> entry : futures.entrySet()) {
+                UDPMessage reply = await(entry.getValue(), deadline);
+                pending.remove(new Key(transactionId, operation, entry.getKey().name()), entry.getValue());
+
+                if (reply == null) {
+                    continue;
+                }
+                if (isBusy(reply)) {
+                    results.busyReplies.increment();
+                    busy = true;
+                } else if (accepted.test(reply)) {
+                    replies.put(entry.getKey().name(), reply);
+                    remaining.remove(entry.getKey());
+                }
+            }
+
+            if (busy) {
+                pause(BUSY_PAUSE_MILLIS);
+            }
+        }
+
+        return replies;
+    }
+
+    /**
+     * The payload of a PREPARE message, the JSON form of the CoordinatorContext of the shared utilities
+     * The HotelProvider gets a random room as its resource.
+     */
+    private String coordinatorContext(UUID transactionId, UUID carId, LocalDate startDate, LocalDate endDate, int numberOfPersons) {
+        ObjectNode context = mapper.createObjectNode();
+        context.put("transactionId", transactionId.toString());
+        context.set("coordinator", endpoint(NAME, getLocalAddress()));
+
+        var participants = context.putArray("participants");
+        for (Target target : List.of(service, hotel)) {
+            ObjectNode participant = endpoint(target.name(), target.address());
+            participant.putObject("bookingContext")
+                    .put("resourceId", (target == service ? carId : UUID.randomUUID()).toString())
+                    .put("startDate", startDate.toString())
+                    .put("endDate", endDate.toString())
+                    .put("numberOfPersons", numberOfPersons);
+            participants.add(participant);
+        }
+
+        try {
+            return mapper.writeValueAsString(context);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private ObjectNode endpoint(String name, InetSocketAddress address) {
+        return mapper.createObjectNode()
+                .put("name", name)
+                .put("url", address.getAddress().getHostAddress())
+                .put("port", address.getPort());
+    }
+
+    private InetSocketAddress getLocalAddress() {
+        try {
+            return getAddress();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static UDPMessage await(CompletableFuture<UDPMessage> future, long deadline) {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static void pause(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean isSuccess(UDPMessage reply) {
+        return reply.getData() != null && reply.getData().contains("\"success\":true");
+    }
+
+    private static boolean isBusy(UDPMessage reply) {
+        return reply.getData() != null && reply.getData().contains("\"busy\":true");
+    }
+
+}
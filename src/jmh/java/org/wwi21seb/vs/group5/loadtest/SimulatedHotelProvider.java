@@ -0,0 +1,71 @@
+package org.wwi21seb.vs.group5.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.wwi21seb.vs.group5.UDP.Operation;
+import org.wwi21seb.vs.group5.UDP.UDPMessage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The other participant of the bookings. It votes yes with a configurable probability and keeps its vote
+ * and the decision of every transaction, so it can answer the RESULT requests of the termination protocol
+ * of the RentalService like the real HotelProvider.
+ */
+final class SimulatedHotelProvider extends SimulatedPeer {
+
+    static final String NAME = "HotelProvider";
+
+    private final double yesRatio;
+    private final ConcurrentHashMap<UUID, Boolean> votes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, Boolean> decisions = new ConcurrentHashMap<>();
+    private final LongAdder resultRequests;
+
+    /**
+     * @param yesRatio the probability to vote yes
+     * @param resultRequests counts the RESULT requests of the other participants
+     */
+    SimulatedHotelProvider(ObjectMapper mapper, double yesRatio, double lossRate, LongAdder lostDatagrams, LongAdder resultRequests) throws IOException {
+        super(NAME, mapper, lossRate, lostDatagrams);
+        this.yesRatio = yesRatio;
+        this.resultRequests = resultRequests;
+    }
+
+    @Override
+    protected void handle(UDPMessage message, InetSocketAddress sender) {
+        UUID transactionId = message.getTransactionId();
+
+        switch (message.getOperation()) {
+            case PREPARE -> {
+                boolean vote = votes.computeIfAbsent(transactionId, id -> ThreadLocalRandom.current().nextDouble() < yesRatio);
+                reply(message, vote, sender);
+            }
+            case COMMIT, ABORT -> {
+                // The first decision wins, a repeated one is only acknowledged
+                decisions.putIfAbsent(transactionId, message.getOperation() == Operation.COMMIT);
+                reply(message, true, sender);
+            }
+            case RESULT -> {
+                resultRequests.increment();
+                Boolean commit = decisions.get(transactionId);
+
+                // Like the RentalService, the result is only known once the decision arrived
+                if (commit != null) {
+                    send(new UDPMessage(commit ? Operation.COMMIT : Operation.ABORT, transactionId, NAME, null), sender);
+                }
+            }
+            default -> {
+                // Searches are not part of the simulation
+            }
+        }
+    }
+
+    private void reply(UDPMessage message, boolean success, InetSocketAddress recipient) {
+        send(new UDPMessage(message.getOperation(), message.getTransactionId(), NAME, "{\"success\":" + success + "}"), recipient);
+    }
+
+}
@@ -0,0 +1,132 @@
+package org.wwi21seb.vs.group5.loadtest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.wwi21seb.vs.group5.UDP.UDPMessage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A simulated service on the loopback interface that speaks the UDPMessage protocol.
+ * Every datagram it sends or receives is dropped with the configured probability,
+ * so the loss hits both directions of the traffic between the peer and the service.
+ */
+abstract class SimulatedPeer implements Closeable {
+
+    protected final String name;
+    protected final ObjectMapper mapper;
+    private final DatagramChannel channel;
+    private final double lossRate;
+    private final LongAdder lostDatagrams;
+    private final Thread receiver;
+    private volatile boolean closed = false;
+
+    /**
+     * @param name the name of the peer, used as the sender of its messages
+     * @param mapper the mapper to encode the messages with
+     * @param lossRate the probability to drop a datagram
+     * @param lostDatagrams counts the dropped datagrams
+     */
+    SimulatedPeer(String name, ObjectMapper mapper, double lossRate, LongAdder lostDatagrams) throws IOException {
+        this.name = name;
+        this.mapper = mapper;
+        this.lossRate = lossRate;
+        this.lostDatagrams = lostDatagrams;
+        this.channel = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.receiver = new Thread(this::receive, name + "-receive");
+        this.receiver.setDaemon(true);
+    }
+
+    void start() {
+        receiver.start();
+    }
+
+    /**
+     * @return the address other services reach the peer at
+     */
+    InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /**
+     * Handle a message that was not lost, called on the receive thread
+     * @param message the received message
+     * @param sender the address of the sender
+     */
+    protected abstract void handle(UDPMessage message, InetSocketAddress sender);
+
+    protected void send(UDPMessage message, InetSocketAddress recipient) {
+        if (isLost()) {
+            return;
+        }
+
+        try {
+            channel.send(ByteBuffer.wrap(mapper.writeValueAsBytes(message)), recipient);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            if (!closed) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(65507);
+
+        while (!closed) {
+            SocketAddress sender;
+
+            try {
+                buffer.clear();
+                sender = channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (closed) {
+                    break;
+                }
+                throw new RuntimeException(e);
+            }
+
+            buffer.flip();
+            if (isLost()) {
+                continue;
+            }
+
+            UDPMessage message;
+            try {
+                // Not through the codec of the service, it skips the payload of the decisions
+                message = mapper.readValue(buffer.array(), 0, buffer.limit(), UDPMessage.class);
+            } catch (IOException e) {
+                // Like the service, a malformed datagram is dropped
+                continue;
+            }
+            handle(message, (InetSocketAddress) sender);
+        }
+    }
+
+    private boolean isLost() {
+        if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+            lostDatagrams.increment();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+}
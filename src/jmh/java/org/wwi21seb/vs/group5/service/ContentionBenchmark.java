@@ -0,0 +1,213 @@
+package org.wwi21seb.vs.group5.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.*;
+import org.wwi21seb.vs.group5.UDP.Operation;
+import org.wwi21seb.vs.group5.UDP.UDPMessage;
+import org.wwi21seb.vs.group5.dao.BenchmarkDatabase;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+/**
+ * Concurrent bookings that pile up on a few popular cars, with and without the reservation admission.
+ * Every thread is a coordinator that sends the RentalService a PREPARE for a random one of the hot cars
+ * for three days in a two week window over the loopback interface, so the reservations take the path they take
+ * in production: the receive loops, the worker pool of the OrderedExecutor and the RentalDAO.
+ * A reservation that got a yes vote is aborted again right away, so the cars stay contended for the whole run.
+ * The embedded database rejects overlapping rentals like the exclusion constraint of PostgreSQL does.
+ * The service runs the PREPAREs of the same car one after another, so they don't compete in the database.
+ * The counters show the yes and no votes and the PREPAREs without a reply in time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(value = 1, jvmArgsAppend = {BenchmarkDatabase.DB_URL_ARG, BenchmarkDatabase.DB_USER_ARG, BenchmarkDatabase.DB_PASSWORD_ARG})
+public class ContentionBenchmark {
+
+    private static final String COORDINATOR = "TravelBroker";
+    private static final String CAR_PROVIDER = "CarProvider";
+    private static final int REPLY_TIMEOUT_MILLIS = 2000;
+
+    @Param({"1000"})
+    public int fleetSize;
+
+    @Param({"1", "16"})
+    public int hotCars;
+
+    @Param({"true", "false"})
+    public boolean admission;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private RentalService service;
+    private InetSocketAddress serviceAddress;
+    private List<UUID> carIds;
+
+    /**
+     * The socket of a coordinator thread and the outcomes of its PREPAREs
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Coordinator {
+
+        public long reserved;
+        public long rejected;
+        public long timedOut;
+
+        private DatagramSocket socket;
+        private final byte[] buffer = new byte[65507];
+
+        @Setup(Level.Trial)
+        public void open() throws IOException {
+            socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            socket.setSoTimeout(REPLY_TIMEOUT_MILLIS);
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            reserved = 0;
+            rejected = 0;
+            timedOut = 0;
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            socket.close();
+        }
+
+    }
+
+    @Setup
+    public void setup() throws SQLException, IOException {
+        carIds = BenchmarkDatabase.create(fleetSize, 0);
+        BenchmarkDatabase.rejectOverlaps();
+
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        System.setProperty("rental.port", String.valueOf(port));
+        System.setProperty("rental.log.dir", Files.createTempDirectory("contention-log").toString());
+        System.setProperty("rental.store", "jdbc");
+        System.setProperty("rental.admission.enabled", String.valueOf(admission));
+
+        service = new RentalService();
+        quietLogs();
+        Thread thread = new Thread(service::start, "rental-service");
+        thread.setDaemon(true);
+        thread.start();
+        serviceAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.stop();
+    }
+
+    @Benchmark
+    public boolean prepareHotCar(Coordinator coordinator) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        UUID carId = carIds.get(random.nextInt(hotCars));
+        LocalDate start = BenchmarkDatabase.FIRST_DAY.plusDays(random.nextInt(14));
+        UUID transactionId = UUID.randomUUID();
+
+        UDPMessage vote = request(coordinator, new UDPMessage(Operation.PREPARE, transactionId, COORDINATOR,
+                coordinatorContext(coordinator, transactionId, carId, start, start.plusDays(2))));
+        if (vote == null) {
+            coordinator.timedOut++;
+            return false;
+        }
+        if (!vote.getData().contains("\"success\":true")) {
+            coordinator.rejected++;
+            return false;
+        }
+
+        coordinator.reserved++;
+        return request(coordinator, new UDPMessage(Operation.ABORT, transactionId, COORDINATOR, null)) != null;
+    }
+
+    /**
+     * Send a request and wait for the reply of the service to it
+     * @return the reply or null if it didn't arrive in time
+     */
+    private UDPMessage request(Coordinator coordinator, UDPMessage request) throws IOException {
+        byte[] data = mapper.writeValueAsBytes(request);
+        coordinator.socket.send(new DatagramPacket(data, data.length, serviceAddress));
+
+        DatagramPacket packet = new DatagramPacket(coordinator.buffer, coordinator.buffer.length);
+        while (true) {
+            try {
+                coordinator.socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+
+            // Late replies to earlier requests of the thread are skipped
+            UDPMessage reply = mapper.readValue(packet.getData(), packet.getOffset(), packet.getLength(), UDPMessage.class);
+            if (reply.getTransactionId().equals(request.getTransactionId()) && reply.getOperation() == request.getOperation()) {
+                return reply;
+            }
+        }
+    }
+
+    /**
+     * The payload of a PREPARE, the JSON form of the CoordinatorContext with the RentalService as the only participant
+     */
+    private String coordinatorContext(Coordinator coordinator, UUID transactionId, UUID carId, LocalDate startDate, LocalDate endDate) throws IOException {
+        ObjectNode context = mapper.createObjectNode();
+        context.put("transactionId", transactionId.toString());
+        context.putObject("coordinator")
+                .put("name", COORDINATOR)
+                .put("url", InetAddress.getLoopbackAddress().getHostAddress())
+                .put("port", coordinator.socket.getLocalPort());
+
+        context.putArray("participants").addObject()
+                .put("name", CAR_PROVIDER)
+                .put("url", serviceAddress.getAddress().getHostAddress())
+                .put("port", serviceAddress.getPort())
+                .putObject("bookingContext")
+                .put("resourceId", carId.toString())
+                .put("startDate", startDate.toString())
+                .put("endDate", endDate.toString())
+                .put("numberOfPersons", 2);
+
+        return mapper.writeValueAsString(context);
+    }
+
+    /**
+     * The service logs every message by default, which would dominate the benchmark
+     */
+    private static void quietLogs() {
+        LogManager manager = LogManager.getLogManager();
+
+        for (String name : Collections.list(manager.getLoggerNames())) {
+            Logger logger = manager.getLogger(name);
+            if (logger != null && name.startsWith("org.wwi21seb")) {
+                logger.setLevel(java.util.logging.Level.WARNING);
+                for (Handler handler : logger.getHandlers()) {
+                    handler.setLevel(java.util.logging.Level.WARNING);
+                }
+            }
+        }
+    }
+
+}
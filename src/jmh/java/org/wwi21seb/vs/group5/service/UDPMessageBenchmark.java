@@ -0,0 +1,65 @@
+package org.wwi21seb.vs.group5.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.wwi21seb.vs.group5.UDP.Operation;
+import org.wwi21seb.vs.group5.UDP.UDPMessage;
+import org.wwi21seb.vs.group5.communication.UDPMessageCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and serializing UDPMessages with data binding and with the codec
+ * of the RentalService, the gc profiler shows the allocations per message
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UDPMessageBenchmark {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final UDPMessageCodec codec = new UDPMessageCodec(mapper);
+    private byte[] received;
+    private byte[] receivedCommit;
+    private UDPMessage response;
+
+    @Setup
+    public void setup() throws IOException {
+        UDPMessage request = new UDPMessage(Operation.GET_AVAILABILITY, UUID.randomUUID(), "TravelBroker", "{\"startDate\":\"2024-06-01\",\"endDate\":\"2024-06-07\",\"numberOfPersons\":4}");
+        received = mapper.writeValueAsBytes(request);
+        receivedCommit = mapper.writeValueAsBytes(new UDPMessage(Operation.COMMIT, UUID.randomUUID(), "TravelBroker", "{\"success\":true}"));
+        response = new UDPMessage(Operation.PREPARE, UUID.randomUUID(), "CarProvider", "{\"success\":true}");
+    }
+
+    @Benchmark
+    public UDPMessage parse() throws IOException {
+        return mapper.readValue(received, 0, received.length, UDPMessage.class);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        return mapper.writeValueAsBytes(response);
+    }
+
+    @Benchmark
+    public UDPMessage codecDecode() throws IOException {
+        return codec.decode(received, 0, received.length);
+    }
+
+    @Benchmark
+    public UDPMessage codecDecodeWithoutPayload() throws IOException {
+        return codec.decode(receivedCommit, 0, receivedCommit.length);
+    }
+
+    @Benchmark
+    public ByteBuffer codecEncode() throws IOException {
+        return codec.encode(response);
+    }
+
+}
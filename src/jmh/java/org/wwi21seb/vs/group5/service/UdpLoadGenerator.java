@@ -0,0 +1,111 @@
+package org.wwi21seb.vs.group5.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.wwi21seb.vs.group5.UDP.Operation;
+import org.wwi21seb.vs.group5.UDP.UDPMessage;
+import org.wwi21seb.vs.group5.communication.UDPMessageCodec;
+import org.wwi21seb.vs.group5.communication.UdpTransport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how many datagrams per second the transport receives and parses with a growing number of receive loops.
+ * Several senders on the loopback interface, each from its own port so SO_REUSEPORT spreads them,
+ * send GET_AVAILABILITY messages as fast as they can. The loops only parse the messages,
+ * so the numbers show the limit of the transport and not of the database.
+ * The loops need cores of their own to scale, the senders compete with them on the same host.
+ * <p>
+ * Arguments: [loop counts, default 1,2,4] [senders, default 8] [seconds per run, default 5]
+ */
+public final class UdpLoadGenerator {
+
+    private UdpLoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] loopCounts = (args.length > 0 ? args[0] : "1,2,4").split(",");
+        int senders = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        ObjectMapper mapper = new ObjectMapper();
+        UDPMessageCodec codec = new UDPMessageCodec(mapper);
+        byte[] request = mapper.writeValueAsBytes(new UDPMessage(Operation.GET_AVAILABILITY, UUID.randomUUID(), "TravelBroker",
+                "{\"startDate\":\"2024-06-01\",\"endDate\":\"2024-06-07\",\"numberOfPersons\":4}"));
+
+        System.out.printf("%-6s %15s %15s %8s%n", "loops", "sent/s", "received/s", "loss");
+        for (String loopCount : loopCounts) {
+            run(codec, request, Integer.parseInt(loopCount.trim()), senders, seconds);
+        }
+    }
+
+    private static void run(UDPMessageCodec codec, byte[] request, int loops, int senders, int seconds) throws Exception {
+        LongAdder received = new LongAdder();
+        LongAdder sent = new LongAdder();
+
+        try (UdpTransport transport = new UdpTransport(0, loops, 4 * 1024 * 1024, 16384)) {
+            Thread receiver = new Thread(() -> {
+                try {
+                    transport.run((datagram, sender) -> {
+                        try {
+                            codec.decode(datagram);
+                            received.increment();
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "load-receiver");
+            receiver.setDaemon(true);
+            receiver.start();
+
+            InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), transport.getPort());
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            List<Thread> threads = new ArrayList<>();
+
+            for (int i = 0; i < senders; i++) {
+                Thread thread = new Thread(() -> send(request, target, end, sent), "load-sender-" + i);
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            // Let the loops drain what is still in the receive buffers
+            TimeUnit.MILLISECONDS.sleep(200);
+
+            long sentCount = sent.sum();
+            long receivedCount = received.sum();
+            System.out.printf("%-6d %15d %15d %7.1f%%%n", transport.getReceiveLoops(), sentCount / seconds, receivedCount / seconds,
+                    sentCount == 0 ? 0 : 100.0 * (sentCount - receivedCount) / sentCount);
+        }
+    }
+
+    private static void send(byte[] request, InetSocketAddress target, long end, LongAdder sent) {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.connect(target);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(request.length);
+            buffer.put(request).flip();
+
+            while (System.nanoTime() < end) {
+                channel.write(buffer);
+                buffer.rewind();
+                sent.increment();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+package org.wwi21seb.vs.group5.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.wwi21seb.vs.group5.Model.Car;
+import org.wwi21seb.vs.group5.Model.Rental;
+import org.wwi21seb.vs.group5.Request.TransactionResult;
+import org.wwi21seb.vs.group5.UDP.Operation;
+import org.wwi21seb.vs.group5.UDP.UDPMessage;
+import org.wwi21seb.vs.group5.communication.BinaryJson;
+import org.wwi21seb.vs.group5.communication.EncodedPayload;
+import org.wwi21seb.vs.group5.communication.UDPMessageCodec;
+import org.wwi21seb.vs.group5.communication.UDPMessageCodec.WireFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding the responses of the service as JSON and as binary messages.
+ * The frame benchmarks measure the codec of the service, which keeps the payloads as JSON text
+ * and has to convert them for a binary message unless the payload is a cached response,
+ * the object benchmarks measure a peer that reads and writes the payload objects directly.
+ * The size of every message is printed once per trial, {@link WireFormatSizes} prints them for several fleet sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireFormatBenchmark {
+
+    @Param({"cars", "rentals", "result"})
+    public String payload;
+
+    @Param({"100"})
+    public int size;
+
+    @Param({"JSON", "BINARY"})
+    public WireFormat format;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final UDPMessageCodec codec = new UDPMessageCodec(mapper);
+    private Object value;
+    private TypeReference<?> type;
+    private UDPMessage message;
+    private UDPMessage cachedMessage;
+    private EncodedPayload cachedPayload;
+    private byte[] frame;
+    private byte[] data;
+
+    @Setup
+    public void setup() throws IOException {
+        switch (payload) {
+            case "cars" -> {
+                value = cars(size);
+                type = new TypeReference<List<Car>>() {};
+            }
+            case "rentals" -> {
+                value = rentals(size);
+                type = new TypeReference<List<Rental>>() {};
+            }
+            default -> {
+                value = new TransactionResult(true);
+                type = new TypeReference<TransactionResult>() {};
+            }
+        }
+
+        message = new UDPMessage(Operation.GET_AVAILABILITY, UUID.randomUUID(), "CarProvider", mapper.writeValueAsString(value));
+        cachedMessage = new UDPMessage(Operation.GET_AVAILABILITY, message.getTransactionId(), "CarProvider", null);
+        cachedPayload = EncodedPayload.of(message.getData());
+        ByteBuffer encoded = codec.encode(message, null, format);
+        frame = new byte[encoded.remaining()];
+        encoded.get(frame);
+        data = format == WireFormat.BINARY ? BinaryJson.encode(mapper, value) : mapper.writeValueAsBytes(value);
+
+        System.out.printf("%n%s %s as %s: %d bytes per message%n", size, payload, format, frame.length);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeFrame() throws IOException {
+        return codec.encode(message, null, format);
+    }
+
+    /**
+     * A cached availability response, its payload is only encoded once
+     */
+    @Benchmark
+    public ByteBuffer encodeCachedFrame() throws IOException {
+        return codec.encode(cachedMessage, cachedPayload, format);
+    }
+
+    @Benchmark
+    public UDPMessage decodeFrame() throws IOException {
+        return codec.decode(frame, 0, frame.length);
+    }
+
+    @Benchmark
+    public byte[] encodeObjects() throws IOException {
+        return format == WireFormat.BINARY ? BinaryJson.encode(mapper, value) : mapper.writeValueAsBytes(value);
+    }
+
+    @Benchmark
+    public Object decodeObjects() throws IOException {
+        return format == WireFormat.BINARY ? BinaryJson.decode(mapper, data, type) : mapper.readValue(data, type);
+    }
+
+    static List<Car> cars(int count) {
+        Random random = new Random(42);
+        List<Car> cars = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            cars.add(new Car(UUID.randomUUID(), "Model " + i, "Manufacturer " + (i % 20), 2 + random.nextInt(7), 30 + random.nextInt(150)));
+        }
+        return cars;
+    }
+
+    static List<Rental> rentals(int count) {
+        Random random = new Random(42);
+        List<Rental> rentals = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            LocalDate start = LocalDate.of(2024, 1, 1).plusDays(random.nextInt(365));
+            rentals.add(new Rental(UUID.randomUUID(), UUID.randomUUID(), Date.valueOf(start), Date.valueOf(start.plusDays(6)), 350));
+        }
+        return rentals;
+    }
+
+}
@@ -0,0 +1,140 @@
+package org.wwi21seb.vs.group5.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.wwi21seb.vs.group5.UDP.Operation;
+import org.wwi21seb.vs.group5.UDP.UDPMessage;
+import org.wwi21seb.vs.group5.communication.BinaryJson;
+import org.wwi21seb.vs.group5.communication.UDPMessageCodec;
+import org.wwi21seb.vs.group5.communication.UDPMessageCodec.WireFormat;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Prints the size of the GET_AVAILABILITY and GET_BOOKINGS responses as JSON and as binary messages,
+ * and how many cars or rentals fit into a single datagram of the service in each format.
+ * Also checks that malformed binary values are rejected with an IOException, like a malformed datagram is dropped,
+ * and exits with 1 if one of them is decoded or fails with another exception.
+ */
+public final class WireFormatSizes {
+
+    private static final int DATAGRAM_SIZE = 16384;
+
+    // The tags of BinaryJson used by the malformed values
+    private static final int START_OBJECT = 0x03;
+    private static final int STRING = 0x0C;
+    private static final int NAME = 0x10;
+    private static final int NAME_REFERENCE = 0x11;
+    // A varint of ten bytes that decodes to -1 and one of five bytes that decodes to 2^31
+    private static final int[] MINUS_ONE = {0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01};
+    private static final int[] ABOVE_INT = {0x80, 0x80, 0x80, 0x80, 0x08};
+
+    private WireFormatSizes() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        UDPMessageCodec codec = new UDPMessageCodec(mapper);
+
+        System.out.printf("%-8s %6s %10s %10s %6s%n", "payload", "count", "json", "binary", "ratio");
+        for (int count : new int[]{1, 10, 100, 1000}) {
+            print(codec, "cars", count, mapper.writeValueAsString(WireFormatBenchmark.cars(count)));
+            print(codec, "rentals", count, mapper.writeValueAsString(WireFormatBenchmark.rentals(count)));
+        }
+
+        System.out.printf("%nPer datagram of %d bytes:%n", DATAGRAM_SIZE);
+        for (WireFormat format : WireFormat.values()) {
+            System.out.printf("%-6s %5d cars %5d rentals%n", format,
+                    fitting(codec, format, count -> mapper.writeValueAsString(WireFormatBenchmark.cars(count))),
+                    fitting(codec, format, count -> mapper.writeValueAsString(WireFormatBenchmark.rentals(count))));
+        }
+
+        Map<String, byte[]> malformed = new LinkedHashMap<>();
+        malformed.put("negative string length", bytes(new int[]{STRING}, MINUS_ONE, new int[]{'a'}));
+        malformed.put("string length above int", bytes(new int[]{STRING}, ABOVE_INT, new int[]{'a'}));
+        malformed.put("truncated string", bytes(new int[]{STRING, 5, 'a'}));
+        malformed.put("negative name length", bytes(new int[]{START_OBJECT, NAME}, MINUS_ONE, new int[]{'a', STRING, 0, 0x04}));
+        malformed.put("negative name reference", bytes(new int[]{START_OBJECT, NAME_REFERENCE}, MINUS_ONE, new int[]{STRING, 0, 0x04}));
+
+        System.out.printf("%nMalformed binary values:%n");
+        boolean passed = true;
+        for (Map.Entry<String, byte[]> value : malformed.entrySet()) {
+            passed &= rejects(value.getKey(), value.getValue());
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return whether decoding the value failed with an IOException
+     */
+    private static boolean rejects(String name, byte[] value) {
+        try {
+            String json = BinaryJson.toJson(value, 0, value.length);
+            System.out.printf("%-24s FAILED, decoded as %s%n", name, json);
+            return false;
+        } catch (IOException e) {
+            System.out.printf("%-24s rejected: %s%n", name, e.getMessage());
+            return true;
+        } catch (RuntimeException e) {
+            System.out.printf("%-24s FAILED with %s%n", name, e);
+            return false;
+        }
+    }
+
+    private static byte[] bytes(int[]... parts) {
+        int length = 0;
+        for (int[] part : parts) {
+            length += part.length;
+        }
+
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for (int[] part : parts) {
+            for (int b : part) {
+                bytes[position++] = (byte) b;
+            }
+        }
+        return bytes;
+    }
+
+    private static void print(UDPMessageCodec codec, String payload, int count, String json) throws IOException {
+        int jsonSize = size(codec, json, WireFormat.JSON);
+        int binarySize = size(codec, json, WireFormat.BINARY);
+        System.out.printf("%-8s %6d %10d %10d %6.2f%n", payload, count, jsonSize, binarySize, (double) jsonSize / binarySize);
+    }
+
+    @FunctionalInterface
+    private interface Payload {
+
+        String of(int count) throws IOException;
+
+    }
+
+    /**
+     * @return the largest number of elements whose message fits into a datagram
+     */
+    private static int fitting(UDPMessageCodec codec, WireFormat format, Payload payload) throws IOException {
+        int low = 0;
+        int high = DATAGRAM_SIZE;
+
+        while (low < high) {
+            int middle = (low + high + 1) / 2;
+            if (size(codec, payload.of(middle), format) <= DATAGRAM_SIZE) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private static int size(UDPMessageCodec codec, String json, WireFormat format) throws IOException {
+        UDPMessage message = new UDPMessage(Operation.GET_AVAILABILITY, UUID.randomUUID(), "CarProvider", json);
+        return codec.encode(message, null, format).remaining();
+    }
+
+}
@@ -1,8 +1,15 @@
 package org.wwi21seb.vs.group5;
 
 import org.wwi21seb.vs.group5.Logger.LoggerFactory;
+import org.wwi21seb.vs.group5.communication.SchemaMigrator;
+import org.wwi21seb.vs.group5.dao.RentalDAO;
+import org.wwi21seb.vs.group5.metrics.MetricsRegistry;
+import org.wwi21seb.vs.group5.metrics.MetricsServer;
 import org.wwi21seb.vs.group5.service.RentalService;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class RentalCarProviderMain {
@@ -11,8 +18,33 @@ public class RentalCarProviderMain {
 
     public static void main(String[] args) {
         LOGGER.info("Starting RentalCarProvider...");
+        // The embedded store keeps the rentals without a database
+        if (RentalDAO.usesDatabase()) {
+            SchemaMigrator.migrate();
+        }
         RentalService rentalService = new RentalService();
+        startMetricsServer(rentalService);
         rentalService.start();
     }
 
+    /**
+     * Serve the metrics and admin actions on the local interface, a negative rental.metrics.port disables the endpoint
+     */
+    private static void startMetricsServer(RentalService rentalService) {
+        int port = Integer.getInteger("rental.metrics.port", 9464);
+        if (port < 0) {
+            return;
+        }
+
+        try {
+            InetSocketAddress address = new InetSocketAddress(System.getProperty("rental.metrics.host", "127.0.0.1"), port);
+            MetricsServer metricsServer = new MetricsServer(MetricsRegistry.getDefault(), address);
+            metricsServer.addAction("/admin/cars/invalidate", rentalService::invalidateCars);
+            metricsServer.start();
+        } catch (IOException e) {
+            // The service runs without metrics rather than not at all
+            LOGGER.log(Level.WARNING, "Could not start the metrics server", e);
+        }
+    }
+
 }
\ No newline at end of file
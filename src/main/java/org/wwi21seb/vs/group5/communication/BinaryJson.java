@@ -0,0 +1,518 @@
+package org.wwi21seb.vs.group5.communication;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary form of a JSON value, used for the data of binary UDPMessages.
+ * Every token is a tag byte followed by its value. Numbers are zigzag varints, strings are
+ * UTF-8 with a varint length and nothing has to be escaped. A field name is written once
+ * per value and referenced by its index afterwards, so an array of cars names every field only once.
+ * Canonical UUID strings are written as their 16 bytes and whole days in epoch milliseconds, like the
+ * dates of the rentals, as epoch days. Both are turned back into the same JSON, so a value keeps its
+ * meaning but not its formatting, e.g. whitespace or how a number was written.
+ */
+public final class BinaryJson {
+
+    private static final int NULL = 0x00;
+    private static final int FALSE = 0x01;
+    private static final int TRUE = 0x02;
+    private static final int START_OBJECT = 0x03;
+    private static final int END_OBJECT = 0x04;
+    private static final int START_ARRAY = 0x05;
+    private static final int END_ARRAY = 0x06;
+    private static final int INTEGER = 0x07;
+    private static final int DOUBLE = 0x08;
+    private static final int WHOLE_DOUBLE = 0x09;
+    private static final int EPOCH_DAY = 0x0A;
+    private static final int NUMBER_TEXT = 0x0B;
+    private static final int STRING = 0x0C;
+    private static final int UUID_STRING = 0x0D;
+    private static final int NAME = 0x10;
+    private static final int NAME_REFERENCE = 0x11;
+
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+    // Every integer up to 2^53 is exact as a double
+    private static final double MAX_WHOLE_DOUBLE = 9007199254740992.0;
+    // Up to 15 significant digits a decimal number survives the round trip through a double
+    private static final int MAX_DOUBLE_TEXT = 16;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private BinaryJson() {
+    }
+
+    /**
+     * Encode an object the way the ObjectMapper would write it as JSON
+     * @param mapper the mapper serializing the object
+     * @param value the object to encode
+     * @return the binary value
+     * @throws IOException if the object could not be serialized
+     */
+    public static byte[] encode(ObjectMapper mapper, Object value) throws IOException {
+        TokenBuffer tokens = new TokenBuffer(mapper, false);
+        mapper.writeValue(tokens, value);
+
+        Output output = new Output(256);
+        try (JsonParser parser = tokens.asParser()) {
+            parser.nextToken();
+            write(parser, output);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Decode a binary value into an object the way the ObjectMapper would read its JSON
+     * @param mapper the mapper deserializing the object
+     * @param bytes the binary value
+     * @param type the type of the object
+     * @return the decoded object
+     * @throws IOException if the bytes are not a binary value or don't match the type
+     */
+    public static <T> T decode(ObjectMapper mapper, byte[] bytes, TypeReference<T> type) throws IOException {
+        TokenBuffer tokens = new TokenBuffer(mapper, false);
+        read(bytes, 0, bytes.length, tokens, false);
+
+        try (JsonParser parser = tokens.asParser()) {
+            return mapper.readValue(parser, type);
+        }
+    }
+
+    /**
+     * Encode a JSON text
+     * @param json the JSON text, a single value
+     * @return the binary value
+     * @throws IOException if the text is not a single JSON value
+     */
+    public static byte[] fromJson(String json) throws IOException {
+        Output output = new Output(json.length() / 2 + 16);
+        try (JsonParser parser = FACTORY.createParser(json)) {
+            parser.nextToken();
+            write(parser, output);
+            if (parser.nextToken() != null) {
+                throw new JsonParseException(parser, "Trailing content after the JSON value");
+            }
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Decode a binary value into a JSON text
+     * @param bytes the buffer containing the binary value
+     * @param offset the offset of the value in the buffer
+     * @param length the length of the value, nothing may follow the value
+     * @return the JSON text
+     * @throws IOException if the bytes are not a binary value
+     */
+    public static String toJson(byte[] bytes, int offset, int length) throws IOException {
+        ByteArrayOutputStream json = new ByteArrayOutputStream(length * 2);
+        try (JsonGenerator generator = FACTORY.createGenerator(json, JsonEncoding.UTF8)) {
+            read(bytes, offset, length, generator, true);
+        }
+        return json.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode the value at the current token of a parser, the parser is left at the last token of the value
+     */
+    private static void write(JsonParser parser, Output output) throws IOException {
+        Map<String, Integer> names = new HashMap<>();
+        JsonToken token = parser.currentToken();
+        int depth = 0;
+
+        if (token == null) {
+            throw new EOFException("No JSON value to encode");
+        }
+
+        while (true) {
+            switch (token) {
+                case START_OBJECT -> {
+                    output.write(START_OBJECT);
+                    depth++;
+                }
+                case END_OBJECT -> {
+                    output.write(END_OBJECT);
+                    depth--;
+                }
+                case START_ARRAY -> {
+                    output.write(START_ARRAY);
+                    depth++;
+                }
+                case END_ARRAY -> {
+                    output.write(END_ARRAY);
+                    depth--;
+                }
+                case FIELD_NAME -> {
+                    String name = parser.currentName();
+                    Integer index = names.get(name);
+                    if (index == null) {
+                        names.put(name, names.size());
+                        output.write(NAME);
+                        writeString(name, output);
+                    } else {
+                        output.write(NAME_REFERENCE);
+                        writeVarint(index, output);
+                    }
+                }
+                case VALUE_STRING -> {
+                    char[] text = parser.getTextCharacters();
+                    int offset = parser.getTextOffset();
+                    int length = parser.getTextLength();
+                    if (!writeUuid(text, offset, length, output)) {
+                        output.write(STRING);
+                        writeString(text, offset, length, output);
+                    }
+                }
+                case VALUE_NUMBER_INT -> {
+                    if (parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) {
+                        output.write(NUMBER_TEXT);
+                        writeString(parser.getText(), output);
+                    } else {
+                        long value = parser.getLongValue();
+                        if (value != 0 && value % MILLIS_PER_DAY == 0) {
+                            output.write(EPOCH_DAY);
+                            writeVarint(zigzag(value / MILLIS_PER_DAY), output);
+                        } else {
+                            output.write(INTEGER);
+                            writeVarint(zigzag(value), output);
+                        }
+                    }
+                }
+                case VALUE_NUMBER_FLOAT -> writeFloat(parser, output);
+                case VALUE_TRUE -> output.write(TRUE);
+                case VALUE_FALSE -> output.write(FALSE);
+                case VALUE_NULL -> output.write(NULL);
+                default -> throw new JsonParseException(parser, "Can't encode " + token + " as binary JSON");
+            }
+
+            if (depth == 0) {
+                return;
+            }
+
+            token = parser.nextToken();
+            if (token == null) {
+                throw new EOFException("Incomplete JSON value");
+            }
+        }
+    }
+
+    private static void writeFloat(JsonParser parser, Output output) throws IOException {
+        double value = parser.getDoubleValue();
+
+        if (parser.getTextLength() > MAX_DOUBLE_TEXT || !Double.isFinite(value)) {
+            // Too precise for a double, keep the number as it is
+            output.write(NUMBER_TEXT);
+            writeString(parser.getText(), output);
+        } else if (value == Math.rint(value) && Math.abs(value) < MAX_WHOLE_DOUBLE && Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(-0.0)) {
+            // Prices are mostly whole numbers
+            output.write(WHOLE_DOUBLE);
+            writeVarint(zigzag((long) value), output);
+        } else {
+            output.write(DOUBLE);
+            output.writeLong(Double.doubleToRawLongBits(value));
+        }
+    }
+
+    /**
+     * Write a string as a UUID if it is the canonical form of one, which is what it is decoded to again
+     */
+    private static boolean writeUuid(char[] text, int offset, int length, Output output) {
+        if (length != 36) {
+            return false;
+        }
+
+        long mostSignificant = 0;
+        long leastSignificant = 0;
+        int digits = 0;
+
+        for (int i = 0; i < 36; i++) {
+            char c = text[offset + i];
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+                continue;
+            }
+
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else {
+                return false;
+            }
+
+            if (digits++ < 16) {
+                mostSignificant = (mostSignificant << 4) | digit;
+            } else {
+                leastSignificant = (leastSignificant << 4) | digit;
+            }
+        }
+
+        output.write(UUID_STRING);
+        output.writeLong(mostSignificant);
+        output.writeLong(leastSignificant);
+        return true;
+    }
+
+    private static void writeString(char[] text, int offset, int length, Output output) {
+        // Most strings are ASCII, their characters are their bytes
+        for (int i = offset; i < offset + length; i++) {
+            if (text[i] >= 0x80) {
+                writeString(new String(text, offset, length), output);
+                return;
+            }
+        }
+
+        writeVarint(length, output);
+        output.ensure(length);
+        for (int i = offset; i < offset + length; i++) {
+            output.bytes[output.count++] = (byte) text[i];
+        }
+    }
+
+    private static void writeString(String value, Output output) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length, output);
+        output.write(bytes);
+    }
+
+    private static void writeVarint(long value, Output output) {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Decode a binary value into the tokens of a generator
+     * @param utf8 whether the generator writes UTF-8, which takes the bytes of the strings as they are
+     */
+    private static void read(byte[] bytes, int offset, int length, JsonGenerator generator, boolean utf8) throws IOException {
+        Input input = new Input(bytes, offset, offset + length);
+        List<SerializedString> names = new ArrayList<>();
+        char[] uuid = new char[36];
+        int depth = 0;
+
+        do {
+            int tag = input.readByte();
+            switch (tag) {
+                case NULL -> generator.writeNull();
+                case FALSE -> generator.writeBoolean(false);
+                case TRUE -> generator.writeBoolean(true);
+                case START_OBJECT -> {
+                    generator.writeStartObject();
+                    depth++;
+                }
+                case END_OBJECT -> {
+                    generator.writeEndObject();
+                    depth--;
+                }
+                case START_ARRAY -> {
+                    generator.writeStartArray();
+                    depth++;
+                }
+                case END_ARRAY -> {
+                    generator.writeEndArray();
+                    depth--;
+                }
+                case INTEGER -> generator.writeNumber(unzigzag(input.readVarint()));
+                case DOUBLE -> generator.writeNumber(Double.longBitsToDouble(input.readLong()));
+                case WHOLE_DOUBLE -> generator.writeNumber((double) unzigzag(input.readVarint()));
+                case EPOCH_DAY -> generator.writeNumber(unzigzag(input.readVarint()) * MILLIS_PER_DAY);
+                case NUMBER_TEXT -> generator.writeNumber(input.readString());
+                case STRING -> {
+                    if (utf8) {
+                        int stringLength = input.readLength();
+                        generator.writeUTF8String(bytes, input.position, stringLength);
+                        input.position += stringLength;
+                    } else {
+                        generator.writeString(input.readString());
+                    }
+                }
+                case UUID_STRING -> {
+                    input.readUuid(uuid);
+                    generator.writeString(uuid, 0, uuid.length);
+                }
+                case NAME -> {
+                    SerializedString name = new SerializedString(input.readString());
+                    names.add(name);
+                    generator.writeFieldName(name);
+                }
+                case NAME_REFERENCE -> {
+                    long index = input.readVarint();
+                    if (index < 0 || index >= names.size()) {
+                        throw new IOException("Unknown field name reference " + index);
+                    }
+                    generator.writeFieldName(names.get((int) index));
+                }
+                default -> throw new IOException("Unknown binary JSON tag " + tag);
+            }
+
+            if (depth < 0) {
+                throw new IOException("Unbalanced binary JSON value");
+            }
+        } while (depth > 0);
+
+        if (input.position != input.end) {
+            throw new IOException("Trailing bytes after the binary JSON value");
+        }
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads the parts of a binary value, every read checks the bounds of the value
+     */
+    private static final class Input {
+
+        private final byte[] bytes;
+        private final int end;
+        private int position;
+
+        private Input(byte[] bytes, int position, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        private void require(long count) throws EOFException {
+            if (count > end - position) {
+                throw new EOFException("Truncated binary JSON value");
+            }
+        }
+
+        private int readByte() throws EOFException {
+            require(1);
+            return bytes[position++] & 0xFF;
+        }
+
+        private long readVarint() throws EOFException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new EOFException("Malformed varint");
+        }
+
+        private long readLong() throws EOFException {
+            require(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (bytes[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        /**
+         * Read the length of a string and check that the string follows
+         * A varint of ten bytes can be negative and one of five bytes can exceed an int, neither is a length
+         */
+        private int readLength() throws EOFException {
+            long length = readVarint();
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new EOFException("Malformed binary JSON string length " + length);
+            }
+            require(length);
+            return (int) length;
+        }
+
+        private String readString() throws EOFException {
+            int length = readLength();
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        /**
+         * Read a UUID into its canonical form, the same as UUID.toString
+         */
+        private void readUuid(char[] text) throws EOFException {
+            long mostSignificant = readLong();
+            long leastSignificant = readLong();
+            int index = 0;
+
+            for (int digit = 0; digit < 32; digit++) {
+                if (digit == 8 || digit == 12 || digit == 16 || digit == 20) {
+                    text[index++] = '-';
+                }
+                long half = digit < 16 ? mostSignificant : leastSignificant;
+                text[index++] = HEX[(int) (half >>> (60 - (digit % 16) * 4)) & 0xF];
+            }
+        }
+
+    }
+
+    /**
+     * A growable byte array, unlike ByteArrayOutputStream without a lock on every byte
+     */
+    private static final class Output {
+
+        private byte[] bytes;
+        private int count = 0;
+
+        private Output(int size) {
+            this.bytes = new byte[Math.max(16, size)];
+        }
+
+        private void ensure(int additional) {
+            if (count + additional > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + additional));
+            }
+        }
+
+        private void write(int b) {
+            ensure(1);
+            bytes[count++] = (byte) b;
+        }
+
+        private void write(byte[] source) {
+            ensure(source.length);
+            System.arraycopy(source, 0, bytes, count, source.length);
+            count += source.length;
+        }
+
+        private void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[count++] = (byte) (value >>> shift);
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, count);
+        }
+
+    }
+
+}
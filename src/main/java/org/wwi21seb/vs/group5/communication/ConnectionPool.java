@@ -0,0 +1,288 @@
+package org.wwi21seb.vs.group5.communication;
+
+import org.wwi21seb.vs.group5.Logger.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of JDBC connections.
+ * Connections handed out by the pool are proxies, closing them returns
+ * the physical connection to the pool instead of closing it. Because the
+ * physical connections stay open, the statement cache of the driver is
+ * kept across calls and every statement is only parsed once per connection.
+ */
+public class ConnectionPool {
+
+    private static final Logger LOGGER = LoggerFactory.setupLogger(ConnectionPool.class.getName());
+
+    private final String url;
+    private final Properties properties;
+    private final int minSize;
+    private final long acquireTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final int validationTimeoutSeconds;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * Create a new connection pool
+     * @param url the JDBC URL of the database
+     * @param properties the connection properties, e.g. user and password
+     * @param minSize the number of connections kept open even when idle
+     * @param maxSize the maximum number of connections open at the same time
+     * @param acquireTimeoutMillis how long to wait for a free connection
+     * @param idleTimeoutMillis after how long an idle connection above the minimum size is closed
+     * @param validationIntervalMillis after how long of being idle a connection is validated before it is handed out
+     */
+    public ConnectionPool(String url, Properties properties, int minSize, int maxSize, long acquireTimeoutMillis, long idleTimeoutMillis, long validationIntervalMillis) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+        }
+
+        this.url = url;
+        this.properties = properties;
+        this.minSize = minSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.validationTimeoutSeconds = 5;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long evictionInterval = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdleConnections, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrow a connection from the pool, closing it returns it to the pool
+     * @return a connection
+     * @throws SQLException if no connection could be acquired within the acquire timeout
+     */
+    public Connection getConnection() throws SQLException {
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out after " + acquireTimeoutMillis + "ms waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (isUsable(pooled)) {
+                    return pooled.lease();
+                }
+
+                discard(pooled);
+            }
+
+            pooled = new PooledConnection(DriverManager.getConnection(url, properties));
+            totalConnections.incrementAndGet();
+            return pooled.lease();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Close all idle connections and stop the eviction task
+     */
+    public void close() {
+        evictor.shutdownNow();
+
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+
+    private boolean isUsable(PooledConnection pooled) {
+        try {
+            if (pooled.physical.isClosed()) {
+                return false;
+            }
+
+            // Recently used connections are assumed to be alive, this saves a round trip on the hot path
+            if (System.currentTimeMillis() - pooled.lastUsed < validationIntervalMillis) {
+                return true;
+            }
+
+            return pooled.physical.isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pooled) {
+        try {
+            if (pooled.physical.isClosed()) {
+                discard(pooled);
+                return;
+            }
+
+            if (!pooled.physical.getAutoCommit()) {
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+
+            pooled.lastUsed = System.currentTimeMillis();
+            // Most recently used first, so that surplus connections become idle and get evicted
+            idle.offerFirst(pooled);
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "Discarding broken database connection", e);
+            discard(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        totalConnections.decrementAndGet();
+
+        try {
+            pooled.physical.close();
+        } catch (SQLException e) {
+            LOGGER.log(Level.FINE, "Error while closing database connection", e);
+        }
+    }
+
+    private void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> iterator = idle.descendingIterator();
+
+        while (iterator.hasNext() && totalConnections.get() > minSize) {
+            PooledConnection pooled = iterator.next();
+            if (now - pooled.lastUsed >= idleTimeoutMillis && idle.removeLastOccurrence(pooled)) {
+                discard(pooled);
+            }
+        }
+
+        fillToMinSize();
+    }
+
+    /**
+     * Open idle connections until the pool has its minimum size again,
+     * e.g. after broken connections were discarded
+     */
+    private void fillToMinSize() {
+        while (true) {
+            int total = totalConnections.get();
+            if (total >= minSize) {
+                return;
+            }
+            if (!totalConnections.compareAndSet(total, total + 1)) {
+                continue;
+            }
+
+            try {
+                PooledConnection pooled = new PooledConnection(DriverManager.getConnection(url, properties));
+                // Least recently used, so the connections that are in use stay at the front
+                idle.offerLast(pooled);
+            } catch (SQLException e) {
+                totalConnections.decrementAndGet();
+                LOGGER.log(Level.WARNING, "Could not refill the connection pool to its minimum size", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * A physical connection owned by the pool
+     */
+    private class PooledConnection {
+
+        private final Connection physical;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        private Connection lease() {
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    new LeaseHandler(this)
+            );
+        }
+
+    }
+
+    /**
+     * Forwards every call to the physical connection until the lease is closed
+     */
+    private class LeaseHandler implements InvocationHandler {
+
+        private final PooledConnection pooled;
+        private boolean closed = false;
+
+        private LeaseHandler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close" -> {
+                    if (!closed) {
+                        closed = true;
+                        release(pooled);
+                    }
+                    return null;
+                }
+                case "isClosed" -> {
+                    return closed || pooled.physical.isClosed();
+                }
+                case "equals" -> {
+                    return proxy == args[0];
+                }
+                case "hashCode" -> {
+                    return System.identityHashCode(proxy);
+                }
+                case "toString" -> {
+                    return "PooledConnection[" + pooled.physical + "]";
+                }
+                default -> {
+                    if (closed) {
+                        throw new SQLException("Connection has already been returned to the pool");
+                    }
+                }
+            }
+
+            try {
+                return method.invoke(pooled.physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+    }
+
+}
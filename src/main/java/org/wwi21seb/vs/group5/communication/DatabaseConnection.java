@@ -3,18 +3,75 @@ package org.wwi21seb.vs.group5.communication;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.Properties;
 
 public class DatabaseConnection {
 
-    private static final String DB_URL = "jdbc:postgresql://localhost:5432/travelbroker_car";
-    private static final String DB_USER = "admin";
-    private static final String DB_PASSWORD = "password";
+    // Connection settings, can be overridden with system properties, e.g. to use an embedded database in benchmarks
+    private static final String DB_URL = System.getProperty("rental.db.url", "jdbc:postgresql://localhost:5432/travelbroker_car");
+    private static final String DB_USER = System.getProperty("rental.db.user", "admin");
+    private static final String DB_PASSWORD = System.getProperty("rental.db.password", "password");
+
+    // Pool settings, can be overridden with system properties
+    private static final int POOL_MIN_SIZE = Integer.getInteger("rental.db.pool.minSize", 2);
+    private static final int POOL_MAX_SIZE = Integer.getInteger("rental.db.pool.maxSize", 16);
+    private static final long POOL_ACQUIRE_TIMEOUT_MILLIS = Long.getLong("rental.db.pool.acquireTimeoutMillis", 5000);
+    private static final long POOL_IDLE_TIMEOUT_MILLIS = Long.getLong("rental.db.pool.idleTimeoutMillis", 300000);
+    private static final long POOL_VALIDATION_INTERVAL_MILLIS = Long.getLong("rental.db.pool.validationIntervalMillis", 30000);
+
+    private static final ConnectionPool POOL = new ConnectionPool(
+            DB_URL,
+            connectionProperties(),
+            POOL_MIN_SIZE,
+            POOL_MAX_SIZE,
+            POOL_ACQUIRE_TIMEOUT_MILLIS,
+            POOL_IDLE_TIMEOUT_MILLIS,
+            POOL_VALIDATION_INTERVAL_MILLIS
+    );
 
     private DatabaseConnection() {
     }
 
+    /**
+     * Get a pooled connection to the database
+     * Closing the connection returns it to the pool
+     * @return a connection to the database
+     * @throws SQLException if no connection could be acquired
+     */
     public static Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+        return POOL.getConnection();
+    }
+
+    /**
+     * Open a connection outside of the pool, e.g. for a session that listens for notifications
+     * The caller has to close the connection
+     * @return a new connection to the database
+     * @throws SQLException if the connection could not be opened
+     */
+    public static Connection openDedicatedConnection() throws SQLException {
+        return DriverManager.getConnection(DB_URL, connectionProperties());
+    }
+
+    /**
+     * @return whether the database is PostgreSQL, as opposed to e.g. an embedded database in benchmarks
+     */
+    public static boolean isPostgres() {
+        return DB_URL.startsWith("jdbc:postgresql:");
+    }
+
+    private static Properties connectionProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("user", DB_USER);
+        properties.setProperty("password", DB_PASSWORD);
+
+        if (isPostgres()) {
+            // Use server-side prepared statements from the first execution on,
+            // the driver caches them per connection so each statement is parsed once
+            properties.setProperty("prepareThreshold", "1");
+            properties.setProperty("preparedStatementCacheQueries", "256");
+        }
+
+        return properties;
     }
 
 }
@@ -0,0 +1,88 @@
+package org.wwi21seb.vs.group5.communication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The data of a UDPMessage that was already encoded for the datagram.
+ * Holds the JSON together with its bytes as the value of the data field, i.e. escaped and
+ * UTF-8 encoded but without the surrounding quotes, so it can be sent again without any encoding.
+ * The {@link BinaryJson} form for binary messages is encoded on first use and kept as well.
+ */
+public final class EncodedPayload {
+
+    private final String json;
+    private final byte[] bytes;
+    private volatile byte[] binary;
+    private volatile boolean notJson = false;
+
+    private EncodedPayload(String json, byte[] bytes) {
+        this.json = json;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Encode a JSON payload
+     * @param json the payload
+     * @return the encoded payload
+     */
+    public static EncodedPayload of(String json) {
+        return new EncodedPayload(json, UDPMessageCodec.escape(json));
+    }
+
+    /**
+     * Join encoded payloads into a JSON array without encoding them again
+     * Escaping works character by character, so the bytes of the parts can simply be concatenated
+     * @param parts the elements of the array
+     * @return the encoded array
+     */
+    public static EncodedPayload array(List<EncodedPayload> parts) {
+        StringBuilder json = new StringBuilder();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        json.append('[');
+        bytes.write('[');
+        for (int i = 0; i < parts.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+                bytes.write(',');
+            }
+            json.append(parts.get(i).json);
+            bytes.writeBytes(parts.get(i).bytes);
+        }
+        json.append(']');
+        bytes.write(']');
+
+        return new EncodedPayload(json.toString(), bytes.toByteArray());
+    }
+
+    public String getJson() {
+        return json;
+    }
+
+    /**
+     * @return the escaped UTF-8 bytes of the payload, must not be modified
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the payload as a binary JSON value or null if it is not JSON, must not be modified
+     */
+    byte[] getBinary() {
+        byte[] result = binary;
+        if (result == null && !notJson) {
+            // Two threads may both encode it, the result is the same
+            try {
+                result = BinaryJson.fromJson(json);
+                binary = result;
+            } catch (IOException e) {
+                notJson = true;
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,167 @@
+package org.wwi21seb.vs.group5.communication;
+
+import org.wwi21seb.vs.group5.Logger.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Brings the database schema up to date on startup.
+ * The migrations are SQL scripts under /db/migration on the classpath, named V&lt;version&gt;__&lt;description&gt;.sql.
+ * Every script runs in its own transaction together with its entry in the schema_migrations table,
+ * so a failed migration leaves no trace and is tried again on the next start.
+ * The scripts are written to also run against a database that was created from the schema before migrations existed.
+ * A released script must not be changed, its checksum is compared with the one recorded when it was applied.
+ */
+public class SchemaMigrator {
+
+    private static final Logger LOGGER = LoggerFactory.setupLogger(SchemaMigrator.class.getName());
+    private static final String LOCATION = "/db/migration/";
+
+    // In order of their versions, new migrations are appended
+    private static final List<String> MIGRATIONS = List.of(
+            "V1__create_cars_and_rentals.sql",
+            "V2__booking_id_and_confirmation.sql",
+            "V3__car_change_notifications.sql",
+            "V4__rental_period_indexes.sql"
+    );
+
+    // Serializes migrations of several instances starting at the same time
+    private static final long ADVISORY_LOCK_KEY = 0x52656e74616cL;
+
+    private SchemaMigrator() {
+    }
+
+    /**
+     * Apply all pending migrations, unless disabled with rental.db.migrate=false
+     * Only PostgreSQL is migrated, an embedded database in benchmarks creates its own tables.
+     */
+    public static void migrate() {
+        if (!Boolean.parseBoolean(System.getProperty("rental.db.migrate", "true")) || !DatabaseConnection.isPostgres()) {
+            LOGGER.info("Skipping schema migrations");
+            return;
+        }
+
+        try (Connection conn = DatabaseConnection.openDedicatedConnection()) {
+            migrate(conn);
+        } catch (SQLException e) {
+            LOGGER.severe("Error while migrating the schema: " + e.getMessage());
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            LOGGER.severe("Error while reading a migration: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Apply all pending migrations on a connection
+     * @param conn the connection, not shared with anyone else while migrating
+     * @throws SQLException if a migration failed
+     * @throws IOException if a migration could not be read
+     */
+    public static void migrate(Connection conn) throws SQLException, IOException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("SELECT pg_advisory_lock(" + ADVISORY_LOCK_KEY + ")");
+        }
+
+        try {
+            Map<Integer, Long> applied = appliedMigrations(conn);
+            int appliedNow = 0;
+
+            for (String name : MIGRATIONS) {
+                int version = Integer.parseInt(name.substring(1, name.indexOf("__")));
+                String script = read(name);
+                long checksum = checksum(script);
+
+                Long appliedChecksum = applied.get(version);
+                if (appliedChecksum != null) {
+                    if (appliedChecksum != checksum) {
+                        throw new IllegalStateException("Migration " + name + " was changed after it had been applied");
+                    }
+                    continue;
+                }
+
+                apply(conn, version, name, script, checksum);
+                appliedNow++;
+            }
+
+            LOGGER.log(Level.INFO, "Schema is at version {0}, applied {1} migration(s)", new Object[]{MIGRATIONS.size(), appliedNow});
+        } finally {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("SELECT pg_advisory_unlock(" + ADVISORY_LOCK_KEY + ")");
+            }
+        }
+    }
+
+    private static Map<Integer, Long> appliedMigrations(Connection conn) throws SQLException {
+        Map<Integer, Long> applied = new HashMap<>();
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS schema_migrations (" +
+                    "version integer PRIMARY KEY, " +
+                    "name text NOT NULL, " +
+                    "checksum bigint NOT NULL, " +
+                    "applied_at timestamptz NOT NULL DEFAULT now())");
+
+            try (ResultSet resultSet = stmt.executeQuery("SELECT version, checksum FROM schema_migrations")) {
+                while (resultSet.next()) {
+                    applied.put(resultSet.getInt("version"), resultSet.getLong("checksum"));
+                }
+            }
+        }
+
+        return applied;
+    }
+
+    private static void apply(Connection conn, int version, String name, String script, long checksum) throws SQLException {
+        LOGGER.log(Level.INFO, "Applying migration {0}", name);
+        long start = System.nanoTime();
+        conn.setAutoCommit(false);
+
+        try (Statement stmt = conn.createStatement();
+             PreparedStatement record = conn.prepareStatement("INSERT INTO schema_migrations (version, name, checksum) VALUES (?, ?, ?)")) {
+            // The driver sends a script without parameters as a single query, so it may contain several statements
+            stmt.execute(script);
+
+            record.setInt(1, version);
+            record.setString(2, name);
+            record.setLong(3, checksum);
+            record.executeUpdate();
+
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            LOGGER.severe("Migration " + name + " failed: " + e.getMessage());
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+
+        LOGGER.log(Level.INFO, "Applied migration {0} in {1} ms", new Object[]{name, String.valueOf((System.nanoTime() - start) / 1_000_000)});
+    }
+
+    private static String read(String name) throws IOException {
+        try (InputStream in = SchemaMigrator.class.getResourceAsStream(LOCATION + name)) {
+            if (in == null) {
+                throw new IOException("Migration " + name + " not found on the classpath");
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static long checksum(String script) {
+        CRC32 crc = new CRC32();
+        // Independent of the line endings of the checkout
+        crc.update(script.replace("\r\n", "\n").getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+}
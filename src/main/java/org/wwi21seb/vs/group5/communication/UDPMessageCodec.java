@@ -0,0 +1,852 @@
+package org.wwi21seb.vs.group5.communication;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.wwi21seb.vs.group5.Logger.LoggerFactory;
+import org.wwi21seb.vs.group5.UDP.Operation;
+import org.wwi21seb.vs.group5.UDP.UDPMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+/**
+ * Reads and writes UDPMessages without going through Jackson's data binding.
+ * A UDPMessage is a flat JSON object of four string fields, so it is scanned straight
+ * from the bytes of the datagram. The payload is only decoded for the operations that
+ * use it, and messages are written into buffers that are reused by each thread.
+ * Apart from the resulting message, its transaction id and its payload nothing is allocated.
+ * Anything the scanner doesn't expect, like unknown fields or non-string values, is
+ * handed to the ObjectMapper instead, as is everything if the JSON layout of UDPMessage
+ * ever differs from the fields known here.
+ * <p>
+ * Peers may also send a binary message instead, which starts with a byte that no JSON text starts with.
+ * It holds the operation as a byte, the transaction id as 16 bytes, the sender as a length prefixed string
+ * and the data as a {@link BinaryJson} value, so the payload is neither escaped nor quoted.
+ * The format is negotiated per peer: a peer that sends binary messages is answered with binary messages
+ * until it sends JSON again, every other peer only ever gets JSON.
+ */
+public class UDPMessageCodec {
+
+    /**
+     * The encoding of a datagram
+     */
+    public enum WireFormat {
+        JSON,
+        BINARY
+    }
+
+    private static final Logger LOGGER = LoggerFactory.setupLogger(UDPMessageCodec.class.getName());
+
+    private static final String OPERATION = "operation";
+    private static final String TRANSACTION_ID = "transactionId";
+    private static final String SENDER = "sender";
+    private static final String DATA = "data";
+
+    private static final byte[] OPERATION_BYTES = OPERATION.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSACTION_ID_BYTES = TRANSACTION_ID.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SENDER_BYTES = SENDER.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DATA_BYTES = DATA.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL_BYTES = "null".getBytes(StandardCharsets.US_ASCII);
+
+    // Operations whose payload is never read by the service
+    private static final Set<Operation> WITHOUT_PAYLOAD = EnumSet.of(Operation.COMMIT, Operation.ABORT, Operation.RESULT);
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final byte[][] OPERATION_NAMES = new byte[OPERATIONS.length][];
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    // The first byte of a binary message, not valid as the start of a JSON text
+    private static final int BINARY_MAGIC = 0xB5;
+    private static final int BINARY_VERSION = 1;
+    private static final int NO_OPERATION = 0xFF;
+    // The flags of a binary message
+    private static final int HAS_TRANSACTION_ID = 1;
+    private static final int HAS_SENDER = 1 << 1;
+    private static final int JSON_DATA = 1 << 2;
+    private static final int STRING_DATA = 1 << 3;
+
+    static {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            OPERATION_NAMES[i] = OPERATIONS[i].name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final ObjectMapper mapper;
+    private final boolean compact;
+    // Names of the first peers seen, so the sender of a message doesn't need a new String each time.
+    // A slot is filled once and never evicted, the senders of later peers are decoded for every message.
+    private final AtomicReferenceArray<KnownSender> knownSenders = new AtomicReferenceArray<>(16);
+
+    // Peers that sent a binary message last, only they are answered with binary messages
+    private final boolean binaryEnabled = Boolean.parseBoolean(System.getProperty("rental.wire.binary.enabled", "true"));
+    private final int maxBinaryPeers = Integer.getInteger("rental.wire.maxBinaryPeers", 1024);
+    private final Set<InetSocketAddress> binaryPeers = ConcurrentHashMap.newKeySet();
+
+    private final ThreadLocal<OutputBuffer> outputBuffers = ThreadLocal.withInitial(OutputBuffer::new);
+    private final ThreadLocal<byte[]> unescapeBuffers = ThreadLocal.withInitial(() -> new byte[16384]);
+    private final ThreadLocal<byte[]> inputBuffers = ThreadLocal.withInitial(() -> new byte[16384]);
+
+    public UDPMessageCodec(ObjectMapper mapper) {
+        this.mapper = mapper;
+        this.compact = hasKnownLayout();
+
+        if (!compact) {
+            LOGGER.warning("Unknown UDPMessage layout, falling back to the ObjectMapper");
+        }
+    }
+
+    /**
+     * Parse a UDPMessage from a range of bytes, e.g. the content of a DatagramPacket
+     * @param buffer the buffer containing the message
+     * @param offset the offset of the message in the buffer
+     * @param length the length of the message
+     * @return the parsed message
+     * @throws IOException if the bytes are not a valid UDPMessage
+     */
+    public UDPMessage decode(byte[] buffer, int offset, int length) throws IOException {
+        if (length > 0 && (buffer[offset] & 0xFF) == BINARY_MAGIC) {
+            return decodeBinary(buffer, offset, offset + length);
+        }
+
+        if (compact) {
+            UDPMessage message = new Scanner(buffer, offset, offset + length).scan();
+            if (message != null) {
+                return message;
+            }
+        }
+
+        return mapper.readValue(buffer, offset, length, UDPMessage.class);
+    }
+
+    /**
+     * Parse a UDPMessage from the remaining bytes of a buffer, e.g. a datagram received into a direct buffer
+     * The bytes of a direct buffer are copied into an array of the calling thread first, the scanner works on arrays.
+     * @param datagram the buffer containing the message, its position is not changed
+     * @return the parsed message
+     * @throws IOException if the bytes are not a valid UDPMessage
+     */
+    public UDPMessage decode(ByteBuffer datagram) throws IOException {
+        if (datagram.hasArray()) {
+            return decode(datagram.array(), datagram.arrayOffset() + datagram.position(), datagram.remaining());
+        }
+
+        byte[] input = inputBuffers.get();
+        if (input.length < datagram.remaining()) {
+            input = new byte[datagram.remaining()];
+            inputBuffers.set(input);
+        }
+
+        int length = datagram.remaining();
+        datagram.get(datagram.position(), input, 0, length);
+        return decode(input, 0, length);
+    }
+
+    /**
+     * Parse a UDPMessage received from a peer and remember which format the peer uses
+     * @param datagram the buffer containing the message, its position is not changed
+     * @param sender the address of the peer
+     * @return the parsed message
+     * @throws IOException if the bytes are not a valid UDPMessage
+     */
+    public UDPMessage decode(ByteBuffer datagram, InetSocketAddress sender) throws IOException {
+        UDPMessage message = decode(datagram);
+
+        if (datagram.hasRemaining() && (datagram.get(datagram.position()) & 0xFF) == BINARY_MAGIC) {
+            // Peers beyond the limit are answered with JSON, which every peer understands
+            if (binaryPeers.size() < maxBinaryPeers) {
+                binaryPeers.add(sender);
+            }
+        } else if (!binaryPeers.isEmpty()) {
+            binaryPeers.remove(sender);
+        }
+
+        return message;
+    }
+
+    /**
+     * @param recipient the address of the peer
+     * @param port the port of the peer
+     * @return the format the messages to the peer are written in
+     */
+    public WireFormat formatFor(InetAddress recipient, int port) {
+        return binaryEnabled && !binaryPeers.isEmpty() && binaryPeers.contains(new InetSocketAddress(recipient, port)) ? WireFormat.BINARY : WireFormat.JSON;
+    }
+
+    /**
+     * @return the number of peers that are answered with binary messages
+     */
+    public int getBinaryPeers() {
+        return binaryPeers.size();
+    }
+
+    /**
+     * Write a UDPMessage into the buffer of the calling thread
+     * @param message the message to write
+     * @return a buffer containing the message, only valid until the next call on the same thread
+     * @throws IOException if the message could not be written
+     */
+    public ByteBuffer encode(UDPMessage message) throws IOException {
+        return encode(message, null);
+    }
+
+    /**
+     * Write a UDPMessage with a payload that was already encoded into the buffer of the calling thread
+     * @param message the message to write, its data is replaced by the payload
+     * @param data the encoded payload or null to write the data of the message
+     * @return a buffer containing the message, only valid until the next call on the same thread
+     * @throws IOException if the message could not be written
+     */
+    public ByteBuffer encode(UDPMessage message, EncodedPayload data) throws IOException {
+        return encode(message, data, WireFormat.JSON);
+    }
+
+    /**
+     * Write a UDPMessage in a format into the buffer of the calling thread
+     * @param message the message to write, its data is replaced by the payload
+     * @param data the encoded payload or null to write the data of the message
+     * @param format the format to write the message in
+     * @return a buffer containing the message, only valid until the next call on the same thread
+     * @throws IOException if the message could not be written
+     */
+    public ByteBuffer encode(UDPMessage message, EncodedPayload data, WireFormat format) throws IOException {
+        OutputBuffer output = outputBuffers.get();
+        output.reset();
+
+        if (format == WireFormat.BINARY) {
+            encodeBinary(message, data, output);
+            return output.asByteBuffer();
+        }
+
+        if (!compact) {
+            UDPMessage withData = data == null ? message : new UDPMessage(message.getOperation(), message.getTransactionId(), message.getSender(), data.getJson());
+            mapper.writeValue(output, withData);
+            return output.asByteBuffer();
+        }
+
+        output.put('{');
+        output.writeField(OPERATION_BYTES);
+        if (message.getOperation() == null) {
+            output.put(NULL_BYTES);
+        } else {
+            output.put('"');
+            output.put(OPERATION_NAMES[message.getOperation().ordinal()]);
+            output.put('"');
+        }
+
+        output.put(',');
+        output.writeField(TRANSACTION_ID_BYTES);
+        output.writeUuid(message.getTransactionId());
+
+        output.put(',');
+        output.writeField(SENDER_BYTES);
+        output.writeString(message.getSender());
+
+        output.put(',');
+        output.writeField(DATA_BYTES);
+        if (data == null) {
+            output.writeString(message.getData());
+        } else {
+            output.put('"');
+            output.put(data.getBytes());
+            output.put('"');
+        }
+        output.put('}');
+
+        return output.asByteBuffer();
+    }
+
+    /**
+     * Write a UDPMessage and send it, reusing the buffers of the calling thread
+     * @param transport the transport to send the message with
+     * @param message the message to send
+     * @param recipient the address of the recipient
+     * @param port the port of the recipient
+     * @throws IOException if the message could not be written or sent
+     */
+    public void send(UdpTransport transport, UDPMessage message, InetAddress recipient, int port) throws IOException {
+        send(transport, message, null, recipient, port);
+    }
+
+    /**
+     * Write a UDPMessage with a payload that was already encoded and send it
+     * @param transport the transport to send the message with
+     * @param message the message to send, its data is replaced by the payload
+     * @param data the encoded payload or null to send the data of the message
+     * @param recipient the address of the recipient
+     * @param port the port of the recipient
+     * @throws IOException if the message could not be written or sent
+     */
+    public void send(UdpTransport transport, UDPMessage message, EncodedPayload data, InetAddress recipient, int port) throws IOException {
+        transport.send(encode(message, data, formatFor(recipient, port)), new InetSocketAddress(recipient, port));
+    }
+
+    private void encodeBinary(UDPMessage message, EncodedPayload data, OutputBuffer output) {
+        output.put(BINARY_MAGIC);
+        output.put(BINARY_VERSION);
+        output.put(message.getOperation() == null ? NO_OPERATION : message.getOperation().ordinal());
+        int flagsPosition = output.size();
+        output.put(0);
+        int flags = 0;
+
+        if (message.getTransactionId() != null) {
+            flags |= HAS_TRANSACTION_ID;
+            output.writeLong(message.getTransactionId().getMostSignificantBits());
+            output.writeLong(message.getTransactionId().getLeastSignificantBits());
+        }
+        if (message.getSender() != null) {
+            flags |= HAS_SENDER;
+            output.writeLengthPrefixed(message.getSender());
+        }
+
+        if (data != null) {
+            byte[] binary = data.getBinary();
+            if (binary != null) {
+                flags |= JSON_DATA;
+                output.put(binary);
+            } else {
+                flags |= STRING_DATA;
+                output.writeLengthPrefixed(data.getJson());
+            }
+        } else if (message.getData() != null) {
+            byte[] binary = null;
+            try {
+                binary = BinaryJson.fromJson(message.getData());
+            } catch (IOException e) {
+                // Not every payload has to be JSON, it is sent as it is
+            }
+
+            if (binary != null) {
+                flags |= JSON_DATA;
+                output.put(binary);
+            } else {
+                flags |= STRING_DATA;
+                output.writeLengthPrefixed(message.getData());
+            }
+        }
+
+        output.set(flagsPosition, flags);
+    }
+
+    private UDPMessage decodeBinary(byte[] buffer, int start, int end) throws IOException {
+        if (end - start < 4) {
+            throw new EOFException("Truncated binary message");
+        }
+        if ((buffer[start + 1] & 0xFF) != BINARY_VERSION) {
+            throw new IOException("Unsupported binary message version " + (buffer[start + 1] & 0xFF));
+        }
+
+        int operationIndex = buffer[start + 2] & 0xFF;
+        if (operationIndex != NO_OPERATION && operationIndex >= OPERATIONS.length) {
+            throw new IOException("Unknown operation " + operationIndex);
+        }
+        Operation operation = operationIndex == NO_OPERATION ? null : OPERATIONS[operationIndex];
+        int flags = buffer[start + 3] & 0xFF;
+        int position = start + 4;
+
+        UUID transactionId = null;
+        if ((flags & HAS_TRANSACTION_ID) != 0) {
+            if (end - position < 16) {
+                throw new EOFException("Truncated binary message");
+            }
+            ByteBuffer uuid = ByteBuffer.wrap(buffer, position, 16);
+            transactionId = new UUID(uuid.getLong(), uuid.getLong());
+            position += 16;
+        }
+
+        String sender = null;
+        if ((flags & HAS_SENDER) != 0) {
+            int length = readLength(buffer, position, end);
+            position = skipLength(buffer, position);
+            sender = sender(buffer, position, position + length);
+            position += length;
+        }
+
+        String data = null;
+        boolean readPayload = operation == null || !WITHOUT_PAYLOAD.contains(operation);
+        if ((flags & JSON_DATA) != 0) {
+            if (readPayload) {
+                data = BinaryJson.toJson(buffer, position, end - position);
+            }
+        } else if ((flags & STRING_DATA) != 0) {
+            int length = readLength(buffer, position, end);
+            position = skipLength(buffer, position);
+            if (readPayload) {
+                data = new String(buffer, position, length, StandardCharsets.UTF_8);
+            }
+        }
+
+        return new UDPMessage(operation, transactionId, sender, data);
+    }
+
+    /**
+     * Read the varint length at a position and check that as many bytes follow it
+     */
+    private static int readLength(byte[] buffer, int position, int end) throws EOFException {
+        long length = 0;
+        for (int shift = 0; position < end && shift < 35; shift += 7) {
+            int b = buffer[position++];
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (length > end - position) {
+                    break;
+                }
+                return (int) length;
+            }
+        }
+        throw new EOFException("Truncated binary message");
+    }
+
+    private static int skipLength(byte[] buffer, int position) {
+        while ((buffer[position] & 0x80) != 0) {
+            position++;
+        }
+        return position + 1;
+    }
+
+    /**
+     * Escape a string and encode it as UTF-8 the way it is written as a JSON string value
+     * @param value the string to escape
+     * @return the escaped bytes, without the surrounding quotes
+     */
+    static byte[] escape(String value) {
+        OutputBuffer output = new OutputBuffer(value.length() + 2);
+        output.writeString(value);
+        return output.copyOfRange(1, output.size() - 1);
+    }
+
+    private boolean hasKnownLayout() {
+        UDPMessage sample = new UDPMessage(Operation.COMMIT, UUID.randomUUID(), "sender", "data");
+        Set<String> fields = new HashSet<>();
+        mapper.valueToTree(sample).fieldNames().forEachRemaining(fields::add);
+        return fields.equals(Set.of(OPERATION, TRANSACTION_ID, SENDER, DATA));
+    }
+
+    private String sender(byte[] buffer, int start, int end) {
+        int slot = 0;
+        for (; slot < knownSenders.length(); slot++) {
+            KnownSender known = knownSenders.get(slot);
+            if (known == null) {
+                break;
+            }
+            if (Arrays.equals(known.bytes(), 0, known.bytes().length, buffer, start, end)) {
+                return known.name();
+            }
+        }
+
+        String sender = new String(buffer, start, end - start, StandardCharsets.UTF_8);
+        KnownSender known = new KnownSender(Arrays.copyOfRange(buffer, start, end), sender);
+        // Readers stop at the first empty slot, so the slots are filled in order.
+        // A slot taken by another thread in the meantime is skipped, the sender may then be known twice.
+        for (; slot < knownSenders.length(); slot++) {
+            if (knownSenders.compareAndSet(slot, null, known)) {
+                break;
+            }
+        }
+        return sender;
+    }
+
+    /**
+     * The name of a peer together with its UTF-8 bytes, published as one entry
+     */
+    private record KnownSender(byte[] bytes, String name) {
+    }
+
+    /**
+     * Scans a single UDPMessage, returns null as soon as it sees anything it doesn't handle
+     */
+    private final class Scanner {
+
+        private final byte[] buffer;
+        private final int end;
+        private int position;
+        // Bounds of the last scanned string, without the quotes
+        private int stringStart;
+        private int stringEnd;
+        private boolean escaped;
+
+        private Scanner(byte[] buffer, int start, int end) {
+            this.buffer = buffer;
+            this.position = start;
+            this.end = end;
+        }
+
+        private UDPMessage scan() {
+            Operation operation = null;
+            UUID transactionId = null;
+            String sender = null;
+            int dataStart = -1;
+            int dataEnd = -1;
+            boolean dataEscaped = false;
+
+            if (!consume('{')) {
+                return null;
+            }
+
+            if (!consume('}')) {
+                do {
+                    if (!string() || escaped || !consume(':')) {
+                        return null;
+                    }
+
+                    int keyStart = stringStart;
+                    int keyEnd = stringEnd;
+                    boolean isNull = consumeNull();
+
+                    if (!isNull && !string()) {
+                        return null;
+                    }
+
+                    if (isKey(OPERATION_BYTES, keyStart, keyEnd)) {
+                        operation = isNull ? null : operation();
+                        if (!isNull && operation == null) {
+                            return null;
+                        }
+                    } else if (isKey(TRANSACTION_ID_BYTES, keyStart, keyEnd)) {
+                        transactionId = isNull ? null : uuid();
+                        if (!isNull && transactionId == null) {
+                            return null;
+                        }
+                    } else if (isKey(SENDER_BYTES, keyStart, keyEnd)) {
+                        sender = isNull ? null : escaped ? unescape() : sender(buffer, stringStart, stringEnd);
+                        // An escape that is left to Jackson
+                        if (!isNull && sender == null) {
+                            return null;
+                        }
+                    } else if (isKey(DATA_BYTES, keyStart, keyEnd)) {
+                        if (!isNull) {
+                            dataStart = stringStart;
+                            dataEnd = stringEnd;
+                            dataEscaped = escaped;
+                        }
+                    } else {
+                        return null;
+                    }
+                } while (consume(','));
+
+                if (!consume('}')) {
+                    return null;
+                }
+            }
+
+            String data = null;
+            if (dataStart >= 0 && (operation == null || !WITHOUT_PAYLOAD.contains(operation))) {
+                stringStart = dataStart;
+                stringEnd = dataEnd;
+                data = dataEscaped ? unescape() : new String(buffer, dataStart, dataEnd - dataStart, StandardCharsets.UTF_8);
+                if (data == null) {
+                    return null;
+                }
+            }
+
+            return new UDPMessage(operation, transactionId, sender, data);
+        }
+
+        private void skipWhitespace() {
+            while (position < end && (buffer[position] == ' ' || buffer[position] == '\n' || buffer[position] == '\r' || buffer[position] == '\t')) {
+                position++;
+            }
+        }
+
+        private boolean consume(char expected) {
+            skipWhitespace();
+            if (position < end && buffer[position] == expected) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean consumeNull() {
+            skipWhitespace();
+            if (Arrays.equals(NULL_BYTES, 0, NULL_BYTES.length, buffer, position, Math.min(end, position + NULL_BYTES.length))) {
+                position += NULL_BYTES.length;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean string() {
+            if (!consume('"')) {
+                return false;
+            }
+
+            stringStart = position;
+            escaped = false;
+
+            while (position < end) {
+                byte b = buffer[position];
+                if (b == '"') {
+                    stringEnd = position++;
+                    return true;
+                }
+                if (b == '\\') {
+                    escaped = true;
+                    position++;
+                }
+                position++;
+            }
+
+            return false;
+        }
+
+        private boolean isKey(byte[] key, int start, int keyEnd) {
+            return Arrays.equals(key, 0, key.length, buffer, start, keyEnd);
+        }
+
+        private Operation operation() {
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                if (!escaped && isKey(OPERATION_NAMES[i], stringStart, stringEnd)) {
+                    return OPERATIONS[i];
+                }
+            }
+            return null;
+        }
+
+        private UUID uuid() {
+            if (escaped || stringEnd - stringStart != 36) {
+                return null;
+            }
+
+            long mostSignificant = 0;
+            long leastSignificant = 0;
+            int digits = 0;
+
+            for (int i = stringStart; i < stringEnd; i++) {
+                int offset = i - stringStart;
+                if (offset == 8 || offset == 13 || offset == 18 || offset == 23) {
+                    if (buffer[i] != '-') {
+                        return null;
+                    }
+                    continue;
+                }
+
+                int value = Character.digit(buffer[i], 16);
+                if (value < 0) {
+                    return null;
+                }
+
+                if (digits++ < 16) {
+                    mostSignificant = (mostSignificant << 4) | value;
+                } else {
+                    leastSignificant = (leastSignificant << 4) | value;
+                }
+            }
+
+            return new UUID(mostSignificant, leastSignificant);
+        }
+
+        /**
+         * Decode the escape sequences of the last scanned string into the scratch buffer of the thread
+         * @return the decoded string or null for escapes that are left to Jackson, like surrogate pairs
+         */
+        private String unescape() {
+            byte[] target = unescapeBuffers.get();
+            if (target.length < stringEnd - stringStart) {
+                target = new byte[stringEnd - stringStart];
+                unescapeBuffers.set(target);
+            }
+
+            int length = 0;
+            for (int i = stringStart; i < stringEnd; i++) {
+                byte b = buffer[i];
+                if (b != '\\') {
+                    target[length++] = b;
+                    continue;
+                }
+
+                byte escape = buffer[++i];
+                switch (escape) {
+                    case '"', '\\', '/' -> target[length++] = escape;
+                    case 'b' -> target[length++] = '\b';
+                    case 'f' -> target[length++] = '\f';
+                    case 'n' -> target[length++] = '\n';
+                    case 'r' -> target[length++] = '\r';
+                    case 't' -> target[length++] = '\t';
+                    case 'u' -> {
+                        if (i + 4 >= stringEnd) {
+                            return null;
+                        }
+
+                        int c = 0;
+                        for (int j = 1; j <= 4; j++) {
+                            int value = Character.digit(buffer[i + j], 16);
+                            if (value < 0) {
+                                return null;
+                            }
+                            c = (c << 4) | value;
+                        }
+                        i += 4;
+
+                        if (Character.isSurrogate((char) c)) {
+                            return null;
+                        } else if (c < 0x80) {
+                            target[length++] = (byte) c;
+                        } else if (c < 0x800) {
+                            target[length++] = (byte) (0xC0 | (c >> 6));
+                            target[length++] = (byte) (0x80 | (c & 0x3F));
+                        } else {
+                            target[length++] = (byte) (0xE0 | (c >> 12));
+                            target[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                            target[length++] = (byte) (0x80 | (c & 0x3F));
+                        }
+                    }
+                    default -> {
+                        return null;
+                    }
+                }
+            }
+
+            return new String(target, 0, length, StandardCharsets.UTF_8);
+        }
+
+    }
+
+    /**
+     * Output stream and packet reused by one thread
+     */
+    private static class OutputBuffer extends ByteArrayOutputStream {
+
+        private ByteBuffer view;
+
+        private OutputBuffer() {
+            this(16384);
+        }
+
+        private OutputBuffer(int size) {
+            super(size);
+        }
+
+        // The methods of ByteArrayOutputStream are synchronized, a buffer of one thread doesn't need that
+        private void put(int b) {
+            if (count == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            buf[count++] = (byte) b;
+        }
+
+        private void set(int position, int b) {
+            buf[position] = (byte) b;
+        }
+
+        private void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                put((int) (value >>> shift));
+            }
+        }
+
+        private void writeLengthPrefixed(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            for (int length = bytes.length; ; length >>>= 7) {
+                if ((length & ~0x7F) == 0) {
+                    put(length);
+                    break;
+                }
+                put((length & 0x7F) | 0x80);
+            }
+            put(bytes);
+        }
+
+        private byte[] copyOfRange(int from, int to) {
+            return Arrays.copyOfRange(buf, from, to);
+        }
+
+        private void put(byte[] bytes) {
+            if (count + bytes.length > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + bytes.length));
+            }
+            System.arraycopy(bytes, 0, buf, count, bytes.length);
+            count += bytes.length;
+        }
+
+        private void writeField(byte[] name) {
+            put('"');
+            put(name);
+            put('"');
+            put(':');
+        }
+
+        private void writeUuid(UUID uuid) {
+            if (uuid == null) {
+                put(NULL_BYTES);
+                return;
+            }
+
+            put('"');
+            writeHex(uuid.getMostSignificantBits() >>> 32, 8);
+            put('-');
+            writeHex(uuid.getMostSignificantBits() >>> 16, 4);
+            put('-');
+            writeHex(uuid.getMostSignificantBits(), 4);
+            put('-');
+            writeHex(uuid.getLeastSignificantBits() >>> 48, 4);
+            put('-');
+            writeHex(uuid.getLeastSignificantBits(), 12);
+            put('"');
+        }
+
+        private void writeHex(long value, int digits) {
+            for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+                put(HEX[(int) ((value >>> shift) & 0xF)]);
+            }
+        }
+
+        private void writeString(String value) {
+            if (value == null) {
+                put(NULL_BYTES);
+                return;
+            }
+
+            put('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+
+                if (c == '"' || c == '\\') {
+                    put('\\');
+                    put(c);
+                } else if (c < 0x20) {
+                    put('\\');
+                    put('u');
+                    writeHex(c, 4);
+                } else if (c < 0x80) {
+                    put(c);
+                } else if (c < 0x800) {
+                    put(0xC0 | (c >> 6));
+                    put(0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    put(0xF0 | (codePoint >> 18));
+                    put(0x80 | ((codePoint >> 12) & 0x3F));
+                    put(0x80 | ((codePoint >> 6) & 0x3F));
+                    put(0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // A lone surrogate can't be encoded in UTF-8, keep it as an escape
+                    put('\\');
+                    put('u');
+                    writeHex(c, 4);
+                } else {
+                    put(0xE0 | (c >> 12));
+                    put(0x80 | ((c >> 6) & 0x3F));
+                    put(0x80 | (c & 0x3F));
+                }
+            }
+            put('"');
+        }
+
+        private ByteBuffer asByteBuffer() {
+            // The view only has to be replaced when the stream had to grow its array
+            if (view == null || view.array() != buf) {
+                view = ByteBuffer.wrap(buf);
+            }
+            return view.limit(count).position(0);
+        }
+
+    }
+
+}
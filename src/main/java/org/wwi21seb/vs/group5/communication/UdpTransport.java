@@ -0,0 +1,217 @@
+package org.wwi21seb.vs.group5.communication;
+
+import org.wwi21seb.vs.group5.Logger.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The UDP transport of the service, built on DatagramChannels with direct buffers.
+ * Several receive channels are bound to the same port with SO_REUSEPORT, each one drained by its own thread,
+ * so the kernel spreads the incoming datagrams across cores by the address of their sender.
+ * Messages are sent on a channel of their own rather than from the receive loops, it is bound to the same port
+ * so peers that answer to the source of a datagram still reach the service. As a member of the port group
+ * it receives its share of the datagrams as well and is drained by one of the receive loops.
+ * Without SO_REUSEPORT, e.g. on Windows, a single channel receives and sends.
+ * Note that with SO_REUSEPORT a second instance on the same host can bind the port without an error
+ * and takes part of the traffic, the port isn't reserved exclusively anymore.
+ */
+public class UdpTransport implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.setupLogger(UdpTransport.class.getName());
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    private static final long RECEIVE_ERROR_PAUSE_MILLIS = 100;
+
+    /**
+     * Receives the datagrams of a receive loop, called on the thread of the loop
+     */
+    @FunctionalInterface
+    public interface DatagramHandler {
+
+        /**
+         * @param datagram the content of the datagram, only valid until the method returns
+         * @param sender the address of the sender
+         */
+        void handle(ByteBuffer datagram, InetSocketAddress sender);
+
+    }
+
+    private final List<DatagramChannel> receiveChannels = new ArrayList<>();
+    private final DatagramChannel sendChannel;
+    private final int datagramSize;
+    private final ThreadLocal<ByteBuffer> sendBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(16384));
+    private volatile boolean closed = false;
+
+    /**
+     * Bind the channels of the transport
+     * @param port the port to receive on, 0 for an ephemeral port
+     * @param receiveLoops the number of receive loops, one of them drains the send channel
+     * @param receiveBufferSize the SO_RCVBUF of every channel, the OS may cap it
+     * @param datagramSize the maximum size of a received datagram
+     * @throws IOException if the port could not be bound
+     */
+    public UdpTransport(int port, int receiveLoops, int receiveBufferSize, int datagramSize) throws IOException {
+        this.datagramSize = Math.min(datagramSize, MAX_DATAGRAM_SIZE);
+
+        boolean reusePort;
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            reusePort = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+        if (!reusePort && receiveLoops > 1) {
+            LOGGER.warning("SO_REUSEPORT is not supported, receiving and sending on a single channel");
+        }
+
+        try {
+            this.sendChannel = open(port, receiveBufferSize, reusePort);
+            receiveChannels.add(sendChannel);
+
+            // The others join the port of the first channel, which matters if it was ephemeral
+            int boundPort = getPort();
+            for (int i = 1; reusePort && i < receiveLoops; i++) {
+                receiveChannels.add(open(boundPort, receiveBufferSize, true));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        LOGGER.log(Level.INFO, "Bound {0} channel(s) to port {1} with a receive buffer of {2} bytes",
+                new Object[]{receiveChannels.size(), String.valueOf(getPort()), String.valueOf(sendChannel.getOption(StandardSocketOptions.SO_RCVBUF))});
+    }
+
+    private static DatagramChannel open(int port, int receiveBufferSize, boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        if (reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        channel.bind(new InetSocketAddress(port));
+        return channel;
+    }
+
+    /**
+     * Run the receive loops until the transport is closed
+     * @param handler receives the datagrams
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public void run(DatagramHandler handler) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < receiveChannels.size(); i++) {
+            DatagramChannel channel = receiveChannels.get(i);
+            Thread thread = new Thread(() -> receive(channel, handler), "udp-receive-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Drain a channel until the transport is closed
+     * A loop must not end while its channel is bound, the kernel keeps routing its share of the peers to the channel
+     * and their datagrams would be dropped. Errors are logged and the loop goes on with the next datagram.
+     */
+    private void receive(DatagramChannel channel, DatagramHandler handler) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(datagramSize);
+
+        while (!closed) {
+            SocketAddress sender;
+
+            try {
+                buffer.clear();
+                sender = channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (closed) {
+                    break;
+                }
+
+                LOGGER.log(Level.WARNING, "Error while receiving message", e);
+                // Don't spin on an error that persists, e.g. while the network is down
+                try {
+                    Thread.sleep(RECEIVE_ERROR_PAUSE_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                continue;
+            }
+
+            buffer.flip();
+            try {
+                handler.handle(buffer, (InetSocketAddress) sender);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Error while handling a datagram", e);
+            }
+        }
+    }
+
+    /**
+     * Send a datagram on the send channel, from a direct buffer of the calling thread
+     * @param datagram the content of the datagram, it is consumed
+     * @param recipient the address of the recipient
+     * @throws IOException if the datagram could not be sent
+     */
+    public void send(ByteBuffer datagram, InetSocketAddress recipient) throws IOException {
+        ByteBuffer buffer = sendBuffers.get();
+        if (buffer.capacity() < datagram.remaining()) {
+            buffer = ByteBuffer.allocateDirect(Math.max(datagram.remaining(), buffer.capacity() * 2));
+            sendBuffers.set(buffer);
+        }
+
+        buffer.clear();
+        buffer.put(datagram).flip();
+        sendChannel.send(buffer, recipient);
+    }
+
+    /**
+     * @return the number of receive loops, including the one of the send channel
+     */
+    public int getReceiveLoops() {
+        return receiveChannels.size();
+    }
+
+    /**
+     * @return the local port of the channels, e.g. if they were bound to an ephemeral port
+     * @throws IOException if the channels are closed
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) sendChannel.getLocalAddress()).getPort();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close all channels, the receive loops end
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        for (DatagramChannel channel : receiveChannels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error while closing a channel", e);
+            }
+        }
+    }
+
+}
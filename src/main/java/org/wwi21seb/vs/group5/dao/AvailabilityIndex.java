@@ -0,0 +1,468 @@
+package org.wwi21seb.vs.group5.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * In-memory index of the capacity and the booked date ranges of every car.
+ * The remaining car data is looked up in the {@link CarCache}.
+ * The index is loaded from the database once and afterwards kept up to date
+ * by the RentalDAO whenever a rental is reserved or removed, so availability
+ * searches can be answered without a database round trip.
+ * Date ranges are inclusive on both ends, like the start and end date of a rental.
+ * A booking of a single car has the ID of its rental, the rentals of a booking
+ * of several cars share its booking ID.
+ * Changes are serialized with the lock of the index, searches don't take it.
+ */
+public class AvailabilityIndex {
+
+    /**
+     * Is told about every change of the availability, after the index was updated
+     */
+    public interface ChangeListener {
+
+        /**
+         * The availability of a car changed in a date range
+         * @param startDay the first day of the range as epoch day
+         * @param endDay the last day of the range as epoch day
+         */
+        void availabilityChanged(long startDay, long endDay);
+
+        /**
+         * The whole fleet may have changed, e.g. after a reload
+         */
+        void allChanged();
+
+    }
+
+    private static final ChangeListener NO_LISTENER = new ChangeListener() {
+        @Override
+        public void availabilityChanged(long startDay, long endDay) {
+        }
+
+        @Override
+        public void allChanged() {
+        }
+    };
+
+    private volatile List<CarBookings> fleetByCapacity = List.of();
+    private volatile Map<UUID, CarBookings> fleet = Map.of();
+    private Map<UUID, UUID> rentalCars = new HashMap<>();
+    // Rentals of the bookings of several cars, single car bookings are not kept here
+    private Map<UUID, List<UUID>> bookingRentals = new HashMap<>();
+    private final ChangeListener listener;
+    // Changes made while a load reads the database, they are applied again to the loaded content
+    private List<Runnable> changesDuringLoad;
+    private final Object loadLock = new Object();
+
+    public AvailabilityIndex() {
+        this(NO_LISTENER);
+    }
+
+    /**
+     * @param listener is told about every change of the availability
+     */
+    public AvailabilityIndex(ChangeListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Load the fleet and all rentals from the database, replacing the current content
+     * The index keeps answering from the current content while the database is read.
+     * A rental added or removed in the meantime may be missing from what was read,
+     * so every change made during the load is applied again before the loaded content is used.
+     * @param conn the connection to load the data with
+     * @throws SQLException if the data could not be loaded
+     */
+    public void load(Connection conn) throws SQLException {
+        synchronized (loadLock) {
+            synchronized (this) {
+                changesDuringLoad = new ArrayList<>();
+            }
+
+            try {
+                loadAndReplace(conn);
+            } finally {
+                synchronized (this) {
+                    changesDuringLoad = null;
+                }
+            }
+        }
+
+        listener.allChanged();
+    }
+
+    private void loadAndReplace(Connection conn) throws SQLException {
+        Map<UUID, CarBookings> cars = new HashMap<>();
+
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT car_id, capacity FROM cars");
+             ResultSet resultSet = stmt.executeQuery()) {
+            while (resultSet.next()) {
+                UUID carId = resultSet.getObject("car_id", UUID.class);
+                cars.put(carId, new CarBookings(carId, resultSet.getInt("capacity")));
+            }
+        }
+
+        Map<UUID, UUID> rentals = new HashMap<>();
+        Map<UUID, List<UUID>> multiCarBookings = new HashMap<>();
+        Map<UUID, List<Booking>> bookingsByCar = new HashMap<>();
+
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT rental_id, booking_id, car_id, start_date, end_date FROM rentals");
+             ResultSet resultSet = stmt.executeQuery()) {
+            while (resultSet.next()) {
+                UUID rentalId = resultSet.getObject("rental_id", UUID.class);
+                UUID bookingId = resultSet.getObject("booking_id", UUID.class);
+                UUID carId = resultSet.getObject("car_id", UUID.class);
+                CarBookings bookings = cars.get(carId);
+
+                if (bookings != null) {
+                    Booking booking = new Booking(rentalId, resultSet.getDate("start_date").toLocalDate().toEpochDay(), resultSet.getDate("end_date").toLocalDate().toEpochDay());
+                    bookingsByCar.computeIfAbsent(carId, id -> new ArrayList<>()).add(booking);
+                    rentals.put(rentalId, carId);
+
+                    if (bookingId != null && !bookingId.equals(rentalId)) {
+                        multiCarBookings.computeIfAbsent(bookingId, id -> new ArrayList<>()).add(rentalId);
+                    }
+                }
+            }
+        }
+
+        bookingsByCar.forEach((carId, bookings) -> cars.get(carId).intervals = Intervals.of(bookings));
+
+        synchronized (this) {
+            List<Runnable> changes = changesDuringLoad;
+            changesDuringLoad = null;
+
+            setFleet(cars);
+            rentalCars = rentals;
+            bookingRentals = multiCarBookings;
+            // Adding a rental that was read already or removing one that wasn't changes nothing
+            changes.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * Add, update or remove a car after it changed in the database, keeping its bookings
+     * @param carId the ID of the car
+     * @param capacity the new capacity of the car or null if it was deleted
+     */
+    public synchronized void updateCar(UUID carId, Integer capacity) {
+        if (changesDuringLoad != null) {
+            changesDuringLoad.add(() -> updateCar(carId, capacity));
+        }
+
+        Map<UUID, CarBookings> cars = new HashMap<>(fleet);
+
+        if (capacity == null) {
+            cars.remove(carId);
+        } else if (cars.containsKey(carId)) {
+            // The bookings stay the same object, so no rental added in the meantime is lost
+            cars.get(carId).capacity = capacity;
+        } else {
+            cars.put(carId, new CarBookings(carId, capacity));
+        }
+
+        setFleet(cars);
+        listener.allChanged();
+    }
+
+    private synchronized void setFleet(Map<UUID, CarBookings> cars) {
+        // Largest cars first, so a search can stop at the first car that is too small
+        List<CarBookings> byCapacity = new ArrayList<>(cars.values());
+        byCapacity.sort(Comparator.comparingInt((CarBookings bookings) -> bookings.capacity).reversed());
+
+        this.fleet = Map.copyOf(cars);
+        this.fleetByCapacity = List.copyOf(byCapacity);
+    }
+
+    /**
+     * Find all cars with enough capacity that are not booked in the given date range
+     * @param numberOfPersons the minimum capacity of the car
+     * @param startDate the first day of the date range
+     * @param endDate the last day of the date range
+     * @return the IDs of the available cars, largest cars first
+     */
+    public List<UUID> findAvailableCars(int numberOfPersons, LocalDate startDate, LocalDate endDate) {
+        long start = startDate.toEpochDay();
+        long end = endDate.toEpochDay();
+        List<UUID> carIds = new ArrayList<>();
+
+        for (CarBookings bookings : fleetByCapacity) {
+            if (bookings.capacity < numberOfPersons) {
+                break;
+            }
+
+            if (!bookings.overlaps(start, end)) {
+                carIds.add(bookings.carId);
+            }
+        }
+
+        return carIds;
+    }
+
+    /**
+     * Same as {@link #findAvailableCars(int, LocalDate, LocalDate)} but only returns the IDs of the cars
+     */
+    public Set<UUID> findAvailableCarIds(int numberOfPersons, LocalDate startDate, LocalDate endDate) {
+        long start = startDate.toEpochDay();
+        long end = endDate.toEpochDay();
+        Set<UUID> carIds = new HashSet<>();
+
+        for (CarBookings bookings : fleetByCapacity) {
+            if (bookings.capacity < numberOfPersons) {
+                break;
+            }
+
+            if (!bookings.overlaps(start, end)) {
+                carIds.add(bookings.carId);
+            }
+        }
+
+        return carIds;
+    }
+
+    /**
+     * Check whether a car is free in the given date range
+     * @param carId the ID of the car
+     * @param startDate the first day of the date range
+     * @param endDate the last day of the date range
+     * @return true if the car exists and has no booking overlapping the date range
+     */
+    public boolean isAvailable(UUID carId, LocalDate startDate, LocalDate endDate) {
+        CarBookings bookings = fleet.get(carId);
+        return bookings != null && !bookings.overlaps(startDate.toEpochDay(), endDate.toEpochDay());
+    }
+
+    /**
+     * Record a new rental of a car
+     * @param rentalId the ID of the rental
+     * @param carId the ID of the rented car
+     * @param startDate the first day of the rental
+     * @param endDate the last day of the rental
+     */
+    public void addRental(UUID rentalId, UUID carId, LocalDate startDate, LocalDate endDate) {
+        addRental(rentalId, rentalId, carId, startDate, endDate);
+    }
+
+    /**
+     * Record a new rental that is part of a booking
+     * @param rentalId the ID of the rental
+     * @param bookingId the ID of the booking the rental belongs to
+     * @param carId the ID of the rented car
+     * @param startDate the first day of the rental
+     * @param endDate the last day of the rental
+     */
+    public synchronized void addRental(UUID rentalId, UUID bookingId, UUID carId, LocalDate startDate, LocalDate endDate) {
+        if (changesDuringLoad != null) {
+            changesDuringLoad.add(() -> addRental(rentalId, bookingId, carId, startDate, endDate));
+        }
+
+        CarBookings bookings = fleet.get(carId);
+
+        if (bookings != null && rentalCars.putIfAbsent(rentalId, carId) == null) {
+            bookings.add(rentalId, startDate.toEpochDay(), endDate.toEpochDay());
+            listener.availabilityChanged(startDate.toEpochDay(), endDate.toEpochDay());
+
+            if (!bookingId.equals(rentalId)) {
+                bookingRentals.computeIfAbsent(bookingId, id -> new ArrayList<>()).add(rentalId);
+            }
+        }
+    }
+
+    /**
+     * Remove all rentals of a booking
+     * @param bookingId the ID of the booking
+     */
+    public synchronized void removeBooking(UUID bookingId) {
+        if (changesDuringLoad != null) {
+            changesDuringLoad.add(() -> removeBooking(bookingId));
+        }
+
+        List<UUID> rentalIds = bookingRentals.remove(bookingId);
+
+        if (rentalIds == null) {
+            remove(bookingId);
+            return;
+        }
+
+        for (UUID rentalId : rentalIds) {
+            remove(rentalId);
+        }
+    }
+
+    /**
+     * Remove a rental, freeing its date range again
+     * @param rentalId the ID of the rental
+     */
+    public synchronized void removeRental(UUID rentalId) {
+        if (changesDuringLoad != null) {
+            changesDuringLoad.add(() -> removeRental(rentalId));
+        }
+
+        remove(rentalId);
+    }
+
+    private void remove(UUID rentalId) {
+        UUID carId = rentalCars.remove(rentalId);
+
+        if (carId != null) {
+            CarBookings bookings = fleet.get(carId);
+            Booking removed = bookings == null ? null : bookings.remove(rentalId);
+
+            if (removed != null) {
+                listener.availabilityChanged(removed.start(), removed.end());
+            }
+        }
+    }
+
+    /**
+     * The bookings of a single car.
+     * The intervals are kept in immutable arrays sorted by start date together with the running
+     * maximum of the end dates, readers never lock and writers replace the arrays as a whole.
+     */
+    private static final class CarBookings {
+
+        private final UUID carId;
+        private volatile int capacity;
+        private volatile Intervals intervals = Intervals.EMPTY;
+
+        private CarBookings(UUID carId, int capacity) {
+            this.carId = carId;
+            this.capacity = capacity;
+        }
+
+        private boolean overlaps(long start, long end) {
+            return intervals.overlaps(start, end);
+        }
+
+        private synchronized void add(UUID rentalId, long start, long end) {
+            intervals = intervals.with(rentalId, start, end);
+        }
+
+        private synchronized Booking remove(UUID rentalId) {
+            Intervals current = intervals;
+
+            for (int i = 0; i < current.ids().length; i++) {
+                if (current.ids()[i].equals(rentalId)) {
+                    intervals = current.without(rentalId);
+                    return new Booking(rentalId, current.starts()[i], current.ends()[i]);
+                }
+            }
+
+            return null;
+        }
+
+    }
+
+    private record Booking(UUID rentalId, long start, long end) {
+    }
+
+    private record Intervals(UUID[] ids, long[] starts, long[] ends, long[] maxEnds) {
+
+        private static final Intervals EMPTY = new Intervals(new UUID[0], new long[0], new long[0], new long[0]);
+
+        private boolean overlaps(long start, long end) {
+            // Find the last interval starting on or before the end of the range,
+            // it overlaps if any interval up to it ends on or after the start of the range
+            int low = 0;
+            int high = starts.length - 1;
+            int last = -1;
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] <= end) {
+                    last = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            return last >= 0 && maxEnds[last] >= start;
+        }
+
+        private Intervals with(UUID rentalId, long start, long end) {
+            int size = starts.length;
+            int position = 0;
+            while (position < size && starts[position] <= start) {
+                position++;
+            }
+
+            UUID[] newIds = new UUID[size + 1];
+            long[] newStarts = new long[size + 1];
+            long[] newEnds = new long[size + 1];
+
+            System.arraycopy(ids, 0, newIds, 0, position);
+            System.arraycopy(starts, 0, newStarts, 0, position);
+            System.arraycopy(ends, 0, newEnds, 0, position);
+            newIds[position] = rentalId;
+            newStarts[position] = start;
+            newEnds[position] = end;
+            System.arraycopy(ids, position, newIds, position + 1, size - position);
+            System.arraycopy(starts, position, newStarts, position + 1, size - position);
+            System.arraycopy(ends, position, newEnds, position + 1, size - position);
+
+            return of(newIds, newStarts, newEnds);
+        }
+
+        private Intervals without(UUID rentalId) {
+            int size = starts.length;
+            int position = 0;
+            while (position < size && !ids[position].equals(rentalId)) {
+                position++;
+            }
+
+            if (position == size) {
+                return this;
+            }
+
+            UUID[] newIds = new UUID[size - 1];
+            long[] newStarts = new long[size - 1];
+            long[] newEnds = new long[size - 1];
+
+            System.arraycopy(ids, 0, newIds, 0, position);
+            System.arraycopy(starts, 0, newStarts, 0, position);
+            System.arraycopy(ends, 0, newEnds, 0, position);
+            System.arraycopy(ids, position + 1, newIds, position, size - position - 1);
+            System.arraycopy(starts, position + 1, newStarts, position, size - position - 1);
+            System.arraycopy(ends, position + 1, newEnds, position, size - position - 1);
+
+            return of(newIds, newStarts, newEnds);
+        }
+
+        private static Intervals of(List<Booking> bookings) {
+            List<Booking> sorted = new ArrayList<>(bookings);
+            sorted.sort(Comparator.comparingLong(Booking::start));
+
+            UUID[] ids = new UUID[sorted.size()];
+            long[] starts = new long[sorted.size()];
+            long[] ends = new long[sorted.size()];
+
+            for (int i = 0; i < sorted.size(); i++) {
+                ids[i] = sorted.get(i).rentalId();
+                starts[i] = sorted.get(i).start();
+                ends[i] = sorted.get(i).end();
+            }
+
+            return of(ids, starts, ends);
+        }
+
+        private static Intervals of(UUID[] ids, long[] starts, long[] ends) {
+            long[] maxEnds = new long[ends.length];
+            long max = Long.MIN_VALUE;
+
+            for (int i = 0; i < ends.length; i++) {
+                max = Math.max(max, ends[i]);
+                maxEnds[i] = max;
+            }
+
+            return new Intervals(ids, starts, ends, maxEnds);
+        }
+
+    }
+
+}
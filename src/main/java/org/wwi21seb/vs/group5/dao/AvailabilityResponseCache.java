@@ -0,0 +1,158 @@
+package org.wwi21seb.vs.group5.dao;
+
+import org.wwi21seb.vs.group5.communication.EncodedPayload;
+import org.wwi21seb.vs.group5.metrics.MetricsRegistry;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of encoded availability responses, keyed by the normalized search.
+ * Every change of the availability index removes the entries whose date range overlaps it.
+ * A response is computed without holding a lock, so a change may happen in between.
+ * The cache therefore remembers the latest changes and refuses to store a response
+ * that was computed before an overlapping change, which would show a car as available
+ * that was reserved in the meantime or the other way around.
+ */
+public class AvailabilityResponseCache implements AvailabilityIndex.ChangeListener {
+
+    private static final int HISTORY_SIZE = 1024;
+
+    private final int maxSize;
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    // The last changes as a ring buffer, indexed by their sequence number
+    private final long[] changedStarts = new long[HISTORY_SIZE];
+    private final long[] changedEnds = new long[HISTORY_SIZE];
+    private long sequence = 0;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder invalidations;
+
+    /**
+     * @param maxSize the maximum number of cached responses
+     */
+    public AvailabilityResponseCache(int maxSize) {
+        this.maxSize = maxSize;
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.hits = metrics.counter("rental_availability_cache_hits_total", "Availability searches answered with a cached response");
+        this.misses = metrics.counter("rental_availability_cache_misses_total", "Availability searches answered from the index");
+        this.invalidations = metrics.counter("rental_availability_cache_invalidations_total", "Cached availability responses removed by a change");
+        metrics.gauge("rental_availability_cache_size", "Cached availability responses", entries::size);
+    }
+
+    /**
+     * Get a cached response
+     * @param key the normalized search
+     * @return the encoded response or null if it is not cached
+     */
+    public EncodedPayload get(Key key) {
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        entry.lastAccess = System.nanoTime();
+        return entry.payload;
+    }
+
+    /**
+     * @return the sequence number of the latest change, to be taken before a response is computed
+     */
+    public synchronized long currentSequence() {
+        return sequence;
+    }
+
+    /**
+     * Cache a response unless the availability in its date range changed while it was computed
+     * @param key the normalized search
+     * @param payload the encoded response
+     * @param computedAfter the sequence number taken before the response was computed
+     */
+    public synchronized void put(Key key, EncodedPayload payload, long computedAfter) {
+        if (sequence - computedAfter >= HISTORY_SIZE) {
+            // Too many changes to tell whether one of them overlaps
+            return;
+        }
+
+        for (long change = computedAfter + 1; change <= sequence; change++) {
+            int slot = (int) (change % HISTORY_SIZE);
+            if (overlaps(key, changedStarts[slot], changedEnds[slot])) {
+                return;
+            }
+        }
+
+        if (entries.size() >= maxSize && !entries.containsKey(key)) {
+            evictLeastRecentlyUsed();
+        }
+        entries.put(key, new Entry(payload));
+    }
+
+    @Override
+    public synchronized void availabilityChanged(long startDay, long endDay) {
+        sequence++;
+        int slot = (int) (sequence % HISTORY_SIZE);
+        changedStarts[slot] = startDay;
+        changedEnds[slot] = endDay;
+
+        for (Key key : entries.keySet()) {
+            if (overlaps(key, startDay, endDay)) {
+                entries.remove(key);
+                invalidations.increment();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void allChanged() {
+        // A change covering every day
+        availabilityChanged(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    private static boolean overlaps(Key key, long startDay, long endDay) {
+        return key.startDay() <= endDay && key.endDay() >= startDay;
+    }
+
+    private void evictLeastRecentlyUsed() {
+        Key oldest = null;
+        long oldestAccess = Long.MAX_VALUE;
+
+        for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().lastAccess < oldestAccess) {
+                oldest = entry.getKey();
+                oldestAccess = entry.getValue().lastAccess;
+            }
+        }
+
+        if (oldest != null) {
+            entries.remove(oldest);
+        }
+    }
+
+    /**
+     * A normalized availability search
+     * @param startDay the first day of the range as epoch day
+     * @param endDay the last day of the range as epoch day
+     * @param numberOfPersons the minimum capacity of the cars
+     */
+    public record Key(long startDay, long endDay, int numberOfPersons) {
+    }
+
+    private static final class Entry {
+
+        private final EncodedPayload payload;
+        private volatile long lastAccess = System.nanoTime();
+
+        private Entry(EncodedPayload payload) {
+            this.payload = payload;
+        }
+
+    }
+
+}
@@ -0,0 +1,217 @@
+package org.wwi21seb.vs.group5.dao;
+
+import org.wwi21seb.vs.group5.Model.Car;
+import org.wwi21seb.vs.group5.communication.DatabaseConnection;
+import org.wwi21seb.vs.group5.metrics.MetricsRegistry;
+
+import java.math.BigDecimal;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded read-through cache of the car master data, keyed by car ID.
+ * Entries expire after a fixed time and the least recently used entry is evicted
+ * once the cache is full. Misses of a lookup are loaded from the database with a single query.
+ * Changes to the cars table are announced through {@link CarChangeListener} or by an admin,
+ * and invalidate the affected entries right away.
+ */
+public class CarCache {
+
+    private static final String SELECT_SQL = "SELECT car_id, model, manufacturer, capacity, price_per_day FROM cars";
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LinkedHashMap<UUID, CachedCar> cars;
+    // Incremented by every invalidation, loads that started before one are not cached
+    private long generation = 0;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    /**
+     * @param maxSize the maximum number of cached cars
+     * @param ttl the time after which a cached car is loaded again
+     * @param unit the unit of the ttl
+     */
+    public CarCache(int maxSize, long ttl, TimeUnit unit) {
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.cars = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, CachedCar> eldest) {
+                if (size() > CarCache.this.maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.hits = metrics.counter("rental_car_cache_hits_total", "Car lookups answered by the cache");
+        this.misses = metrics.counter("rental_car_cache_misses_total", "Car lookups loaded from the database");
+        this.evictions = metrics.counter("rental_car_cache_evictions_total", "Cars evicted from the full cache");
+        metrics.gauge("rental_car_cache_size", "Cars held in the cache", this::size);
+    }
+
+    /**
+     * Fill the cache with the first cars of the table, up to its maximum size
+     * @param conn the connection to load the cars with
+     * @throws SQLException if the cars could not be loaded
+     */
+    public void preload(Connection conn) throws SQLException {
+        long loadedGeneration = currentGeneration();
+        Map<UUID, CachedCar> loaded = new HashMap<>();
+
+        try (PreparedStatement stmt = conn.prepareStatement(SELECT_SQL + " LIMIT ?")) {
+            stmt.setInt(1, maxSize);
+            read(stmt, loaded, System.nanoTime() + ttlNanos);
+        }
+
+        store(loaded, loadedGeneration);
+    }
+
+    /**
+     * Get a car
+     * @param carId the ID of the car
+     * @return the car or null if it doesn't exist
+     * @throws SQLException if the car had to be loaded and could not be
+     */
+    public CachedCar get(UUID carId) throws SQLException {
+        return getAll(List.of(carId)).get(0);
+    }
+
+    /**
+     * Get several cars, the missing ones are loaded together
+     * @param carIds the IDs of the cars
+     * @return the cars in the order of their IDs, null for cars that don't exist
+     * @throws SQLException if cars had to be loaded and could not be
+     */
+    public List<CachedCar> getAll(List<UUID> carIds) throws SQLException {
+        long now = System.nanoTime();
+        CachedCar[] result = new CachedCar[carIds.size()];
+        List<UUID> missing = new ArrayList<>();
+        long loadedGeneration;
+
+        synchronized (cars) {
+            loadedGeneration = generation;
+
+            for (int i = 0; i < result.length; i++) {
+                CachedCar car = cars.get(carIds.get(i));
+                if (car != null && car.expiresAtNanos() - now > 0) {
+                    result[i] = car;
+                } else {
+                    missing.add(carIds.get(i));
+                }
+            }
+        }
+
+        hits.add(result.length - missing.size());
+
+        if (!missing.isEmpty()) {
+            misses.add(missing.size());
+            Map<UUID, CachedCar> loaded = load(missing, now + ttlNanos);
+            store(loaded, loadedGeneration);
+
+            for (int i = 0; i < result.length; i++) {
+                if (result[i] == null) {
+                    result[i] = loaded.get(carIds.get(i));
+                }
+            }
+        }
+
+        return Arrays.asList(result);
+    }
+
+    /**
+     * Drop a car from the cache, it is loaded again on the next lookup
+     * @param carId the ID of the car
+     */
+    public void invalidate(UUID carId) {
+        synchronized (cars) {
+            generation++;
+            cars.remove(carId);
+        }
+    }
+
+    /**
+     * Drop all cars from the cache
+     */
+    public void invalidateAll() {
+        synchronized (cars) {
+            generation++;
+            cars.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (cars) {
+            return cars.size();
+        }
+    }
+
+    private long currentGeneration() {
+        synchronized (cars) {
+            return generation;
+        }
+    }
+
+    private void store(Map<UUID, CachedCar> loaded, long loadedGeneration) {
+        synchronized (cars) {
+            // The cars may have changed while they were loaded, they are loaded again next time
+            if (generation == loadedGeneration) {
+                cars.putAll(loaded);
+            }
+        }
+    }
+
+    private Map<UUID, CachedCar> load(List<UUID> carIds, long expiresAtNanos) throws SQLException {
+        Map<UUID, CachedCar> loaded = new HashMap<>();
+
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(SELECT_SQL + " WHERE car_id = ANY (?)")) {
+            Array ids = conn.createArrayOf("uuid", carIds.toArray());
+            try {
+                stmt.setArray(1, ids);
+                read(stmt, loaded, expiresAtNanos);
+            } finally {
+                ids.free();
+            }
+        }
+
+        return loaded;
+    }
+
+    private static void read(PreparedStatement stmt, Map<UUID, CachedCar> loaded, long expiresAtNanos) throws SQLException {
+        try (ResultSet resultSet = stmt.executeQuery()) {
+            while (resultSet.next()) {
+                UUID carId = resultSet.getObject("car_id", UUID.class);
+                int capacity = resultSet.getInt("capacity");
+                BigDecimal pricePerDay = resultSet.getBigDecimal("price_per_day");
+                Car car = new Car(
+                        carId,
+                        resultSet.getString("model"),
+                        resultSet.getString("manufacturer"),
+                        capacity,
+                        pricePerDay == null ? 0 : pricePerDay.doubleValue()
+                );
+
+                loaded.put(carId, new CachedCar(carId, car, capacity, pricePerDay, expiresAtNanos));
+            }
+        }
+    }
+
+    /**
+     * A cached car together with the fields the DAO needs to work with
+     */
+    public record CachedCar(UUID carId, Car car, int capacity, BigDecimal pricePerDay, long expiresAtNanos) {
+    }
+
+}
@@ -0,0 +1,106 @@
+package org.wwi21seb.vs.group5.dao;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.wwi21seb.vs.group5.Logger.LoggerFactory;
+import org.wwi21seb.vs.group5.communication.DatabaseConnection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Listens for changes of the cars table, which the trigger of the V3 migration announces
+ * on the cars_changed channel with the ID of the changed car.
+ * The listener holds its own connection outside of the pool. While it is reconnecting
+ * notifications may be lost, so everything is treated as changed once it is listening again.
+ */
+public class CarChangeListener {
+
+    private static final Logger LOGGER = LoggerFactory.setupLogger(CarChangeListener.class.getName());
+    private static final String CHANNEL = "cars_changed";
+    private static final int POLL_TIMEOUT_MILLIS = 1000;
+    private static final long RECONNECT_DELAY_MILLIS = 5000;
+
+    private final Consumer<UUID> onCarChanged;
+    private final Runnable onAllChanged;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Create the listener and start listening in the background
+     * @param onCarChanged called with the ID of every changed car
+     * @param onAllChanged called after (re)connecting, when changes may have been missed
+     */
+    public CarChangeListener(Consumer<UUID> onCarChanged, Runnable onAllChanged) {
+        this.onCarChanged = onCarChanged;
+        this.onAllChanged = onAllChanged;
+        this.thread = new Thread(this::listen, "car-change-listener");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    private void listen() {
+        boolean connectedBefore = false;
+
+        while (running) {
+            try (Connection conn = DatabaseConnection.openDedicatedConnection()) {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("LISTEN " + CHANNEL);
+                }
+
+                if (connectedBefore) {
+                    onAllChanged.run();
+                }
+                connectedBefore = true;
+                LOGGER.log(Level.INFO, "Listening for changes on {0}", CHANNEL);
+
+                PGConnection pgConnection = conn.unwrap(PGConnection.class);
+                while (running) {
+                    PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT_MILLIS);
+                    if (notifications == null) {
+                        continue;
+                    }
+
+                    for (PGNotification notification : notifications) {
+                        handle(notification.getParameter());
+                    }
+                }
+            } catch (SQLException e) {
+                LOGGER.log(Level.WARNING, "Lost the connection listening for car changes, reconnecting", e);
+                sleep();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Error while handling a car change", e);
+                sleep();
+            }
+        }
+    }
+
+    private void handle(String payload) {
+        try {
+            onCarChanged.accept(UUID.fromString(payload));
+        } catch (IllegalArgumentException e) {
+            // Without a valid car ID, e.g. after a TRUNCATE, every car may have changed
+            onAllChanged.run();
+        }
+    }
+
+    private void sleep() {
+        try {
+            TimeUnit.MILLISECONDS.sleep(RECONNECT_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+}
@@ -0,0 +1,459 @@
+package org.wwi21seb.vs.group5.dao;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.wwi21seb.vs.group5.Logger.LoggerFactory;
+import org.wwi21seb.vs.group5.Model.Car;
+import org.wwi21seb.vs.group5.Model.Rental;
+import org.wwi21seb.vs.group5.log.WriteAheadLog;
+import org.wwi21seb.vs.group5.metrics.LatencyHistogram;
+import org.wwi21seb.vs.group5.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A RentalStore that keeps all rentals in memory, for small deployments and benchmarks without a database.
+ * The fleet is read from a JSON file, an array of objects with carId, model, manufacturer, capacity and pricePerDay.
+ * Every booking is written to a {@link WriteAheadLog} before it is acknowledged and recovered from it on startup.
+ * The cars and bookings are kept in maps with primitive UUID keys, the booked date ranges of every car in an {@link IntervalTree}.
+ * Searches share a read lock, reservations take the write lock only while the date ranges are checked and inserted,
+ * the log is written outside of the lock.
+ */
+public class EmbeddedRentalStore implements RentalStore {
+
+    /**
+     * A booking as it is written to the log
+     * @param bookingId the ID of the booking
+     * @param confirmed whether the booking was committed
+     * @param rentals the rentals of the booking
+     */
+    public record StoredBooking(UUID bookingId, boolean confirmed, List<StoredRental> rentals) {
+    }
+
+    /**
+     * A rental of a booking, days are epoch days
+     */
+    public record StoredRental(UUID rentalId, UUID carId, long startDay, long endDay, double totalPrice) {
+    }
+
+    private static final class CarEntry {
+
+        private final Car car;
+        private final int capacity;
+        private final BigDecimal pricePerDay;
+        private final IntervalTree bookings = new IntervalTree();
+
+        private CarEntry(Car car, int capacity, BigDecimal pricePerDay) {
+            this.car = car;
+            this.capacity = capacity;
+            this.pricePerDay = pricePerDay;
+        }
+
+    }
+
+    // The same order as the database, which compares UUIDs as unsigned bytes
+    private static final Comparator<UUID> UUID_ORDER = Comparator
+            .comparing(UUID::getMostSignificantBits, Long::compareUnsigned)
+            .thenComparing(UUID::getLeastSignificantBits, Long::compareUnsigned);
+
+    private final Logger LOGGER = LoggerFactory.setupLogger(EmbeddedRentalStore.class.getName());
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AvailabilityIndex.ChangeListener listener;
+    private final Path fleetFile;
+    private final WriteAheadLog<StoredBooking> bookingLog;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final UuidMap<StoredBooking> bookings = new UuidMap<>();
+    private UuidMap<CarEntry> cars = new UuidMap<>();
+    private CarEntry[] carsByCapacity = new CarEntry[0];
+
+    private final LatencyHistogram reserveCarsTime = storeTime("reserveCars");
+    private final LatencyHistogram confirmRentalTime = storeTime("confirmRental");
+    private final LatencyHistogram abortRentalTime = storeTime("abortRental");
+
+    /**
+     * Load the fleet and recover the bookings of the log
+     * @param listener is told about every change of the availability
+     */
+    public EmbeddedRentalStore(AvailabilityIndex.ChangeListener listener) {
+        this.listener = listener;
+        this.fleetFile = Path.of(System.getProperty("rental.store.fleet", "fleet.json"));
+        this.bookingLog = new WriteAheadLog<>(
+                Path.of(System.getProperty("rental.store.dir", "rental-store")),
+                StoredBooking.class,
+                Long.getLong("rental.store.groupCommitMicros", 200),
+                Long.getLong("rental.store.segmentSize", 16 * 1024 * 1024),
+                Long.getLong("rental.store.compactionIntervalMillis", 60000)
+        );
+
+        lock.writeLock().lock();
+        try {
+            for (StoredBooking booking : bookingLog.readAllLogs()) {
+                bookings.put(booking.bookingId(), booking);
+            }
+            loadFleet();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        LOGGER.log(Level.INFO, "Loaded {0} cars and recovered {1} bookings", new Object[]{cars.size(), bookings.size()});
+    }
+
+    private static LatencyHistogram storeTime(String method) {
+        return MetricsRegistry.getDefault().histogram("rental_embedded_store_duration_seconds", "Time spent in the embedded store per method, including the log write", "method", method);
+    }
+
+    /**
+     * Read the fleet file and rebuild the date ranges of every car from the bookings, must hold the write lock
+     */
+    private void loadFleet() {
+        UuidMap<CarEntry> loaded = new UuidMap<>();
+
+        try {
+            for (JsonNode node : mapper.readTree(fleetFile.toFile())) {
+                UUID carId = UUID.fromString(node.path("carId").asText());
+                int capacity = node.path("capacity").asInt();
+                BigDecimal pricePerDay = node.path("pricePerDay").decimalValue();
+                Car car = new Car(carId, node.path("model").asText(null), node.path("manufacturer").asText(null), capacity, pricePerDay.doubleValue());
+                loaded.put(carId, new CarEntry(car, capacity, pricePerDay));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.severe("Error while loading fleet from " + fleetFile + ": " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+
+        // Rentals of cars that left the fleet are kept, they block the car again if it comes back
+        bookings.forEach((bookingId, booking) -> {
+            for (StoredRental rental : booking.rentals()) {
+                CarEntry car = loaded.get(rental.carId());
+                if (car != null) {
+                    car.bookings.insert(interval(rental));
+                }
+            }
+        });
+
+        List<CarEntry> byCapacity = new ArrayList<>(loaded.size());
+        loaded.forEach((carId, car) -> byCapacity.add(car));
+        byCapacity.sort(Comparator.comparingInt((CarEntry car) -> car.capacity).reversed());
+
+        cars = loaded;
+        carsByCapacity = byCapacity.toArray(new CarEntry[0]);
+    }
+
+    @Override
+    public void invalidateCars() {
+        lock.writeLock().lock();
+        try {
+            loadFleet();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        listener.allChanged();
+        LOGGER.info("Reloaded fleet from " + fleetFile);
+    }
+
+    @Override
+    public List<Rental> getRentals() {
+        List<Rental> rentals = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            bookings.forEach((bookingId, booking) -> {
+                for (StoredRental rental : booking.rentals()) {
+                    rentals.add(toRental(rental));
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return rentals;
+    }
+
+    /**
+     * The matching rentals are collected under the read lock and handed to the consumer afterwards,
+     * only the limit + 1 smallest IDs after the cursor are kept while searching
+     */
+    @Override
+    public boolean streamRentals(RentalQuery query, int limit, RentalConsumer consumer) throws IOException {
+        UUID cursor = query.getCursor();
+        UUID carId = query.getCarId();
+        Boolean confirmed = query.getConfirmed();
+        // A missing day leaves the range open on that side
+        long startDay = query.getStartDate() == null ? Long.MIN_VALUE : LocalDate.parse(query.getStartDate()).toEpochDay();
+        long endDay = query.getEndDate() == null ? Long.MAX_VALUE : LocalDate.parse(query.getEndDate()).toEpochDay();
+
+        // Largest ID on top, so it is the one dropped when the page is full
+        PriorityQueue<StoredRental> page = new PriorityQueue<>(limit + 2, Comparator.comparing(StoredRental::rentalId, UUID_ORDER).reversed());
+
+        lock.readLock().lock();
+        try {
+            bookings.forEach((bookingId, booking) -> {
+                if (confirmed != null && booking.confirmed() != confirmed) {
+                    return;
+                }
+
+                for (StoredRental rental : booking.rentals()) {
+                    if ((cursor == null || UUID_ORDER.compare(rental.rentalId(), cursor) > 0)
+                            && (carId == null || carId.equals(rental.carId()))
+                            && rental.startDay() <= endDay && rental.endDay() >= startDay) {
+                        page.add(rental);
+                        if (page.size() > limit + 1) {
+                            page.poll();
+                        }
+                    }
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // One more rental than requested tells us whether there is another page
+        boolean more = page.size() > limit;
+        if (more) {
+            page.poll();
+        }
+
+        StoredRental[] rentals = page.toArray(new StoredRental[0]);
+        Arrays.sort(rentals, Comparator.comparing(StoredRental::rentalId, UUID_ORDER));
+        for (StoredRental rental : rentals) {
+            consumer.accept(rental.rentalId(), toRental(rental));
+        }
+
+        return more;
+    }
+
+    @Override
+    public List<Car> getAvailableCars(int numberOfPersons, LocalDate startDate, LocalDate endDate) {
+        long startDay = startDate.toEpochDay();
+        long endDay = endDate.toEpochDay();
+        List<Car> available = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            for (CarEntry car : carsByCapacity) {
+                if (car.capacity < numberOfPersons) {
+                    break;
+                }
+
+                if (!car.bookings.overlaps(startDay, endDay)) {
+                    available.add(car.car);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return available;
+    }
+
+    @Override
+    public UUID reserveCar(UUID bookingId, Reservation reservation) {
+        return reserveCars(bookingId, List.of(reservation));
+    }
+
+    /**
+     * The date ranges are checked and inserted under the write lock, so two overlapping reservations
+     * of the same car can never both succeed. The booking is logged afterwards and removed again if that fails.
+     */
+    @Override
+    public UUID reserveCars(UUID bookingId, List<Reservation> reservations) {
+        List<StoredRental> rentals = new ArrayList<>(reservations.size());
+
+        long start = System.nanoTime();
+        try {
+            lock.writeLock().lock();
+            try {
+                for (Reservation reservation : reservations) {
+                    CarEntry car = reservation.carId() == null ? null : cars.get(reservation.carId());
+                    if (car == null) {
+                        LOGGER.log(Level.INFO, "Car does not exist {0}", reservation.carId());
+                        removeRentals(rentals);
+                        return null;
+                    }
+
+                    long startDay = reservation.startDate().toEpochDay();
+                    long endDay = reservation.endDate().toEpochDay();
+                    // Also covers the earlier rentals of the same booking, they are inserted already
+                    if (car.bookings.overlaps(startDay, endDay)) {
+                        LOGGER.log(Level.INFO, "Car is not available {0}", reservation.carId());
+                        removeRentals(rentals);
+                        return null;
+                    }
+
+                    // The rental of a single car is its own booking
+                    UUID rentalId = reservations.size() == 1 ? bookingId : UUID.randomUUID();
+                    BigDecimal totalPrice = car.pricePerDay.multiply(BigDecimal.valueOf(endDay - startDay + 1));
+                    StoredRental rental = new StoredRental(rentalId, reservation.carId(), startDay, endDay, totalPrice.doubleValue());
+                    car.bookings.insert(interval(rental));
+                    rentals.add(rental);
+                }
+
+                bookings.put(bookingId, new StoredBooking(bookingId, false, rentals));
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            notifyChanged(rentals);
+
+            try {
+                bookingLog.writeLog(bookingId, new StoredBooking(bookingId, false, rentals));
+            } catch (RuntimeException e) {
+                LOGGER.severe("Error while logging reservation: " + e.getMessage());
+
+                lock.writeLock().lock();
+                try {
+                    bookings.remove(bookingId);
+                    removeRentals(rentals);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+
+                notifyChanged(rentals);
+                return null;
+            }
+        } finally {
+            reserveCarsTime.recordSince(start);
+        }
+
+        return bookingId;
+    }
+
+    /**
+     * The confirmation is logged before it becomes visible
+     */
+    @Override
+    public boolean confirmRental(UUID bookingId) {
+        StoredBooking booking;
+
+        long start = System.nanoTime();
+        try {
+            lock.readLock().lock();
+            try {
+                booking = bookings.get(bookingId);
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            if (booking == null || booking.confirmed()) {
+                return true;
+            }
+
+            StoredBooking confirmed = new StoredBooking(bookingId, true, booking.rentals());
+            try {
+                bookingLog.writeLog(bookingId, confirmed);
+            } catch (RuntimeException e) {
+                LOGGER.severe("Error while confirming rental: " + e.getMessage());
+                return false;
+            }
+
+            lock.writeLock().lock();
+            try {
+                // The date ranges stay booked, only the flag changes
+                if (bookings.get(bookingId) != null) {
+                    bookings.put(bookingId, confirmed);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            confirmRentalTime.recordSince(start);
+        }
+
+        return true;
+    }
+
+    /**
+     * The tombstone is durable before the date ranges are released,
+     * so a released range can't come back with the recovery of the log
+     */
+    @Override
+    public boolean abortRental(UUID bookingId) {
+        StoredBooking booking;
+
+        long start = System.nanoTime();
+        try {
+            lock.readLock().lock();
+            try {
+                booking = bookings.get(bookingId);
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            if (booking == null) {
+                return true;
+            }
+
+            try {
+                bookingLog.deleteLogSync(bookingId);
+            } catch (RuntimeException e) {
+                LOGGER.severe("Error while aborting rental: " + e.getMessage());
+                return false;
+            }
+
+            lock.writeLock().lock();
+            try {
+                booking = bookings.remove(bookingId);
+                if (booking != null) {
+                    removeRentals(booking.rentals());
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            if (booking != null) {
+                notifyChanged(booking.rentals());
+            }
+        } finally {
+            abortRentalTime.recordSince(start);
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove the date ranges of rentals from their cars, must hold the write lock
+     */
+    private void removeRentals(List<StoredRental> rentals) {
+        for (StoredRental rental : rentals) {
+            CarEntry car = cars.get(rental.carId());
+            if (car != null) {
+                car.bookings.remove(interval(rental));
+            }
+        }
+    }
+
+    private void notifyChanged(List<StoredRental> rentals) {
+        for (StoredRental rental : rentals) {
+            listener.availabilityChanged(rental.startDay(), rental.endDay());
+        }
+    }
+
+    private static IntervalTree.Interval interval(StoredRental rental) {
+        return new IntervalTree.Interval(rental.rentalId(), rental.startDay(), rental.endDay());
+    }
+
+    private static Rental toRental(StoredRental rental) {
+        return new Rental(
+                rental.rentalId(),
+                rental.carId(),
+                Date.valueOf(LocalDate.ofEpochDay(rental.startDay())),
+                Date.valueOf(LocalDate.ofEpochDay(rental.endDay())),
+                rental.totalPrice()
+        );
+    }
+
+    @Override
+    public void close() {
+        bookingLog.close();
+    }
+
+}
@@ -0,0 +1,206 @@
+package org.wwi21seb.vs.group5.dao;
+
+import java.util.UUID;
+
+/**
+ * The booked date ranges of a car as an AVL tree ordered by the first day,
+ * every node also keeps the latest last day of its subtree. An overlap search therefore
+ * skips every subtree that ends before the range or whose ranges all start after it.
+ * Days are epoch days and ranges are inclusive on both ends.
+ * The tree is not thread-safe.
+ */
+class IntervalTree {
+
+    /**
+     * A booked date range
+     * @param rentalId the ID of the rental
+     * @param startDay the first day of the rental
+     * @param endDay the last day of the rental
+     */
+    record Interval(UUID rentalId, long startDay, long endDay) {
+    }
+
+    private static final class Node {
+
+        private final Interval interval;
+        private Node left;
+        private Node right;
+        private int height = 1;
+        private long maxEnd;
+
+        private Node(Interval interval) {
+            this.interval = interval;
+            this.maxEnd = interval.endDay();
+        }
+
+    }
+
+    private Node root;
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Check whether any range overlaps a date range
+     * @param startDay the first day of the date range
+     * @param endDay the last day of the date range
+     * @return true if a range shares at least one day with the date range
+     */
+    boolean overlaps(long startDay, long endDay) {
+        Node node = root;
+
+        while (node != null) {
+            if (node.interval.startDay() <= endDay && node.interval.endDay() >= startDay) {
+                return true;
+            }
+
+            // If the left subtree ends early enough, an overlap can only be on the right
+            if (node.left != null && node.left.maxEnd >= startDay) {
+                node = node.left;
+            } else if (node.interval.startDay() <= endDay) {
+                node = node.right;
+            } else {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param interval the range to add
+     */
+    void insert(Interval interval) {
+        root = insert(root, interval);
+        size++;
+    }
+
+    /**
+     * @param interval the range to remove, found by its first day and rental ID
+     * @return whether the tree contained the range
+     */
+    boolean remove(Interval interval) {
+        int before = size;
+        root = remove(root, interval);
+        return size < before;
+    }
+
+    private static int compare(Interval a, Interval b) {
+        int result = Long.compare(a.startDay(), b.startDay());
+        return result != 0 ? result : a.rentalId().compareTo(b.rentalId());
+    }
+
+    private Node insert(Node node, Interval interval) {
+        if (node == null) {
+            return new Node(interval);
+        }
+
+        if (compare(interval, node.interval) < 0) {
+            node.left = insert(node.left, interval);
+        } else {
+            node.right = insert(node.right, interval);
+        }
+
+        return balance(node);
+    }
+
+    private Node remove(Node node, Interval interval) {
+        if (node == null) {
+            return null;
+        }
+
+        int comparison = compare(interval, node.interval);
+        if (comparison < 0) {
+            node.left = remove(node.left, interval);
+        } else if (comparison > 0) {
+            node.right = remove(node.right, interval);
+        } else {
+            size--;
+
+            if (node.left == null) {
+                return node.right;
+            }
+            if (node.right == null) {
+                return node.left;
+            }
+
+            // The successor takes the place of the removed node
+            Node successor = node.right;
+            while (successor.left != null) {
+                successor = successor.left;
+            }
+
+            Node replacement = new Node(successor.interval);
+            replacement.right = removeMin(node.right);
+            replacement.left = node.left;
+            return balance(replacement);
+        }
+
+        return balance(node);
+    }
+
+    private Node removeMin(Node node) {
+        if (node.left == null) {
+            return node.right;
+        }
+
+        node.left = removeMin(node.left);
+        return balance(node);
+    }
+
+    private static int height(Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static void update(Node node) {
+        node.height = Math.max(height(node.left), height(node.right)) + 1;
+        node.maxEnd = node.interval.endDay();
+        if (node.left != null) {
+            node.maxEnd = Math.max(node.maxEnd, node.left.maxEnd);
+        }
+        if (node.right != null) {
+            node.maxEnd = Math.max(node.maxEnd, node.right.maxEnd);
+        }
+    }
+
+    private static Node balance(Node node) {
+        update(node);
+        int balance = height(node.left) - height(node.right);
+
+        if (balance > 1) {
+            if (height(node.left.left) < height(node.left.right)) {
+                node.left = rotateLeft(node.left);
+            }
+            return rotateRight(node);
+        }
+        if (balance < -1) {
+            if (height(node.right.right) < height(node.right.left)) {
+                node.right = rotateRight(node.right);
+            }
+            return rotateLeft(node);
+        }
+
+        return node;
+    }
+
+    private static Node rotateRight(Node node) {
+        Node left = node.left;
+        node.left = left.right;
+        left.right = node;
+        update(node);
+        update(left);
+        return left;
+    }
+
+    private static Node rotateLeft(Node node) {
+        Node right = node.right;
+        node.right = right.left;
+        right.left = node;
+        update(node);
+        update(right);
+        return right;
+    }
+
+}
@@ -0,0 +1,586 @@
+package org.wwi21seb.vs.group5.dao;
+
+import org.wwi21seb.vs.group5.Logger.LoggerFactory;
+import org.wwi21seb.vs.group5.Model.Car;
+import org.wwi21seb.vs.group5.Model.Rental;
+import org.wwi21seb.vs.group5.communication.DatabaseConnection;
+import org.wwi21seb.vs.group5.metrics.LatencyHistogram;
+import org.wwi21seb.vs.group5.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The RentalStore on the database, PostgreSQL in production.
+ * Availability searches are answered from the in-memory {@link AvailabilityIndex} and the {@link CarCache},
+ * which are loaded once and kept up to date with every reservation and with the changes of the cars.
+ * Reservations pass the {@link ReservationAdmission} first: a car the index already knows as booked is rejected
+ * right away, so is a car whose dates overlap another reservation of it that is still in progress,
+ * instead of competing for it in the database.
+ */
+public class JdbcRentalStore implements RentalStore {
+
+    private static final int BOOKINGS_FETCH_SIZE = Integer.getInteger("rental.bookings.fetchSize", 256);
+
+    // Nothing is inserted if the rental would overlap another one
+    private static final String RESERVE_SQL = "INSERT INTO rentals (rental_id, booking_id, car_id, start_date, end_date, total_price, is_confirmed) " +
+            "VALUES (?, ?, ?, ?, ?, ?, false) ON CONFLICT DO NOTHING";
+    // An overlap that is raised instead of skipped, e.g. by a trigger of an embedded database
+    private static final String EXCLUSION_VIOLATION = "23P01";
+
+    // Whether a rental overlaps the date range given by its first and last day.
+    // PostgreSQL compares the stored period of the rental, which the GiST indexes of the V4 migration cover,
+    // an embedded database in benchmarks has no range types and compares the dates.
+    static final String PERIOD_OVERLAPS = "period && daterange(?::date, ?::date, '[]')";
+    static final String DATES_OVERLAP = "end_date >= ? AND start_date <= ?";
+    static final String AVAILABLE_CARS_SQL = "SELECT car_id FROM cars c WHERE capacity >= ? AND NOT EXISTS (SELECT 1 FROM rentals r WHERE r.car_id = c.car_id AND %s)";
+
+    private final Logger LOGGER = LoggerFactory.setupLogger(JdbcRentalStore.class.getName());
+    private final AvailabilityIndex availabilityIndex;
+    private final CarCache carCache;
+    private final CarChangeListener carChangeListener;
+    private final ReservationAdmission admission = Boolean.parseBoolean(System.getProperty("rental.admission.enabled", "true")) ? new ReservationAdmission() : null;
+    private final LongAdder admissionRejections = MetricsRegistry.getDefault().counter("rental_admission_rejected_total", "Reservations rejected by the availability index without a database round trip");
+    // If enabled, every availability search answered by the index is checked against the database
+    private final boolean verifyAvailabilityIndex = Boolean.getBoolean("rental.availability.verify");
+    private final boolean rangeTypes = DatabaseConnection.isPostgres();
+    private final String overlapCondition = rangeTypes ? PERIOD_OVERLAPS : DATES_OVERLAP;
+
+    // Time spent on the database per method, including waiting for a pooled connection
+    private final LatencyHistogram loadIndexTime = jdbcTime("loadAvailabilityIndex");
+    private final LatencyHistogram getRentalsTime = jdbcTime("getRentals");
+    private final LatencyHistogram streamRentalsTime = jdbcTime("streamRentals");
+    private final LatencyHistogram verifyAvailableCarsTime = jdbcTime("verifyAvailableCars");
+    private final LatencyHistogram reserveCarTime = jdbcTime("reserveCar");
+    private final LatencyHistogram reserveCarsTime = jdbcTime("reserveCars");
+    private final LatencyHistogram confirmRentalTime = jdbcTime("confirmRental");
+    private final LatencyHistogram abortRentalTime = jdbcTime("abortRental");
+    private final LatencyHistogram confirmRentalsTime = jdbcTime("confirmRentals");
+    private final LatencyHistogram abortRentalsTime = jdbcTime("abortRentals");
+
+    /**
+     * Load the availability index and the cars from the database
+     * @param listener is told about every change of the availability
+     */
+    public JdbcRentalStore(AvailabilityIndex.ChangeListener listener) {
+        this.availabilityIndex = new AvailabilityIndex(listener);
+        this.carCache = new CarCache(
+                Integer.getInteger("rental.cars.cache.maxSize", 100000),
+                Long.getLong("rental.cars.cache.ttlSeconds", 600),
+                TimeUnit.SECONDS
+        );
+
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            availabilityIndex.load(conn);
+            carCache.preload(conn);
+        } catch (SQLException e) {
+            LOGGER.severe("Error while loading availability index: " + e.getMessage());
+            throw new RuntimeException(e);
+        } finally {
+            loadIndexTime.recordSince(start);
+        }
+
+        // Only started once there is something to update, a car changed before it listens is
+        // picked up by the car cache after its TTL and by the index with the next reload
+        this.carChangeListener = DatabaseConnection.isPostgres() ? new CarChangeListener(this::onCarChanged, this::invalidateCars) : null;
+    }
+
+    /**
+     * Pick up the change of a car, e.g. a new price or capacity
+     * @param carId the ID of the changed car
+     */
+    public void onCarChanged(UUID carId) {
+        carCache.invalidate(carId);
+
+        try {
+            CarCache.CachedCar car = carCache.get(carId);
+            availabilityIndex.updateCar(carId, car == null ? null : car.capacity());
+        } catch (SQLException e) {
+            LOGGER.severe("Error while reloading car: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+
+        LOGGER.log(Level.INFO, "Reloaded car {0}", carId);
+    }
+
+    @Override
+    public void invalidateCars() {
+        carCache.invalidateAll();
+
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            availabilityIndex.load(conn);
+        } catch (SQLException e) {
+            LOGGER.severe("Error while reloading availability index: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+
+        LOGGER.info("Invalidated all cars");
+    }
+
+    private static LatencyHistogram jdbcTime(String method) {
+        return MetricsRegistry.getDefault().histogram("rental_jdbc_duration_seconds", "Time spent on the database per RentalDAO method", "method", method);
+    }
+
+    @Override
+    public List<Rental> getRentals() {
+        List<Rental> rentals = new ArrayList<>();
+
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT rental_id, car_id, start_date, end_date, total_price FROM rentals");
+             ResultSet result = stmt.executeQuery()) {
+            while (result.next()) {
+                rentals.add(readRental(result));
+            }
+
+            return rentals;
+        } catch (SQLException e) {
+            LOGGER.severe("Error while getting rentals: " + e.getMessage());
+            throw new RuntimeException(e);
+        } finally {
+            getRentalsTime.recordSince(start);
+        }
+    }
+
+    /**
+     * The rows are read from a database cursor and handed to the consumer while the page is still being read
+     */
+    @Override
+    public boolean streamRentals(RentalQuery query, int limit, RentalConsumer consumer) throws IOException {
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            StringBuilder sql = new StringBuilder("SELECT rental_id, car_id, start_date, end_date, total_price FROM rentals WHERE true");
+            List<Object> parameters = new ArrayList<>();
+
+            if (query.getCursor() != null) {
+                sql.append(" AND rental_id > ?");
+                parameters.add(query.getCursor());
+            }
+            if (query.getCarId() != null) {
+                sql.append(" AND car_id = ?");
+                parameters.add(query.getCarId());
+            }
+            if (rangeTypes && (query.getStartDate() != null || query.getEndDate() != null)) {
+                // A missing day leaves the range open on that side
+                sql.append(" AND ").append(PERIOD_OVERLAPS);
+                parameters.add(query.getStartDate() == null ? null : Date.valueOf(LocalDate.parse(query.getStartDate())));
+                parameters.add(query.getEndDate() == null ? null : Date.valueOf(LocalDate.parse(query.getEndDate())));
+            } else {
+                if (query.getEndDate() != null) {
+                    sql.append(" AND start_date <= ?");
+                    parameters.add(Date.valueOf(LocalDate.parse(query.getEndDate())));
+                }
+                if (query.getStartDate() != null) {
+                    sql.append(" AND end_date >= ?");
+                    parameters.add(Date.valueOf(LocalDate.parse(query.getStartDate())));
+                }
+            }
+            if (query.getConfirmed() != null) {
+                sql.append(" AND is_confirmed = ?");
+                parameters.add(query.getConfirmed());
+            }
+            // One more row than requested tells us whether there is another page
+            sql.append(" ORDER BY rental_id LIMIT ?");
+            parameters.add(limit + 1);
+
+            // The driver only fetches in batches inside of a transaction
+            conn.setAutoCommit(false);
+            boolean more;
+            try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+                stmt.setFetchSize(BOOKINGS_FETCH_SIZE);
+                for (int i = 0; i < parameters.size(); i++) {
+                    stmt.setObject(i + 1, parameters.get(i));
+                }
+
+                try (ResultSet result = stmt.executeQuery()) {
+                    int rows = 0;
+                    while (rows < limit && result.next()) {
+                        consumer.accept(result.getObject("rental_id", UUID.class), readRental(result));
+                        rows++;
+                    }
+
+                    more = rows == limit && result.next();
+                }
+            }
+
+            conn.commit();
+            return more;
+        } catch (SQLException e) {
+            LOGGER.severe("Error while streaming rentals: " + e.getMessage());
+            throw new RuntimeException(e);
+        } finally {
+            streamRentalsTime.recordSince(start);
+        }
+    }
+
+    private static Rental readRental(ResultSet result) throws SQLException {
+        return new Rental(
+                result.getObject("rental_id", UUID.class),
+                result.getObject("car_id", UUID.class),
+                result.getDate("start_date"),
+                result.getDate("end_date"),
+                result.getDouble("total_price")
+        );
+    }
+
+    @Override
+    public List<Car> getAvailableCars(int numberOfPersons, LocalDate startDate, LocalDate endDate) {
+        if (verifyAvailabilityIndex) {
+            verifyAvailableCars(numberOfPersons, startDate, endDate);
+        }
+
+        List<UUID> carIds = availabilityIndex.findAvailableCars(numberOfPersons, startDate, endDate);
+        List<Car> cars = new ArrayList<>(carIds.size());
+
+        try {
+            for (CarCache.CachedCar car : carCache.getAll(carIds)) {
+                // A car deleted after the index was searched is skipped
+                if (car != null) {
+                    cars.add(car.car());
+                }
+            }
+        } catch (SQLException e) {
+            LOGGER.severe("Error while loading available cars: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+
+        return cars;
+    }
+
+    /**
+     * Compare the result of the availability index with the database
+     * and reload the index if they differ
+     * @param numberOfPersons the minimum capacity of the car
+     * @param startDate the first day of the date range
+     * @param endDate the last day of the date range
+     */
+    private void verifyAvailableCars(int numberOfPersons, LocalDate startDate, LocalDate endDate) {
+        Set<UUID> carIds = new HashSet<>();
+
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            try (PreparedStatement stmt = conn.prepareStatement(String.format(AVAILABLE_CARS_SQL, overlapCondition))) {
+                stmt.setInt(1, numberOfPersons);
+                stmt.setDate(2, Date.valueOf(startDate));
+                stmt.setDate(3, Date.valueOf(endDate));
+
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    while (resultSet.next()) {
+                        carIds.add(resultSet.getObject("car_id", UUID.class));
+                    }
+                }
+            }
+
+            Set<UUID> indexedCarIds = availabilityIndex.findAvailableCarIds(numberOfPersons, startDate, endDate);
+            if (!indexedCarIds.equals(carIds)) {
+                LOGGER.warning(String.format("Availability index differs from database for %s - %s (%d persons): index %s, database %s", startDate, endDate, numberOfPersons, indexedCarIds, carIds));
+                availabilityIndex.load(conn);
+            }
+        } catch (SQLException e) {
+            LOGGER.severe("Error while verifying available cars: " + e.getMessage());
+            throw new RuntimeException(e);
+        } finally {
+            verifyAvailableCarsTime.recordSince(start);
+        }
+    }
+
+    /**
+     * The price is taken from the car cache, the availability check and the insert happen in a single statement.
+     * Overlapping rentals of the same car are rejected by the exclusion constraint on the rentals table,
+     * so two concurrent reservations of the same car can never both succeed.
+     */
+    @Override
+    public UUID reserveCar(UUID bookingId, Reservation reservation) {
+        try (ReservationAdmission.Permit permit = admit(List.of(reservation))) {
+            if (admission != null && permit == null) {
+                return null;
+            }
+
+            return insertRental(bookingId, reservation);
+        }
+    }
+
+    private UUID insertRental(UUID bookingId, Reservation reservation) {
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            CarCache.CachedCar car = reservation.carId() == null ? null : carCache.get(reservation.carId());
+
+            if (car == null) {
+                LOGGER.log(Level.INFO, "Car does not exist {0}", reservation.carId());
+                return null;
+            }
+
+            // The rental of a single car is its own booking
+            int inserted;
+            try (PreparedStatement stmt = conn.prepareStatement(RESERVE_SQL)) {
+                setReservation(stmt, bookingId, bookingId, car, reservation.startDate(), reservation.endDate());
+                inserted = stmt.executeUpdate();
+            }
+
+            if (inserted == 0) {
+                LOGGER.log(Level.INFO, "Car is not available {0}", reservation.carId());
+                return null;
+            }
+
+            availabilityIndex.addRental(bookingId, reservation.carId(), reservation.startDate(), reservation.endDate());
+        } catch (SQLException e) {
+            if (isExclusionViolation(e)) {
+                LOGGER.log(Level.INFO, "Car is not available {0}", reservation.carId());
+                return null;
+            }
+            LOGGER.severe("Error while reserving car: " + e.getMessage());
+            return null;
+        } finally {
+            reserveCarTime.recordSince(start);
+        }
+
+        return bookingId;
+    }
+
+    /**
+     * The reservations are sent as one JDBC batch in a single transaction, which is
+     * rolled back if any of the cars is not available.
+     */
+    @Override
+    public UUID reserveCars(UUID bookingId, List<Reservation> reservations) {
+        if (reservations.size() == 1) {
+            return reserveCar(bookingId, reservations.get(0));
+        }
+
+        try (ReservationAdmission.Permit permit = admit(reservations)) {
+            if (admission != null && permit == null) {
+                return null;
+            }
+
+            return insertRentals(bookingId, reservations);
+        }
+    }
+
+    /**
+     * Reject reservations the availability index already knows to conflict and claim their date ranges,
+     * the index is checked again once they are claimed, a reservation that finished just before may have taken them
+     * @param reservations the reservations of a booking
+     * @return the permit to close after the insert, or null if the reservations were rejected or admission is disabled
+     */
+    private ReservationAdmission.Permit admit(List<Reservation> reservations) {
+        if (admission == null) {
+            return null;
+        }
+
+        if (!isAvailable(reservations)) {
+            return null;
+        }
+
+        ReservationAdmission.Permit permit = admission.tryAcquire(reservations);
+        if (permit == null) {
+            LOGGER.log(Level.INFO, "Cars are not available {0}, an overlapping reservation is in progress", reservations.stream().map(Reservation::carId).toList());
+            return null;
+        }
+
+        if (!isAvailable(reservations)) {
+            permit.close();
+            return null;
+        }
+
+        return permit;
+    }
+
+    private boolean isAvailable(List<Reservation> reservations) {
+        for (Reservation reservation : reservations) {
+            // Also rejects unknown cars, every car of the database is in the index
+            if (reservation.carId() == null || !availabilityIndex.isAvailable(reservation.carId(), reservation.startDate(), reservation.endDate())) {
+                admissionRejections.increment();
+                LOGGER.log(Level.INFO, "Car is not available {0}", reservation.carId());
+                return false;
+            }
+        }
+
+        // Two rentals of the same car in one booking always conflict with each other
+        for (int i = 0; i < reservations.size(); i++) {
+            for (int j = i + 1; j < reservations.size(); j++) {
+                Reservation a = reservations.get(i);
+                Reservation b = reservations.get(j);
+                if (a.carId().equals(b.carId()) && !a.startDate().isAfter(b.endDate()) && !b.startDate().isAfter(a.endDate())) {
+                    admissionRejections.increment();
+                    LOGGER.log(Level.INFO, "Car is booked twice {0}", a.carId());
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private UUID insertRentals(UUID bookingId, List<Reservation> reservations) {
+        List<UUID> rentalIds = new ArrayList<>(reservations.size());
+
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConnection.getConnection()) {
+            List<CarCache.CachedCar> cars = carCache.getAll(reservations.stream().map(Reservation::carId).toList());
+            if (cars.contains(null)) {
+                LOGGER.log(Level.INFO, "Not all cars exist for booking {0}", bookingId);
+                return null;
+            }
+
+            conn.setAutoCommit(false);
+            int[] inserted;
+            try (PreparedStatement stmt = conn.prepareStatement(RESERVE_SQL)) {
+                for (int i = 0; i < reservations.size(); i++) {
+                    Reservation reservation = reservations.get(i);
+                    UUID rentalId = UUID.randomUUID();
+                    rentalIds.add(rentalId);
+                    setReservation(stmt, rentalId, bookingId, cars.get(i), reservation.startDate(), reservation.endDate());
+                    stmt.addBatch();
+                }
+
+                inserted = stmt.executeBatch();
+            }
+
+            // Drivers may only report that a row was inserted without the count
+            if (Arrays.stream(inserted).anyMatch(count -> count == 0 || count == Statement.EXECUTE_FAILED)) {
+                conn.rollback();
+                LOGGER.log(Level.INFO, "Not all cars are available for booking {0}", bookingId);
+                return null;
+            }
+
+            conn.commit();
+
+            for (int i = 0; i < reservations.size(); i++) {
+                Reservation reservation = reservations.get(i);
+                availabilityIndex.addRental(rentalIds.get(i), bookingId, reservation.carId(), reservation.startDate(), reservation.endDate());
+            }
+        } catch (SQLException e) {
+            // The pool rolls the transaction back when the connection is returned
+            if (isExclusionViolation(e)) {
+                LOGGER.log(Level.INFO, "Not all cars are available for booking {0}", bookingId);
+                return null;
+            }
+            LOGGER.severe("Error while reserving cars: " + e.getMessage());
+            return null;
+        } finally {
+            reserveCarsTime.recordSince(start);
+        }
+
+        return bookingId;
+    }
+
+    private static boolean isExclusionViolation(SQLException e) {
+        // A failed batch reports the violation of the statement as its next exception
+        for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+            if (EXCLUSION_VIOLATION.equals(cause.getSQLState())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void setReservation(PreparedStatement stmt, UUID rentalId, UUID bookingId, CarCache.CachedCar car, LocalDate startDate, LocalDate endDate) throws SQLException {
+        long days = ChronoUnit.DAYS.between(startDate, endDate) + 1;
+
+        stmt.setObject(1, rentalId);
+        stmt.setObject(2, bookingId);
+        stmt.setObject(3, car.carId());
+        stmt.setDate(4, Date.valueOf(startDate));
+        stmt.setDate(5, Date.valueOf(endDate));
+        stmt.setBigDecimal(6, car.pricePerDay() == null ? null : car.pricePerDay().multiply(BigDecimal.valueOf(days)));
+    }
+
+    @Override
+    public boolean confirmRental(UUID bookingId) {
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("UPDATE rentals SET is_confirmed = true WHERE booking_id = ?")) {
+            stmt.setObject(1, bookingId, Types.OTHER);
+            stmt.executeUpdate();
+            // The date range stays booked, the availability index already contains it since the reservation
+        } catch (SQLException e) {
+            LOGGER.severe("Error while confirming rental: " + e.getMessage());
+            return false;
+        } finally {
+            confirmRentalTime.recordSince(start);
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean abortRental(UUID bookingId) {
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("DELETE FROM rentals WHERE booking_id = ?")) {
+            stmt.setObject(1, bookingId, Types.OTHER);
+            stmt.executeUpdate();
+            availabilityIndex.removeBooking(bookingId);
+        } catch (SQLException e) {
+            LOGGER.severe("Error while aborting rental: " + e.getMessage());
+            return false;
+        } finally {
+            abortRentalTime.recordSince(start);
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean confirmRentals(List<UUID> bookingIds) {
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("UPDATE rentals SET is_confirmed = true WHERE booking_id = ANY (?)")) {
+            Array ids = conn.createArrayOf("uuid", bookingIds.toArray());
+            try {
+                stmt.setArray(1, ids);
+                stmt.executeUpdate();
+            } finally {
+                ids.free();
+            }
+        } catch (SQLException e) {
+            LOGGER.severe("Error while confirming rentals: " + e.getMessage());
+            return false;
+        } finally {
+            confirmRentalsTime.recordSince(start);
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean abortRentals(List<UUID> bookingIds) {
+        long start = System.nanoTime();
+        try (Connection conn = DatabaseConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("DELETE FROM rentals WHERE booking_id = ANY (?)")) {
+            Array ids = conn.createArrayOf("uuid", bookingIds.toArray());
+            try {
+                stmt.setArray(1, ids);
+                stmt.executeUpdate();
+            } finally {
+                ids.free();
+            }
+            bookingIds.forEach(availabilityIndex::removeBooking);
+        } catch (SQLException e) {
+            LOGGER.severe("Error while aborting rentals: " + e.getMessage());
+            return false;
+        } finally {
+            abortRentalsTime.recordSince(start);
+        }
+
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (carChangeListener != null) {
+            carChangeListener.stop();
+        }
+    }
+
+}
@@ -1,31 +1,75 @@
 package org.wwi21seb.vs.group5.dao;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.wwi21seb.vs.group5.Logger.LoggerFactory;
 import org.wwi21seb.vs.group5.Model.Car;
 import org.wwi21seb.vs.group5.Model.Rental;
 import org.wwi21seb.vs.group5.Request.AvailabilityRequest;
 import org.wwi21seb.vs.group5.Request.ReservationRequest;
-import org.wwi21seb.vs.group5.Request.TransactionResult;
-import org.wwi21seb.vs.group5.communication.DatabaseConnection;
+import org.wwi21seb.vs.group5.communication.EncodedPayload;
 
-import java.sql.*;
-import java.sql.Date;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
+/**
+ * The protocol side of the rentals: parsing the payloads, caching the encoded availability responses
+ * and splitting pages of rentals into chunks. The rentals themselves are kept by a {@link RentalStore},
+ * selected with rental.store: "jdbc" (the default) for the database or "embedded" for the {@link EmbeddedRentalStore}.
+ */
 public class RentalDAO {
 
+    // GET_BOOKINGS paging, a chunk leaves room for the UDPMessage around it in a 16 KB datagram
+    private static final int DEFAULT_PAGE_SIZE = Integer.getInteger("rental.bookings.pageSize", 1000);
+    private static final int MAX_PAGE_SIZE = 10000;
+    private static final int MAX_CHUNK_SIZE = 15 * 1024;
+
     private final Logger LOGGER = LoggerFactory.setupLogger(RentalDAO.class.getName());
     private final ObjectMapper mapper;
     private final DateTimeFormatter dateFormatter;
+    private final AvailabilityResponseCache availabilityResponses;
+    private final RentalStore store;
+    // If enabled, every availability search is answered by the store, which checks it against the database
+    private final boolean verifyAvailabilityIndex = Boolean.getBoolean("rental.availability.verify");
 
     public RentalDAO() {
         this.mapper = new ObjectMapper();
         this.dateFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+        this.availabilityResponses = new AvailabilityResponseCache(Integer.getInteger("rental.availability.cacheSize", 4096));
+        this.store = usesDatabase() ? new JdbcRentalStore(availabilityResponses) : new EmbeddedRentalStore(availabilityResponses);
+    }
+
+    /**
+     * @return whether the configured store keeps the rentals in the database
+     */
+    public static boolean usesDatabase() {
+        String store = System.getProperty("rental.store", "jdbc");
+        if (!store.equals("jdbc") && !store.equals("embedded")) {
+            throw new IllegalArgumentException("Unknown rental.store " + store);
+        }
+        return store.equals("jdbc");
+    }
+
+    /**
+     * Drop all cached car data and reload the fleet
+     */
+    public void invalidateCars() {
+        store.invalidateCars();
+    }
+
+    /**
+     * Release the resources of the store
+     */
+    public void close() {
+        store.close();
     }
 
     /**
@@ -34,7 +78,7 @@ public class RentalDAO {
      * @return a JSON string containing the serialized rentals
      * @throws JsonProcessingException if the serialization fails
      */
-    private String serializeRentals(List<Rental> rentals) throws JsonProcessingException {
+    String serializeRentals(List<Rental> rentals) throws JsonProcessingException {
         return mapper.writeValueAsString(rentals);
     }
 
@@ -44,187 +88,257 @@ public class RentalDAO {
      * @return a JSON string containing the serialized cars
      * @throws JsonProcessingException if the serialization fails
      */
-    private String serializeCars(List<Car> cars) throws JsonProcessingException {
+    String serializeCars(List<Car> cars) throws JsonProcessingException {
         return mapper.writeValueAsString(cars);
     }
 
     /**
-     * Get all rentals from the database
+     * Get all rentals
      * @return a JSON string containing all rentals
      */
     public String getRentals() {
-        PreparedStatement stmt = null;
-        List<Rental> rentals = new ArrayList<>();
+        try {
+            return serializeRentals(store.getRentals());
+        } catch (JsonProcessingException e) {
+            LOGGER.severe("Error while serializing rentals: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stream a page of rentals matching the query as a sequence of JSON chunks
+     * The rentals are written straight into the chunk while the store reads the page,
+     * every chunk is small enough to be sent as a single datagram.
+     * A chunk has the form {"sequence": n, "rentals": [...], "cursor": id, "last": bool, "more": bool},
+     * where cursor is the ID of the last rental in the chunk, last marks the final chunk of the page
+     * and more tells whether there are further pages after the cursor of the final chunk.
+     * @param payload the payload of the UDPMessage containing the RentalQuery
+     * @param chunkConsumer receives the JSON chunks in order
+     */
+    public void streamRentals(String payload, Consumer<String> chunkConsumer) {
+        try {
+            RentalQuery query = mapper.readValue(payload, RentalQuery.class);
+            int limit = Math.min(query.getLimit() == null ? DEFAULT_PAGE_SIZE : Math.max(1, query.getLimit()), MAX_PAGE_SIZE);
+
+            RentalChunkWriter writer = new RentalChunkWriter(chunkConsumer);
+            boolean more = store.streamRentals(query, limit, (rentalId, rental) -> writer.write(rental, rentalId));
+            writer.finish(more);
+        } catch (IOException e) {
+            LOGGER.severe("Error while serializing rentals: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
 
-        try (Connection conn = DatabaseConnection.getConnection()) {
-            stmt = conn.prepareStatement("SELECT * FROM rentals");
-            stmt.executeQuery();
+    /**
+     * Writes rentals into JSON chunks that each fit into a single datagram
+     */
+    private class RentalChunkWriter {
+
+        private final Consumer<String> chunkConsumer;
+        private final ChunkBuffer buffer = new ChunkBuffer();
+        private JsonGenerator generator;
+        private int sequence = 0;
+        private int rentalsInChunk = 0;
+        private int largestRental = 256;
+        private UUID cursor;
+
+        private RentalChunkWriter(Consumer<String> chunkConsumer) throws IOException {
+            this.chunkConsumer = chunkConsumer;
+            startChunk();
+        }
 
-            ResultSet result = stmt.getResultSet();
+        private void write(Rental rental, UUID rentalId) throws IOException {
+            // The chunk is embedded as a string into the UDPMessage, so the escaped size counts
+            if (rentalsInChunk > 0 && buffer.escapedSize() + largestRental > MAX_CHUNK_SIZE) {
+                endChunk(false, true);
+                startChunk();
+            }
+
+            int before = buffer.escapedSize();
+            mapper.writeValue(generator, rental);
+            generator.flush();
+            largestRental = Math.max(largestRental, buffer.escapedSize() - before);
+            rentalsInChunk++;
+            cursor = rentalId;
+        }
 
-            while (result.next()) {
-                Rental rental = new Rental(
-                        result.getObject("rental_id", UUID.class),
-                        result.getObject("car_id", UUID.class),
-                        result.getDate("start_date"),
-                        result.getDate("end_date"),
-                        result.getDouble("total_price")
-                );
+        private void finish(boolean more) throws IOException {
+            endChunk(true, more);
+        }
+
+        private void startChunk() throws IOException {
+            buffer.reset();
+            rentalsInChunk = 0;
+            generator = mapper.getFactory().createGenerator(buffer);
+            generator.writeStartObject();
+            generator.writeNumberField("sequence", sequence++);
+            generator.writeArrayFieldStart("rentals");
+        }
+
+        private void endChunk(boolean last, boolean more) throws IOException {
+            generator.writeEndArray();
+            generator.writeStringField("cursor", cursor == null ? null : cursor.toString());
+            generator.writeBooleanField("last", last);
+            generator.writeBooleanField("more", more);
+            generator.writeEndObject();
+            generator.close();
+            chunkConsumer.accept(buffer.toString(StandardCharsets.UTF_8));
+        }
+
+    }
+
+    /**
+     * Byte buffer that keeps track of the size its content has once escaped as a JSON string
+     */
+    private static class ChunkBuffer extends ByteArrayOutputStream {
 
-                rentals.add(rental);
+        private int escapedCount = 0;
+        private int scanned = 0;
+
+        private int escapedSize() {
+            for (; scanned < count; scanned++) {
+                if (buf[scanned] == '"' || buf[scanned] == '\\') {
+                    escapedCount++;
+                }
             }
+            return count + escapedCount;
+        }
 
-            stmt.close();
-            return serializeRentals(rentals);
-        } catch (SQLException e) {
-            LOGGER.severe("Error while getting rentals: " + e.getMessage());
-            throw new RuntimeException(e);
-        } catch (JsonProcessingException e) {
-            LOGGER.severe("Error while serializing rentals: " + e.getMessage());
-            throw new RuntimeException(e);
+        @Override
+        public synchronized void reset() {
+            super.reset();
+            escapedCount = 0;
+            scanned = 0;
         }
+
     }
 
     /**
-     * Get all available cars from the database
+     * Get all available cars
+     * @see #getAvailableCarsPayload(String)
      * @param payload the payload of the UDPMessage containing the availability request
      * @return a JSON string containing all available rentals
      */
     public String getAvailableCars(String payload) {
-        PreparedStatement stmt = null;
-        List<Car> cars = new ArrayList<>();
+        return getAvailableCarsPayload(payload).getJson();
+    }
 
-        try (Connection conn = DatabaseConnection.getConnection()) {
-            AvailabilityRequest availabilityRequest = mapper.readValue(payload, AvailabilityRequest.class);
+    /**
+     * Get all available cars, encoded for the response datagram
+     * The search is answered by the store from memory, the encoded
+     * responses of recent searches are cached until the availability in their date range changes.
+     * The payload is either a single availability request or a JSON array of them,
+     * a batch is answered with a JSON array containing the available cars of every request in order.
+     * @param payload the payload of the UDPMessage containing the availability request
+     * @return the encoded JSON containing all available rentals
+     */
+    public EncodedPayload getAvailableCarsPayload(String payload) {
+        try {
+            if (payload.stripLeading().startsWith("[")) {
+                List<AvailabilityRequest> availabilityRequests = mapper.readValue(payload, new TypeReference<List<AvailabilityRequest>>() {});
+                List<EncodedPayload> availableCars = new ArrayList<>(availabilityRequests.size());
+
+                for (AvailabilityRequest availabilityRequest : availabilityRequests) {
+                    availableCars.add(findAvailableCars(availabilityRequest));
+                }
 
-            LocalDate startDate = LocalDate.parse(availabilityRequest.getStartDate(), dateFormatter);
-            LocalDate endDate = LocalDate.parse(availabilityRequest.getEndDate(), dateFormatter);
-
-            stmt = conn.prepareStatement("SELECT * FROM cars WHERE capacity >= ? AND car_id NOT IN (SELECT car_id FROM rentals WHERE start_date BETWEEN ? AND ? OR end_date BETWEEN ? AND ?)");
-            stmt.setInt(1, availabilityRequest.getNumberOfPersons());
-            stmt.setDate(2, java.sql.Date.valueOf(startDate));
-            stmt.setDate(3, java.sql.Date.valueOf(endDate));
-            stmt.setDate(4, java.sql.Date.valueOf(startDate));
-            stmt.setDate(5, java.sql.Date.valueOf(endDate));
-            stmt.executeQuery();
-
-            ResultSet resultSet = stmt.getResultSet();
-            while (resultSet.next()) {
-                Car car = new Car(
-                        resultSet.getObject("car_id", java.util.UUID.class),
-                        resultSet.getString("model"),
-                        resultSet.getString("manufacturer"),
-                        resultSet.getInt("capacity"),
-                        resultSet.getDouble("price_per_day")
-                );
-
-                cars.add(car);
+                return EncodedPayload.array(availableCars);
             }
 
-            stmt.close();
-            return serializeCars(cars);
-        } catch (SQLException e) {
-            LOGGER.severe("Error while getting available cars: " + e.getMessage());
-            e.printStackTrace();
-            throw new RuntimeException(e);
+            AvailabilityRequest availabilityRequest = mapper.readValue(payload, AvailabilityRequest.class);
+            return findAvailableCars(availabilityRequest);
         } catch (JsonProcessingException e) {
             LOGGER.severe("Error while serializing available cars: " + e.getMessage());
             throw new RuntimeException(e);
         }
     }
 
+    private EncodedPayload findAvailableCars(AvailabilityRequest availabilityRequest) throws JsonProcessingException {
+        LocalDate startDate = LocalDate.parse(availabilityRequest.getStartDate(), dateFormatter);
+        LocalDate endDate = LocalDate.parse(availabilityRequest.getEndDate(), dateFormatter);
+        // Every car has room for at least nobody, so all smaller numbers are the same search
+        AvailabilityResponseCache.Key key = new AvailabilityResponseCache.Key(startDate.toEpochDay(), endDate.toEpochDay(), Math.max(0, availabilityRequest.getNumberOfPersons()));
+
+        if (!verifyAvailabilityIndex) {
+            EncodedPayload cached = availabilityResponses.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        // Taken before the store is searched, so a change during the search keeps the response out of the cache
+        long sequence = availabilityResponses.currentSequence();
+        EncodedPayload response = EncodedPayload.of(serializeCars(store.getAvailableCars(availabilityRequest.getNumberOfPersons(), startDate, endDate)));
+        availabilityResponses.put(key, response, sequence);
+        return response;
+    }
+
     /**
      * Reserve a car
      * @param request the payload of the UDPMessage containing the reservation request
-     * @return a JSON string containing the reservation result
+     * @return the booking ID of the reservation or null if the car is not available
      */
     public UUID reserveCar(ReservationRequest request) {
-        PreparedStatement stmt = null;
-        UUID bookingId = UUID.randomUUID();
-
-        try (Connection conn = DatabaseConnection.getConnection()) {
-            // SELECT CAR TO GET DAILY PRICE
-            stmt = conn.prepareStatement("SELECT price_per_day FROM cars WHERE car_id = ?");
-            stmt.setObject(1, request.getResourceId());
-            stmt.executeQuery();
-
-            ResultSet resultSet = stmt.getResultSet();
-            resultSet.next();
-            double dailyPrice = resultSet.getDouble("price_per_day");
-
-            // CHECK IF CAR IS AVAILABLE
-            LOGGER.info("Checking if car is available: " + request.getResourceId());
-            stmt = conn.prepareStatement("SELECT * FROM rentals WHERE car_id = ? AND ((start_date <= ? AND end_date >= ?) OR (start_date <= ? AND end_date >= ?))");
-            stmt.setObject(1, request.getResourceId());
-            stmt.setDate(2, Date.valueOf(request.getStartDate()));
-            stmt.setDate(3, Date.valueOf(request.getEndDate()));
-            stmt.setDate(4, Date.valueOf(request.getStartDate()));
-            stmt.setDate(5, Date.valueOf(request.getEndDate()));
-            stmt.executeQuery();
-
-            resultSet = stmt.getResultSet();
-            if (resultSet.next()) {
-                LOGGER.info("Car is not available " + resultSet.getString("car_id"));
-                return null;
-            }
+        return store.reserveCar(UUID.randomUUID(), toReservation(request));
+    }
 
-            // PREPARE RENTAL
-            LocalDate startDate = LocalDate.parse(request.getStartDate(), dateFormatter);
-            LocalDate endDate = LocalDate.parse(request.getEndDate(), dateFormatter);
-            double totalPrice = dailyPrice * (startDate.until(endDate).getDays() + 1);
-
-            stmt = conn.prepareStatement("INSERT INTO rentals (rental_id, car_id, start_date, end_date, total_price, is_confirmed) VALUES (?, ?, ?, ?, ?, ?)");
-            stmt.setObject(1, bookingId);
-            stmt.setObject(2, request.getResourceId());
-            stmt.setDate(3, Date.valueOf(request.getStartDate()));
-            stmt.setDate(4, Date.valueOf(request.getEndDate()));
-            stmt.setDouble(5, totalPrice);
-            stmt.setBoolean(6, false);
-            stmt.executeUpdate();
-
-            stmt.close();
-        } catch (SQLException e) {
-            LOGGER.severe("Error while reserving car: " + e.getMessage());
-            return null;
-        }
+    /**
+     * Reserve several cars as one booking, either all cars are reserved or none
+     * @param requests the reservation requests of the cars
+     * @return the booking ID shared by all reservations or null if any car is not available
+     */
+    public UUID reserveCars(List<ReservationRequest> requests) {
+        return reserveCars(UUID.randomUUID(), requests);
+    }
+
+    /**
+     * Reserve several cars as one booking under a booking ID that was chosen and logged before,
+     * so the rentals can be found and removed again even if we crash before the result is logged
+     * @param bookingId the ID of the new booking
+     * @param requests the reservation requests of the cars
+     * @return the booking ID or null if any car is not available
+     */
+    public UUID reserveCars(UUID bookingId, List<ReservationRequest> requests) {
+        return store.reserveCars(bookingId, requests.stream().map(this::toReservation).toList());
+    }
 
-        return bookingId;
+    private RentalStore.Reservation toReservation(ReservationRequest request) {
+        return new RentalStore.Reservation(
+                request.getResourceId(),
+                LocalDate.parse(request.getStartDate(), dateFormatter),
+                LocalDate.parse(request.getEndDate(), dateFormatter)
+        );
     }
 
     /**
-     * Confirm a reservation
+     * Confirm a reservation, including all cars of the booking
      * @param bookingId the booking ID of the reservation
      * @return a boolean indicating whether the reservation was confirmed
      */
     public boolean confirmRental(UUID bookingId) {
-        PreparedStatement stmt = null;
-
-        try (Connection conn = DatabaseConnection.getConnection()) {
-            stmt = conn.prepareStatement("UPDATE rentals SET is_confirmed = true WHERE rental_id = ?");
-            stmt.setObject(1, bookingId, Types.OTHER);
-            stmt.executeUpdate();
-            stmt.close();
-        } catch (SQLException e) {
-            LOGGER.severe("Error while confirming rental: " + e.getMessage());
-            return false;
-        }
-
-        return true;
+        return store.confirmRental(bookingId);
     }
 
     public boolean abortRental(UUID bookingId) {
-        PreparedStatement stmt = null;
-
-        try (Connection conn = DatabaseConnection.getConnection()) {
-            stmt = conn.prepareStatement("DELETE FROM rentals WHERE rental_id = ?");
-            stmt.setObject(1, bookingId, Types.OTHER);
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            LOGGER.severe("Error while aborting rental: " + e.getMessage());
-            return false;
-        }
+        return store.abortRental(bookingId);
+    }
+
+    /**
+     * Confirm several reservations with as few round trips as the store allows
+     * @param bookingIds the booking IDs of the reservations
+     * @return whether all reservations were confirmed
+     */
+    public boolean confirmRentals(List<UUID> bookingIds) {
+        return store.confirmRentals(bookingIds);
+    }
 
-        return true;
+    /**
+     * Remove several reservations with as few round trips as the store allows
+     * @param bookingIds the booking IDs of the reservations
+     * @return whether all reservations were removed
+     */
+    public boolean abortRentals(List<UUID> bookingIds) {
+        return store.abortRentals(bookingIds);
     }
 
 }
@@ -0,0 +1,88 @@
+package org.wwi21seb.vs.group5.dao;
+
+import java.util.UUID;
+
+/**
+ * Filter and page of a GET_BOOKINGS request
+ * All fields are optional, rentals are returned ordered by their ID,
+ * starting after the cursor of the previous page
+ */
+public class RentalQuery {
+
+    private UUID cursor;
+    private Integer limit;
+    private UUID carId;
+    private String startDate;
+    private String endDate;
+    private Boolean confirmed;
+
+    public RentalQuery() {
+    }
+
+    /**
+     * @return the ID of the last rental of the previous page
+     */
+    public UUID getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(UUID cursor) {
+        this.cursor = cursor;
+    }
+
+    /**
+     * @return the maximum number of rentals of the page
+     */
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return the car the rentals belong to
+     */
+    public UUID getCarId() {
+        return carId;
+    }
+
+    public void setCarId(UUID carId) {
+        this.carId = carId;
+    }
+
+    /**
+     * @return the first day of the date range the rentals overlap
+     */
+    public String getStartDate() {
+        return startDate;
+    }
+
+    public void setStartDate(String startDate) {
+        this.startDate = startDate;
+    }
+
+    /**
+     * @return the last day of the date range the rentals overlap
+     */
+    public String getEndDate() {
+        return endDate;
+    }
+
+    public void setEndDate(String endDate) {
+        this.endDate = endDate;
+    }
+
+    /**
+     * @return whether only confirmed or only unconfirmed rentals are returned
+     */
+    public Boolean getConfirmed() {
+        return confirmed;
+    }
+
+    public void setConfirmed(Boolean confirmed) {
+        this.confirmed = confirmed;
+    }
+
+}
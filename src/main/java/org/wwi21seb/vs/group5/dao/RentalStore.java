@@ -0,0 +1,133 @@
+package org.wwi21seb.vs.group5.dao;
+
+import org.wwi21seb.vs.group5.Model.Car;
+import org.wwi21seb.vs.group5.Model.Rental;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The storage backend of the RentalDAO, which keeps the protocol side like parsing the payloads,
+ * caching the encoded responses and splitting pages into chunks.
+ * Dates are the inclusive first and last day of a rental.
+ * Every store tells the {@link AvailabilityIndex.ChangeListener} it was created with about every change of the availability.
+ */
+public interface RentalStore {
+
+    /**
+     * The rental of a car that is reserved as part of a booking
+     * @param carId the ID of the car
+     * @param startDate the first day of the rental
+     * @param endDate the last day of the rental
+     */
+    record Reservation(UUID carId, LocalDate startDate, LocalDate endDate) {
+    }
+
+    /**
+     * Receives the rentals of a page
+     */
+    @FunctionalInterface
+    interface RentalConsumer {
+
+        void accept(UUID rentalId, Rental rental) throws IOException;
+
+    }
+
+    /**
+     * @return all rentals
+     */
+    List<Rental> getRentals();
+
+    /**
+     * Visit a page of the rentals matching a query, ordered by their IDs
+     * @param query the filters and the cursor of the page, its limit is ignored
+     * @param limit the maximum number of rentals in the page
+     * @param consumer receives the rentals in order
+     * @return whether there are further rentals after the page
+     * @throws IOException if the consumer failed
+     */
+    boolean streamRentals(RentalQuery query, int limit, RentalConsumer consumer) throws IOException;
+
+    /**
+     * Find all cars with enough capacity that are not booked in a date range
+     * @param numberOfPersons the minimum capacity of the car
+     * @param startDate the first day of the date range
+     * @param endDate the last day of the date range
+     * @return the available cars, largest cars first
+     */
+    List<Car> getAvailableCars(int numberOfPersons, LocalDate startDate, LocalDate endDate);
+
+    /**
+     * Reserve a car as a booking of its own, the rental gets the ID of the booking
+     * The booking ID is chosen by the caller, so it can be logged before the reservation becomes visible
+     * @param bookingId the ID of the new booking
+     * @param reservation the car and the date range
+     * @return the booking ID of the reservation or null if the car doesn't exist or is not available,
+     * e.g. because an overlapping reservation of it is still in progress
+     */
+    UUID reserveCar(UUID bookingId, Reservation reservation);
+
+    /**
+     * Reserve several cars as one booking, either all cars are reserved or none
+     * @param bookingId the ID of the new booking
+     * @param reservations the cars and their date ranges
+     * @return the booking ID shared by all rentals or null if any car doesn't exist or is not available,
+     * e.g. because an overlapping reservation of it is still in progress
+     */
+    UUID reserveCars(UUID bookingId, List<Reservation> reservations);
+
+    /**
+     * Confirm all rentals of a booking
+     * @param bookingId the ID of the booking
+     * @return whether the booking was confirmed, also if it doesn't exist
+     */
+    boolean confirmRental(UUID bookingId);
+
+    /**
+     * Remove all rentals of a booking
+     * @param bookingId the ID of the booking
+     * @return whether the booking was removed, also if it doesn't exist
+     */
+    boolean abortRental(UUID bookingId);
+
+    /**
+     * Confirm all rentals of several bookings at once
+     * @param bookingIds the IDs of the bookings
+     * @return whether all bookings were confirmed, confirming them again is harmless
+     */
+    default boolean confirmRentals(List<UUID> bookingIds) {
+        for (UUID bookingId : bookingIds) {
+            if (!confirmRental(bookingId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove all rentals of several bookings at once
+     * @param bookingIds the IDs of the bookings
+     * @return whether all bookings were removed, removing them again is harmless
+     */
+    default boolean abortRentals(List<UUID> bookingIds) {
+        for (UUID bookingId : bookingIds) {
+            if (!abortRental(bookingId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop all cached car data and reload the fleet
+     */
+    void invalidateCars();
+
+    /**
+     * Release the resources of the store
+     */
+    void close();
+
+}
@@ -0,0 +1,101 @@
+package org.wwi21seb.vs.group5.dao;
+
+import org.wwi21seb.vs.group5.metrics.MetricsRegistry;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps concurrent reservations of the same car apart inside the service, so they don't compete for the same rows
+ * in the database. A reservation claims the date range of each of its cars until its insert is committed.
+ * A reservation whose dates overlap a range another reservation of the car has claimed is rejected at once,
+ * at most one of the two could get the car. Reservations of other dates of the same car are not affected.
+ * Claiming never waits, so the worker threads never block on each other and two bookings of several cars can't deadlock.
+ */
+public class ReservationAdmission {
+
+    /**
+     * The claims of a reservation, released on close
+     */
+    public final class Permit implements AutoCloseable {
+
+        private final List<Claim> claimed;
+
+        private Permit(int cars) {
+            this.claimed = new ArrayList<>(cars);
+        }
+
+        @Override
+        public void close() {
+            for (Claim claim : claimed) {
+                inProgress.computeIfPresent(claim.carId(), (carId, claims) -> {
+                    claims.remove(claim);
+                    return claims.isEmpty() ? null : claims;
+                });
+            }
+            claimed.clear();
+        }
+
+    }
+
+    /**
+     * The date range of a car claimed by a reservation in progress
+     */
+    private record Claim(UUID carId, LocalDate startDate, LocalDate endDate, Permit permit) {
+
+        boolean overlaps(LocalDate start, LocalDate end) {
+            return !startDate.isAfter(end) && !endDate.isBefore(start);
+        }
+
+    }
+
+    // The cars with reservations in progress and the date ranges they claimed, only changed inside of compute
+    private final ConcurrentHashMap<UUID, List<Claim>> inProgress = new ConcurrentHashMap<>();
+    private final LongAdder conflicts;
+
+    public ReservationAdmission() {
+        this.conflicts = MetricsRegistry.getDefault().counter("rental_admission_conflicts_total", "Reservations rejected because an overlapping reservation of the same car was in progress");
+    }
+
+    /**
+     * Claim the date ranges of a booking unless another reservation in progress overlaps one of them
+     * @param reservations the reservations of the booking, each with a car
+     * @return the permit to close once the reservation is done, or null if a reservation overlaps one in progress
+     */
+    public Permit tryAcquire(List<RentalStore.Reservation> reservations) {
+        Permit permit = new Permit(reservations.size());
+
+        for (RentalStore.Reservation reservation : reservations) {
+            Claim claim = new Claim(reservation.carId(), reservation.startDate(), reservation.endDate(), permit);
+            boolean[] overlapping = {false};
+
+            inProgress.compute(reservation.carId(), (carId, claims) -> {
+                if (claims == null) {
+                    claims = new ArrayList<>(2);
+                }
+                for (Claim other : claims) {
+                    if (other.permit() != permit && other.overlaps(claim.startDate(), claim.endDate())) {
+                        overlapping[0] = true;
+                        return claims;
+                    }
+                }
+                claims.add(claim);
+                return claims;
+            });
+
+            if (overlapping[0]) {
+                permit.close();
+                conflicts.increment();
+                return null;
+            }
+            permit.claimed.add(claim);
+        }
+
+        return permit;
+    }
+
+}
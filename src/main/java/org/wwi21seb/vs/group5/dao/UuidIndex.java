@@ -0,0 +1,198 @@
+package org.wwi21seb.vs.group5.dao;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * The keys of a hash table keyed by UUIDs, kept as two primitive longs per slot.
+ * Open addressing with linear probing, a removed key shifts its successors back,
+ * so there are no tombstones and lookups stay short after many removals.
+ * Subclasses keep their values in arrays of their own that are indexed by the slots of the keys,
+ * they are told when an entry moves to another slot, when a slot is freed and when the table grows.
+ * The index is not thread-safe.
+ */
+public abstract class UuidIndex {
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] mostSignificantBits;
+    private long[] leastSignificantBits;
+    private boolean[] used;
+    private int mask;
+    private int keys = 0;
+
+    /**
+     * @param expectedSize the number of keys the index holds without growing
+     */
+    protected UuidIndex(int expectedSize) {
+        allocate(Integer.highestOneBit(Math.max(8, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1);
+    }
+
+    private void allocate(int capacity) {
+        mostSignificantBits = new long[capacity];
+        leastSignificantBits = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return the number of slots, the length of the value arrays of the subclass
+     */
+    protected final int capacity() {
+        return used.length;
+    }
+
+    /**
+     * @return the number of keys in the index
+     */
+    protected final int keyCount() {
+        return keys;
+    }
+
+    protected final boolean isUsed(int slot) {
+        return used[slot];
+    }
+
+    protected final UUID keyAt(int slot) {
+        return new UUID(mostSignificantBits[slot], leastSignificantBits[slot]);
+    }
+
+    /**
+     * @param key the key to look up
+     * @return the slot of the key or the complement of the empty slot it would be inserted at
+     */
+    protected final int find(UUID key) {
+        return find(key.getMostSignificantBits(), key.getLeastSignificantBits());
+    }
+
+    private int find(long msb, long lsb) {
+        int slot = slot(msb, lsb);
+
+        for (; used[slot]; slot = (slot + 1) & mask) {
+            if (mostSignificantBits[slot] == msb && leastSignificantBits[slot] == lsb) {
+                return slot;
+            }
+        }
+        return ~slot;
+    }
+
+    /**
+     * Add a key unless the index already contains it, the table grows before it gets too full
+     * @param key the key to add
+     * @return the slot of the key if it was already there or the complement of the slot it was added at
+     */
+    protected final int insert(UUID key) {
+        long msb = key.getMostSignificantBits();
+        long lsb = key.getLeastSignificantBits();
+
+        int slot = find(msb, lsb);
+        if (slot >= 0) {
+            return slot;
+        }
+
+        if (keys + 1 > used.length * LOAD_FACTOR) {
+            grow();
+            slot = find(msb, lsb);
+        }
+
+        claim(~slot, msb, lsb);
+        return slot;
+    }
+
+    private void claim(int slot, long msb, long lsb) {
+        mostSignificantBits[slot] = msb;
+        leastSignificantBits[slot] = lsb;
+        used[slot] = true;
+        keys++;
+    }
+
+    /**
+     * Remove the key of a slot, the following keys of its probe sequence may move back into the gap
+     * @param gap the slot of the key to remove
+     */
+    protected final void removeAt(int gap) {
+        int slot = gap;
+
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (!used[slot]) {
+                break;
+            }
+
+            int home = slot(mostSignificantBits[slot], leastSignificantBits[slot]);
+            // The key may only move if its home slot is not between the gap and its current slot
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                mostSignificantBits[gap] = mostSignificantBits[slot];
+                leastSignificantBits[gap] = leastSignificantBits[slot];
+                move(slot, gap);
+                gap = slot;
+            }
+        }
+
+        used[gap] = false;
+        free(gap);
+        keys--;
+    }
+
+    /**
+     * Remove all keys, the slots are freed one by one
+     */
+    protected final void removeAll() {
+        for (int slot = 0; slot < used.length; slot++) {
+            if (used[slot]) {
+                free(slot);
+            }
+        }
+        Arrays.fill(used, false);
+        keys = 0;
+    }
+
+    private void grow() {
+        long[] oldMostSignificantBits = mostSignificantBits;
+        long[] oldLeastSignificantBits = leastSignificantBits;
+        boolean[] oldUsed = used;
+
+        allocate(oldUsed.length << 1);
+        keys = 0;
+
+        int[] targets = new int[oldUsed.length];
+        for (int oldSlot = 0; oldSlot < oldUsed.length; oldSlot++) {
+            if (oldUsed[oldSlot]) {
+                int slot = ~find(oldMostSignificantBits[oldSlot], oldLeastSignificantBits[oldSlot]);
+                claim(slot, oldMostSignificantBits[oldSlot], oldLeastSignificantBits[oldSlot]);
+                targets[oldSlot] = slot;
+            } else {
+                targets[oldSlot] = -1;
+            }
+        }
+
+        rehash(used.length, targets);
+    }
+
+    private int slot(long msb, long lsb) {
+        // Random UUIDs are well distributed already, the mixing protects against sequential IDs
+        long hash = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * Move the values of an entry to another slot, the target slot is free
+     * @param from the current slot of the entry
+     * @param to the new slot of the entry
+     */
+    protected abstract void move(int from, int to);
+
+    /**
+     * Release the values of a slot that no longer has a key, e.g. drop the references to them
+     * @param slot the freed slot
+     */
+    protected abstract void free(int slot);
+
+    /**
+     * Replace the value arrays with larger ones after the table has grown
+     * @param capacity the new number of slots
+     * @param targets the new slot of every old slot, -1 for the old slots without a key
+     */
+    protected abstract void rehash(int capacity, int[] targets);
+
+}
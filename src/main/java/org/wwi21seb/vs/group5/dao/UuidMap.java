@@ -0,0 +1,114 @@
+package org.wwi21seb.vs.group5.dao;
+
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+/**
+ * Hash map from UUIDs to values, the keys are kept as two primitive longs by the {@link UuidIndex}.
+ * The map is not thread-safe.
+ * @param <V> the type of the values
+ */
+class UuidMap<V> extends UuidIndex {
+
+    private Object[] values;
+
+    UuidMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize the number of entries the map holds without growing
+     */
+    UuidMap(int expectedSize) {
+        super(expectedSize);
+        values = new Object[capacity()];
+    }
+
+    int size() {
+        return keyCount();
+    }
+
+    /**
+     * @param key the key to look up
+     * @return the value of the key or null if the map doesn't contain it
+     */
+    @SuppressWarnings("unchecked")
+    V get(UUID key) {
+        int slot = find(key);
+        return slot < 0 ? null : (V) values[slot];
+    }
+
+    /**
+     * @param key the key of the value
+     * @param value the value, must not be null
+     * @return the previous value of the key or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    V put(UUID key, V value) {
+        int slot = insert(key);
+        if (slot < 0) {
+            values[~slot] = value;
+            return null;
+        }
+
+        V previous = (V) values[slot];
+        values[slot] = value;
+        return previous;
+    }
+
+    /**
+     * @param key the key to remove
+     * @return the removed value or null if the map didn't contain the key
+     */
+    @SuppressWarnings("unchecked")
+    V remove(UUID key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return null;
+        }
+
+        V previous = (V) values[slot];
+        removeAt(slot);
+        return previous;
+    }
+
+    /**
+     * Visit all entries in no particular order
+     * @param consumer receives the key and the value of every entry
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<UUID, V> consumer) {
+        for (int slot = 0; slot < values.length; slot++) {
+            if (isUsed(slot)) {
+                consumer.accept(keyAt(slot), (V) values[slot]);
+            }
+        }
+    }
+
+    void clear() {
+        removeAll();
+    }
+
+    @Override
+    protected void move(int from, int to) {
+        values[to] = values[from];
+    }
+
+    @Override
+    protected void free(int slot) {
+        values[slot] = null;
+    }
+
+    @Override
+    protected void rehash(int capacity, int[] targets) {
+        Object[] oldValues = values;
+        values = new Object[capacity];
+
+        for (int oldSlot = 0; oldSlot < targets.length; oldSlot++) {
+            if (targets[oldSlot] >= 0) {
+                values[targets[oldSlot]] = oldValues[oldSlot];
+            }
+        }
+    }
+
+}
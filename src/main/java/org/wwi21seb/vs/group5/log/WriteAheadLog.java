@@ -0,0 +1,572 @@
+package org.wwi21seb.vs.group5.log;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.wwi21seb.vs.group5.Logger.LoggerFactory;
+import org.wwi21seb.vs.group5.metrics.LatencyHistogram;
+import org.wwi21seb.vs.group5.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented log of values keyed by transaction id.
+ * Writes of concurrent transactions are collected by a single flusher thread and
+ * made durable with one fsync per batch (group commit). Deleting an entry appends
+ * a tombstone, segments that are no longer written to are compacted in the background.
+ * <p>
+ * Every record is laid out as: length (int) | crc32 of the body (int) | body,
+ * where the body is: type (byte) | transaction id (two longs) | JSON payload.
+ * A compacted segment starts with a BASE record, which tells the reader that the
+ * segment contains the complete state of every older segment.
+ *
+ * @param <T> the type of the logged values
+ */
+public class WriteAheadLog<T> {
+
+    private static final Logger LOGGER = LoggerFactory.setupLogger(WriteAheadLog.class.getName());
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_TOMBSTONE = 2;
+    private static final byte TYPE_BASE = 3;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int BODY_HEADER_SIZE = 17;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPACTION_SUFFIX = ".compact";
+
+    private final Path directory;
+    private final Class<T> type;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final long groupCommitWindowNanos;
+    private final long segmentSize;
+    private final LatencyHistogram writeTime = MetricsRegistry.getDefault().histogram("rental_log_write_duration_seconds", "Time until a participant log write was durable");
+
+    private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+    // Segment that holds the latest version of every live entry
+    private final ConcurrentHashMap<UUID, Long> latestSegment = new ConcurrentHashMap<>();
+    private final Map<UUID, byte[]> recovered = new LinkedHashMap<>();
+    private final Object segmentLock = new Object();
+
+    private final Thread flusher;
+    private final ScheduledExecutorService compactor;
+    private volatile boolean running = true;
+
+    private FileChannel activeChannel;
+    private long activeSegment;
+
+    /**
+     * Open the log in the given directory and recover the entries of all existing segments
+     * @param directory the directory of the segment files
+     * @param type the type of the logged values
+     * @param groupCommitWindowMicros how long the flusher waits for further records before it syncs a batch
+     * @param segmentSize the size after which a new segment is started
+     * @param compactionIntervalMillis the interval of the background compaction
+     */
+    public WriteAheadLog(Path directory, Class<T> type, long groupCommitWindowMicros, long segmentSize, long compactionIntervalMillis) {
+        this.directory = directory;
+        this.type = type;
+        this.groupCommitWindowNanos = TimeUnit.MICROSECONDS.toNanos(groupCommitWindowMicros);
+        this.segmentSize = segmentSize;
+
+        try {
+            Files.createDirectories(directory);
+            recover();
+            openSegment(segments().stream().mapToLong(Long::longValue).max().orElse(0) + 1);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error while opening write-ahead log", e);
+            throw new UncheckedIOException(e);
+        }
+
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+
+        this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compactor.scheduleWithFixedDelay(this::compact, compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write a value to the log and wait until it is durable
+     * @param id the transaction id of the value
+     * @param value the value to write
+     */
+    public void writeLog(UUID id, T value) {
+        long start = System.nanoTime();
+        byte[] payload;
+
+        try {
+            payload = mapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error while serializing log entry", e);
+            throw new UncheckedIOException(e);
+        }
+
+        writeEncodedLog(id, payload, start);
+    }
+
+    /**
+     * Write a value that the caller already encoded as JSON, e.g. to keep it, and wait until it is durable
+     * @param id the transaction id of the value
+     * @param payload the value encoded like a plain ObjectMapper does
+     */
+    public void writeEncodedLog(UUID id, byte[] payload) {
+        writeEncodedLog(id, payload, System.nanoTime());
+    }
+
+    private void writeEncodedLog(UUID id, byte[] payload, long start) {
+        try {
+            append(TYPE_PUT, id, payload).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            writeTime.recordSince(start);
+        }
+    }
+
+    /**
+     * Delete the value of a transaction by appending a tombstone.
+     * The tombstone is synced with the next batch, the call does not wait for it.
+     * @param id the transaction id of the value
+     */
+    public void deleteLog(UUID id) {
+        append(TYPE_TOMBSTONE, id, new byte[0]);
+    }
+
+    /**
+     * Delete the value of a transaction and wait until the tombstone is durable,
+     * for callers that must not see the value again after a crash
+     * @param id the transaction id of the value
+     */
+    public void deleteLogSync(UUID id) {
+        try {
+            append(TYPE_TOMBSTONE, id, new byte[0]).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Get all values that were live when the log was opened
+     * @return the recovered values in the order they were first written
+     */
+    public List<T> readAllLogs() {
+        // Deserializing is the expensive part of the recovery, so it is spread across all cores
+        return recovered.entrySet().parallelStream()
+                .map(entry -> {
+                    try {
+                        return mapper.readValue(entry.getValue(), type);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.SEVERE, "Skipping unreadable log entry " + entry.getKey(), e);
+                        return null;
+                    }
+                })
+                .filter(Objects::nonNull)
+                .toList();
+    }
+
+    /**
+     * Sync the pending records and close the log
+     */
+    public void close() {
+        // The flusher is not interrupted, an interrupt would close the channel in the middle of a write
+        running = false;
+        compactor.shutdown();
+
+        try {
+            flusher.join();
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+
+            // Records appended while the flusher stopped, appends that come after this fail on their own
+            List<PendingRecord> leftovers = new ArrayList<>();
+            queue.drainTo(leftovers);
+            if (!leftovers.isEmpty()) {
+                writeBatch(leftovers, ByteBuffer.allocateDirect(64 * 1024));
+            }
+
+            synchronized (segmentLock) {
+                activeChannel.force(false);
+                activeChannel.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error while closing write-ahead log", e);
+        }
+    }
+
+    private CompletableFuture<Void> append(byte recordType, UUID id, byte[] payload) {
+        if (!running) {
+            throw new IllegalStateException("Write-ahead log is closed");
+        }
+
+        PendingRecord record = new PendingRecord(recordType, id, payload, new CompletableFuture<>());
+        queue.add(record);
+
+        // The log was closed in the meantime and the record may have missed the last drain of the queue,
+        // if it is still there nobody else will write it
+        if (!running && queue.remove(record)) {
+            record.future().completeExceptionally(new IllegalStateException("Write-ahead log is closed"));
+        }
+        return record.future();
+    }
+
+    private void flushLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingRecord first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+
+                // Records that arrived while the previous batch was synced are taken right away,
+                // afterwards we wait up to the group commit window for further records
+                long deadline = System.nanoTime() + groupCommitWindowNanos;
+                queue.drainTo(batch);
+                long remaining;
+                while (running && (remaining = deadline - System.nanoTime()) > 0) {
+                    PendingRecord next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                // Not expected, keep going since an interrupt status would break the file channel
+                queue.drainTo(batch);
+            }
+
+            buffer = writeBatch(batch, buffer);
+            batch.clear();
+        }
+    }
+
+    private ByteBuffer writeBatch(List<PendingRecord> batch, ByteBuffer buffer) {
+        int size = 0;
+        for (PendingRecord record : batch) {
+            size += HEADER_SIZE + BODY_HEADER_SIZE + record.payload().length;
+        }
+
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(size) << 1);
+        }
+
+        buffer.clear();
+        for (PendingRecord record : batch) {
+            putRecord(buffer, record.type(), record.id(), record.payload());
+        }
+        buffer.flip();
+
+        IOException failure = null;
+        synchronized (segmentLock) {
+            long batchStart = -1;
+            try {
+                batchStart = activeChannel.position();
+                while (buffer.hasRemaining()) {
+                    activeChannel.write(buffer);
+                }
+                activeChannel.force(false);
+
+                // Must happen before the segment is sealed, otherwise the compactor could drop these records
+                for (PendingRecord record : batch) {
+                    if (record.type() == TYPE_PUT) {
+                        latestSegment.put(record.id(), activeSegment);
+                    } else {
+                        latestSegment.remove(record.id());
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+                discardBatch(batchStart);
+            }
+
+            if (failure == null) {
+                try {
+                    if (activeChannel.position() >= segmentSize) {
+                        activeChannel.close();
+                        openSegment(activeSegment + 1);
+                    }
+                } catch (IOException e) {
+                    // The batch is durable, the next batch finds the channel closed and starts a new segment
+                    LOGGER.log(Level.SEVERE, "Error while starting a new write-ahead log segment", e);
+                }
+            }
+        }
+
+        if (failure != null) {
+            LOGGER.log(Level.SEVERE, "Error while writing to write-ahead log", failure);
+            for (PendingRecord record : batch) {
+                record.future().completeExceptionally(failure);
+            }
+            return buffer;
+        }
+
+        for (PendingRecord record : batch) {
+            record.future().complete(null);
+        }
+        return buffer;
+    }
+
+    /**
+     * Remove what a failed batch may have left in the active segment, the reader stops at a torn record
+     * and would miss every record appended after it. A segment that can't be cut back is sealed instead
+     * and the next batch goes to a new segment.
+     * @param batchStart the size of the segment before the batch, -1 if it is unknown
+     */
+    private void discardBatch(long batchStart) {
+        if (batchStart >= 0) {
+            try {
+                activeChannel.truncate(batchStart);
+                activeChannel.force(false);
+                return;
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error while truncating the failed batch, starting a new segment", e);
+            }
+        }
+
+        try {
+            activeChannel.close();
+            openSegment(activeSegment + 1);
+        } catch (IOException e) {
+            // The channel stays closed, so the next batch fails right away and tries again
+            LOGGER.log(Level.SEVERE, "Error while starting a new write-ahead log segment", e);
+        }
+    }
+
+    private static void putRecord(ByteBuffer buffer, byte recordType, UUID id, byte[] payload) {
+        int start = buffer.position();
+        buffer.putInt(BODY_HEADER_SIZE + payload.length);
+        buffer.putInt(0);
+        buffer.put(recordType);
+        buffer.putLong(id.getMostSignificantBits());
+        buffer.putLong(id.getLeastSignificantBits());
+        buffer.put(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().position(start + HEADER_SIZE).limit(buffer.position()));
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    private void openSegment(long segment) throws IOException {
+        activeChannel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeSegment = segment;
+        // Otherwise the synced records of a new segment could vanish with its directory entry in a crash
+        syncDirectory();
+    }
+
+    /**
+     * Make the creation, rename or removal of segment files durable, which syncing the files themselves doesn't
+     */
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("wal-%020d%s", segment, SEGMENT_SUFFIX));
+    }
+
+    private List<Long> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith("wal-") && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(4, name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private void recover() throws IOException {
+        // Leftovers of a compaction that did not finish, the original segments are still there
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.filter(path -> path.toString().endsWith(COMPACTION_SUFFIX)).toList()) {
+                Files.delete(file);
+            }
+        }
+
+        // Start at the newest snapshot, everything before it is obsolete
+        List<Long> segments = segments();
+        int snapshot = 0;
+        for (int i = segments.size() - 1; i > 0; i--) {
+            if (isSnapshot(segments.get(i))) {
+                snapshot = i;
+                break;
+            }
+        }
+
+        for (long segment : segments.subList(0, snapshot)) {
+            Files.deleteIfExists(segmentPath(segment));
+        }
+
+        for (long segment : segments.subList(snapshot, segments.size())) {
+            readSegment(segment, (recordType, id, payload) -> {
+                switch (recordType) {
+                    case TYPE_BASE -> {
+                        recovered.clear();
+                        latestSegment.clear();
+                    }
+                    case TYPE_PUT -> {
+                        recovered.put(id, payload);
+                        latestSegment.put(id, segment);
+                    }
+                    case TYPE_TOMBSTONE -> {
+                        recovered.remove(id);
+                        latestSegment.remove(id);
+                    }
+                    default -> LOGGER.warning("Unknown record type " + recordType + " in segment " + segment);
+                }
+            });
+        }
+
+        LOGGER.log(Level.INFO, "Recovered {0} log entries", recovered.size());
+    }
+
+    /**
+     * Check whether a segment is the result of a compaction, i.e. starts with a BASE record
+     */
+    private boolean isSnapshot(long segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 1);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Read until the header is complete or the file ends
+            }
+            return !header.hasRemaining() && header.get(HEADER_SIZE) == TYPE_BASE;
+        }
+    }
+
+    /**
+     * Read all intact records of a segment, a torn or corrupt record ends the segment
+     */
+    private void readSegment(long segment, RecordConsumer consumer) throws IOException {
+        byte[] content = Files.readAllBytes(segmentPath(segment));
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+
+            if (length < BODY_HEADER_SIZE || length > buffer.remaining()) {
+                LOGGER.warning("Truncated record in segment " + segment);
+                return;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(content, buffer.position(), length);
+            if ((int) crc.getValue() != checksum) {
+                LOGGER.warning("Corrupt record in segment " + segment);
+                return;
+            }
+
+            byte recordType = buffer.get();
+            UUID id = new UUID(buffer.getLong(), buffer.getLong());
+            byte[] payload = new byte[length - BODY_HEADER_SIZE];
+            buffer.get(payload);
+            consumer.accept(recordType, id, payload);
+        }
+    }
+
+    /**
+     * Merge all segments that are no longer written to into a snapshot segment
+     * containing only the latest version of every live entry
+     */
+    private void compact() {
+        try {
+            // Seal the active segment, so the snapshot covers everything written up to now
+            long active;
+            synchronized (segmentLock) {
+                if (activeChannel.position() > 0) {
+                    activeChannel.close();
+                    openSegment(activeSegment + 1);
+                }
+                active = activeSegment;
+            }
+
+            List<Long> sealed = segments().stream().filter(segment -> segment < active).toList();
+            if (sealed.isEmpty() || (sealed.size() == 1 && isSnapshot(sealed.get(0)))) {
+                return;
+            }
+
+            long target = sealed.get(sealed.size() - 1);
+            Map<UUID, byte[]> live = new LinkedHashMap<>();
+
+            for (long segment : sealed) {
+                readSegment(segment, (recordType, id, payload) -> {
+                    Long latest = latestSegment.get(id);
+                    if (recordType == TYPE_PUT && latest != null && latest == segment) {
+                        live.put(id, payload);
+                    }
+                });
+            }
+
+            int size = HEADER_SIZE + BODY_HEADER_SIZE;
+            for (byte[] payload : live.values()) {
+                size += HEADER_SIZE + BODY_HEADER_SIZE + payload.length;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            putRecord(buffer, TYPE_BASE, new UUID(0, 0), new byte[0]);
+            live.forEach((id, payload) -> putRecord(buffer, TYPE_PUT, id, payload));
+            buffer.flip();
+
+            Path compacted = directory.resolve(segmentPath(target).getFileName() + COMPACTION_SUFFIX);
+            try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+
+            // The BASE record makes the older segments obsolete as soon as the compacted segment is in place
+            Files.move(compacted, segmentPath(target), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            // The older segments may only go once the rename survives a crash
+            syncDirectory();
+            for (long segment : sealed) {
+                if (segment != target) {
+                    Files.deleteIfExists(segmentPath(segment));
+                }
+            }
+
+            for (UUID id : live.keySet()) {
+                latestSegment.computeIfPresent(id, (key, segment) -> segment < target ? target : segment);
+            }
+
+            LOGGER.log(Level.INFO, "Compacted {0} segments into segment {1} with {2} live entries", new Object[]{sealed.size(), target, live.size()});
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error while compacting write-ahead log", e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordConsumer {
+        void accept(byte recordType, UUID id, byte[] payload);
+    }
+
+    private record PendingRecord(byte type, UUID id, byte[] payload, CompletableFuture<Void> future) {
+    }
+
+}
@@ -0,0 +1,172 @@
+package org.wwi21seb.vs.group5.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Holds the metrics of the service and writes them in the Prometheus text format.
+ * Metrics are registered once, e.g. in a constructor, and then updated without
+ * going through the registry. Registering the same metric again returns the existing one.
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private enum Type {
+        SUMMARY, COUNTER, GAUGE
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * @return the registry shared by all components of the service
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Register a latency histogram, exported as a summary in seconds
+     * @param name the name of the metric
+     * @param help the description of the metric
+     * @return the histogram
+     */
+    public LatencyHistogram histogram(String name, String help) {
+        return histogram(name, help, null, null);
+    }
+
+    /**
+     * Register a latency histogram with a label, exported as a summary in seconds
+     * @param name the name of the metric
+     * @param help the description of the metric
+     * @param label the name of the label
+     * @param value the value of the label for this histogram
+     * @return the histogram
+     */
+    public LatencyHistogram histogram(String name, String help, String label, String value) {
+        return (LatencyHistogram) register(name, help, Type.SUMMARY, labels(label, value), LatencyHistogram::new);
+    }
+
+    /**
+     * Register a counter
+     * @param name the name of the metric, ending with _total
+     * @param help the description of the metric
+     * @return the counter
+     */
+    public LongAdder counter(String name, String help) {
+        return counter(name, help, null, null);
+    }
+
+    /**
+     * Register a counter with a label
+     * @param name the name of the metric, ending with _total
+     * @param help the description of the metric
+     * @param label the name of the label
+     * @param value the value of the label for this counter
+     * @return the counter
+     */
+    public LongAdder counter(String name, String help, String label, String value) {
+        return (LongAdder) register(name, help, Type.COUNTER, labels(label, value), LongAdder::new);
+    }
+
+    /**
+     * Register a gauge whose value is read when the metrics are written, replacing a previous one
+     * @param name the name of the metric
+     * @param help the description of the metric
+     * @param value supplies the current value
+     */
+    public synchronized void gauge(String name, String help, DoubleSupplier value) {
+        family(name, help, Type.GAUGE).series.put("", value);
+    }
+
+    /**
+     * Write all metrics in the Prometheus text exposition format
+     * @return the metrics
+     */
+    public synchronized String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type.name().toLowerCase()).append('\n');
+
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+
+                switch (family.type) {
+                    case SUMMARY -> {
+                        LatencyHistogram histogram = (LatencyHistogram) series.getValue();
+                        for (double quantile : QUANTILES) {
+                            String quantileLabel = "quantile=\"" + quantile + "\"";
+                            sample(out, family.name, labels.isEmpty() ? quantileLabel : labels + "," + quantileLabel, histogram.getQuantile(quantile) / NANOS_PER_SECOND);
+                        }
+                        sample(out, family.name + "_sum", labels, histogram.getSum() / NANOS_PER_SECOND);
+                        sample(out, family.name + "_count", labels, histogram.getCount());
+                    }
+                    case COUNTER -> sample(out, family.name, labels, ((LongAdder) series.getValue()).sum());
+                    case GAUGE -> sample(out, family.name, labels, ((DoubleSupplier) series.getValue()).getAsDouble());
+                }
+            }
+        }
+
+        return out.toString();
+    }
+
+    private synchronized Object register(String name, String help, Type type, String labels, Supplier<Object> factory) {
+        return family(name, help, type).series.computeIfAbsent(labels, l -> factory.get());
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+        }
+        return family;
+    }
+
+    private static String labels(String label, String value) {
+        if (label == null) {
+            return "";
+        }
+
+        String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return label + "=\"" + escaped + "\"";
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static class Family {
+
+        private final String name;
+        private final String help;
+        private final Type type;
+        private final Map<String, Object> series = new LinkedHashMap<>();
+
+        private Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.wwi21seb.vs.group5.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.wwi21seb.vs.group5.Logger.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the metrics of a registry in the Prometheus text format on /metrics,
+ * together with admin actions that are triggered with a POST request.
+ * The server runs on a single daemon thread, so a scrape never competes with the message handling for more than one core.
+ */
+public class MetricsServer {
+
+    private static final Logger LOGGER = LoggerFactory.setupLogger(MetricsServer.class.getName());
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+    private final MetricsRegistry registry;
+
+    /**
+     * Create the server, it only accepts connections after {@link #start()}
+     * @param registry the registry to serve
+     * @param address the address to listen on, usually the loopback address
+     * @throws IOException if the address can't be bound
+     */
+    public MetricsServer(MetricsRegistry registry, InetSocketAddress address) throws IOException {
+        this.registry = registry;
+        this.server = HttpServer.create(address, 0);
+        this.server.createContext("/metrics", this::handle);
+        this.server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * Add an admin action, e.g. to invalidate a cache
+     * @param path the path of the action
+     * @param action the action to run on a POST request to the path
+     */
+    public void addAction(String path, Runnable action) {
+        server.createContext(path, exchange -> {
+            try (exchange) {
+                if (!exchange.getRequestMethod().equals("POST")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+
+                try {
+                    action.run();
+                    exchange.sendResponseHeaders(204, -1);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "Admin action " + path + " failed", e);
+                    exchange.sendResponseHeaders(500, -1);
+                }
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+        LOGGER.log(Level.INFO, "Serving metrics on http://{0}:{1}/metrics", new Object[]{server.getAddress().getHostString(), String.valueOf(server.getAddress().getPort())});
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+package org.wwi21seb.vs.group5.service;
+
+import org.wwi21seb.vs.group5.TwoPhaseCommit.TransactionState;
+import org.wwi21seb.vs.group5.TwoPhaseCommit.Vote;
+import org.wwi21seb.vs.group5.dao.UuidIndex;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The state of the transactions of the service, reduced to what the participant needs to answer them:
+ * the transaction state, our vote and done flag, our booking ID and the address of the coordinator.
+ * Every transaction is a fixed-width record of {@value #STRIDE} longs in one flat array, indexed by the slots
+ * of the transaction IDs in the {@link UuidIndex}, so a transaction held after its decision is no object graph on the heap.
+ * The encoded full ParticipantContext is only kept as long as it may still be needed,
+ * to ask the other participants for the decision or to log the decision, see {@link #setEncoded(UUID, byte[])}.
+ * All methods are thread-safe.
+ */
+public class CompactContextStore extends UuidIndex {
+
+    /**
+     * A copy of the record of a transaction
+     * @param transactionId the ID of the transaction
+     * @param state the state of the transaction
+     * @param vote our vote or null if we didn't vote yet
+     * @param done whether our part of the decision is done
+     * @param bookingId the ID of our booking or null if nothing was reserved
+     * @param coordinatorAddress the address of the coordinator or null if unknown
+     * @param coordinatorPort the port of the coordinator
+     * @param coordinatorName the name of the coordinator
+     */
+    public record Entry(UUID transactionId, TransactionState state, Vote vote, boolean done, UUID bookingId,
+                        InetAddress coordinatorAddress, int coordinatorPort, String coordinatorName) {
+    }
+
+    // The layout of a record, the transaction ID is the key of its slot
+    private static final int STRIDE = 5;
+    private static final int BOOKING_MSB = 0;
+    private static final int BOOKING_LSB = 1;
+    private static final int ADDRESS_HIGH = 2;
+    private static final int ADDRESS_LOW = 3;
+    private static final int META = 4;
+
+    // The bits of the META field
+    private static final int STATE_SHIFT = 0;
+    private static final int VOTE_SHIFT = 3;
+    private static final long ENUM_MASK = 0b111L;
+    private static final long DONE = 1L << 6;
+    private static final long HAS_BOOKING = 1L << 7;
+    private static final long HAS_ADDRESS = 1L << 8;
+    private static final long IPV6 = 1L << 9;
+    private static final int PORT_SHIFT = 16;
+    private static final int NAME_SHIFT = 32;
+
+    private static final TransactionState[] STATES = TransactionState.values();
+    private static final Vote[] VOTES = Vote.values();
+
+    private long[] records;
+    private byte[][] encoded;
+
+    // Coordinator names, there are only a few of them, so each record only keeps an index
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> nameIndexes = new HashMap<>();
+
+    /**
+     * @param expectedSize the number of transactions the store holds without growing
+     */
+    public CompactContextStore(int expectedSize) {
+        super(expectedSize);
+        records = new long[capacity() * STRIDE];
+        encoded = new byte[capacity()][];
+    }
+
+    public synchronized int size() {
+        return keyCount();
+    }
+
+    /**
+     * Add a transaction or replace its record
+     * @param entry the new record of the transaction
+     * @param encodedContext the encoded ParticipantContext or null if it is not needed anymore
+     */
+    public synchronized void put(Entry entry, byte[] encodedContext) {
+        int slot = insert(entry.transactionId());
+        if (slot < 0) {
+            slot = ~slot;
+        }
+
+        int base = slot * STRIDE;
+        long meta = (long) entry.state().ordinal() << STATE_SHIFT | (long) nameIndex(entry.coordinatorName()) << NAME_SHIFT;
+        if (entry.vote() != null) {
+            meta |= (long) (entry.vote().ordinal() + 1) << VOTE_SHIFT;
+        }
+        if (entry.done()) {
+            meta |= DONE;
+        }
+        if (entry.bookingId() != null) {
+            meta |= HAS_BOOKING;
+            records[base + BOOKING_MSB] = entry.bookingId().getMostSignificantBits();
+            records[base + BOOKING_LSB] = entry.bookingId().getLeastSignificantBits();
+        }
+        if (entry.coordinatorAddress() != null) {
+            byte[] address = entry.coordinatorAddress().getAddress();
+            ByteBuffer buffer = ByteBuffer.allocate(16).put(address);
+            meta |= HAS_ADDRESS | (address.length == 16 ? IPV6 : 0) | (long) (entry.coordinatorPort() & 0xFFFF) << PORT_SHIFT;
+            records[base + ADDRESS_HIGH] = buffer.getLong(0);
+            records[base + ADDRESS_LOW] = buffer.getLong(8);
+        }
+        records[base + META] = meta;
+        encoded[slot] = encodedContext;
+    }
+
+    /**
+     * @param transactionId the ID of the transaction
+     * @return a copy of the record or null if the transaction is unknown
+     */
+    public synchronized Entry get(UUID transactionId) {
+        int slot = find(transactionId);
+        return slot < 0 ? null : entry(slot);
+    }
+
+    public synchronized boolean contains(UUID transactionId) {
+        return find(transactionId) >= 0;
+    }
+
+    /**
+     * @param transactionId the ID of the transaction
+     * @param state the new state of the transaction
+     * @return whether the transaction is known
+     */
+    public synchronized boolean setState(UUID transactionId, TransactionState state) {
+        int slot = find(transactionId);
+        if (slot < 0) {
+            return false;
+        }
+
+        int meta = slot * STRIDE + META;
+        records[meta] = records[meta] & ~(ENUM_MASK << STATE_SHIFT) | (long) state.ordinal() << STATE_SHIFT;
+        return true;
+    }
+
+    /**
+     * Mark our part of the decision as done
+     * @param transactionId the ID of the transaction
+     */
+    public synchronized void setDone(UUID transactionId) {
+        int slot = find(transactionId);
+        if (slot >= 0) {
+            records[slot * STRIDE + META] |= DONE;
+        }
+    }
+
+    /**
+     * @param transactionId the ID of the transaction
+     * @return the encoded ParticipantContext or null if it is unknown or was dropped
+     */
+    public synchronized byte[] getEncoded(UUID transactionId) {
+        int slot = find(transactionId);
+        return slot < 0 ? null : encoded[slot];
+    }
+
+    /**
+     * Replace the encoded ParticipantContext of a transaction
+     * @param transactionId the ID of the transaction
+     * @param encodedContext the encoded context or null to drop it
+     */
+    public synchronized void setEncoded(UUID transactionId, byte[] encodedContext) {
+        int slot = find(transactionId);
+        if (slot >= 0) {
+            encoded[slot] = encodedContext;
+        }
+    }
+
+    public synchronized void remove(UUID transactionId) {
+        int slot = find(transactionId);
+        if (slot >= 0) {
+            removeAt(slot);
+        }
+    }
+
+    private Entry entry(int slot) {
+        int base = slot * STRIDE;
+        long meta = records[base + META];
+        int vote = (int) (meta >>> VOTE_SHIFT & ENUM_MASK);
+        InetAddress address = null;
+
+        if ((meta & HAS_ADDRESS) != 0) {
+            ByteBuffer buffer = ByteBuffer.allocate(16).putLong(records[base + ADDRESS_HIGH]).putLong(records[base + ADDRESS_LOW]);
+            try {
+                address = InetAddress.getByAddress((meta & IPV6) != 0 ? buffer.array() : Arrays.copyOf(buffer.array(), 4));
+            } catch (UnknownHostException e) {
+                // Only thrown for an illegal length
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return new Entry(
+                keyAt(slot),
+                STATES[(int) (meta >>> STATE_SHIFT & ENUM_MASK)],
+                vote == 0 ? null : VOTES[vote - 1],
+                (meta & DONE) != 0,
+                (meta & HAS_BOOKING) != 0 ? new UUID(records[base + BOOKING_MSB], records[base + BOOKING_LSB]) : null,
+                address,
+                (int) (meta >>> PORT_SHIFT & 0xFFFF),
+                names.get((int) (meta >>> NAME_SHIFT))
+        );
+    }
+
+    private int nameIndex(String name) {
+        return nameIndexes.computeIfAbsent(name, key -> {
+            names.add(key);
+            return names.size() - 1;
+        });
+    }
+
+    @Override
+    protected void move(int from, int to) {
+        System.arraycopy(records, from * STRIDE, records, to * STRIDE, STRIDE);
+        encoded[to] = encoded[from];
+    }
+
+    @Override
+    protected void free(int slot) {
+        encoded[slot] = null;
+    }
+
+    @Override
+    protected void rehash(int capacity, int[] targets) {
+        long[] oldRecords = records;
+        byte[][] oldEncoded = encoded;
+        records = new long[capacity * STRIDE];
+        encoded = new byte[capacity][];
+
+        for (int oldSlot = 0; oldSlot < targets.length; oldSlot++) {
+            int slot = targets[oldSlot];
+            if (slot >= 0) {
+                System.arraycopy(oldRecords, oldSlot * STRIDE, records, slot * STRIDE, STRIDE);
+                encoded[slot] = oldEncoded[oldSlot];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,306 @@
+package org.wwi21seb.vs.group5.service;
+
+import org.wwi21seb.vs.group5.Logger.LoggerFactory;
+import org.wwi21seb.vs.group5.dao.RentalDAO;
+import org.wwi21seb.vs.group5.metrics.LatencyHistogram;
+import org.wwi21seb.vs.group5.metrics.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Applies the commit and abort decisions of the transactions to the rentals in the background.
+ * A decision is only handed over once it is in the participant log, so the coordinator can be answered
+ * right away and a decision that is lost with a crash is submitted again by the recovery.
+ * The decisions waiting at the same time are applied together, one confirm and one abort per batch.
+ * A batch that keeps failing is applied one decision at a time, so a single booking the database refuses
+ * can't hold up the others. A decision that fails on its own is parked and retried with a growing delay
+ * in between the batches until it succeeds or the write-behind is closed.
+ * Applying a decision twice is harmless, a confirmed booking stays confirmed and a removed booking stays removed.
+ */
+public class DecisionWriteBehind {
+
+    private static final Logger LOGGER = LoggerFactory.setupLogger(DecisionWriteBehind.class.getName());
+
+    /**
+     * A decision waiting to be applied
+     * @param transactionId the ID of the transaction
+     * @param bookingId the ID of our booking
+     * @param commit true to confirm the booking, false to remove it
+     * @param submittedNanos the time the decision was submitted
+     */
+    private record Decision(UUID transactionId, UUID bookingId, boolean commit, long submittedNanos) {
+    }
+
+    /**
+     * A decision that failed on its own, waiting for its next attempt
+     * @param decision the decision
+     * @param dueNanos the time of the next attempt
+     * @param delayNanos the delay before the next attempt
+     */
+    private record Parked(Decision decision, long dueNanos, long delayNanos) {
+    }
+
+    private final RentalDAO rentalDAO;
+    private final Consumer<UUID> onApplied;
+    private final int maxBatch;
+    private final int maxAttempts;
+    private final long retryNanos;
+    private final long maxRetryNanos;
+
+    private final BlockingQueue<Decision> queue = new LinkedBlockingQueue<>();
+    // Submitted decisions that are not applied yet, so a retransmitted decision isn't queued twice
+    private final ConcurrentHashMap<UUID, Decision> pending = new ConcurrentHashMap<>();
+    // Decisions that failed on their own, only the worker changes them
+    private final ConcurrentLinkedQueue<Parked> parked = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    private final LongAdder batches;
+    private final LongAdder appliedDecisions;
+    private final LongAdder retries;
+    private final LongAdder parkedDecisions;
+    private final LatencyHistogram applyTime;
+    private final LatencyHistogram lag;
+
+    /**
+     * Create the write-behind and start its worker thread
+     * @param rentalDAO applies the batches
+     * @param onApplied is called with the ID of every transaction whose decision was applied
+     * @param maxBatch the maximum number of decisions applied together
+     * @param maxAttempts the attempts of a batch before its decisions are applied one at a time
+     * @param retryDelay the delay before the first retry of a failed batch, doubled for every further retry
+     * @param maxRetryDelay the longest delay between two retries
+     * @param unit the unit of the delays
+     */
+    public DecisionWriteBehind(RentalDAO rentalDAO, Consumer<UUID> onApplied, int maxBatch, int maxAttempts, long retryDelay, long maxRetryDelay, TimeUnit unit) {
+        this.rentalDAO = rentalDAO;
+        this.onApplied = onApplied;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryNanos = unit.toNanos(retryDelay);
+        this.maxRetryNanos = unit.toNanos(maxRetryDelay);
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.batches = metrics.counter("rental_write_behind_batches_total", "Batches of decisions applied to the rentals");
+        this.appliedDecisions = metrics.counter("rental_write_behind_decisions_total", "Decisions applied to the rentals");
+        this.retries = metrics.counter("rental_write_behind_retries_total", "Failed attempts to apply a batch of decisions");
+        this.parkedDecisions = metrics.counter("rental_write_behind_parked_total", "Decisions that failed on their own and were set aside to be retried");
+        this.applyTime = metrics.histogram("rental_write_behind_apply_seconds", "Time to apply a batch of decisions, including its retries");
+        this.lag = metrics.histogram("rental_write_behind_lag_seconds", "Time from logging a decision until it was applied to the rentals");
+        metrics.gauge("rental_write_behind_pending", "Decisions logged but not yet applied to the rentals", pending::size);
+        metrics.gauge("rental_write_behind_parked", "Decisions that failed on their own and wait for their next attempt", parked::size);
+
+        this.worker = new Thread(this::run, "decision-write-behind");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Apply the decision of a transaction in the background, unless it is already waiting
+     * The decision must already be in the participant log
+     * @param transactionId the ID of the transaction
+     * @param bookingId the ID of our booking
+     * @param commit true to confirm the booking, false to remove it
+     */
+    public void submit(UUID transactionId, UUID bookingId, boolean commit) {
+        Decision decision = new Decision(transactionId, bookingId, commit, System.nanoTime());
+        if (pending.putIfAbsent(transactionId, decision) == null) {
+            queue.add(decision);
+        }
+    }
+
+    /**
+     * @param transactionId the ID of the transaction
+     * @return whether the decision of the transaction was submitted but is not applied yet
+     */
+    public boolean isPending(UUID transactionId) {
+        return pending.containsKey(transactionId);
+    }
+
+    /**
+     * Stop the worker after a last attempt for the queued decisions
+     * Decisions that still fail stay in the participant log and are applied after the restart
+     */
+    public void close() {
+        running = false;
+        worker.interrupt();
+
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!pending.isEmpty()) {
+            LOGGER.log(Level.WARNING, "{0} decisions were not applied, they are replayed from the log after the restart", pending.size());
+        }
+    }
+
+    private void run() {
+        List<Decision> batch = new ArrayList<>(maxBatch);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Decision first = running ? queue.poll(untilNextParked(), TimeUnit.NANOSECONDS) : queue.poll();
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatch - 1);
+                    apply(batch);
+                    batch.clear();
+                } else if (!running) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                // Woken up by close, drain what is left
+                continue;
+            }
+
+            retryParked(false);
+        }
+
+        // The last attempt for the parked decisions
+        retryParked(true);
+    }
+
+    private void apply(List<Decision> batch) {
+        List<Decision> confirms = new ArrayList<>();
+        List<Decision> aborts = new ArrayList<>();
+        for (Decision decision : batch) {
+            (decision.commit() ? confirms : aborts).add(decision);
+        }
+
+        long start = System.nanoTime();
+        long delay = retryNanos;
+        boolean confirmed = confirms.isEmpty();
+        boolean aborted = aborts.isEmpty();
+
+        for (int attempt = 1; ; attempt++) {
+            confirmed = confirmed || rentalDAO.confirmRentals(bookingIds(confirms));
+            aborted = aborted || rentalDAO.abortRentals(bookingIds(aborts));
+            if (confirmed && aborted) {
+                break;
+            }
+
+            retries.increment();
+            if (!running) {
+                // A closed write-behind only makes one attempt, the log still has the decisions
+                applyTime.recordSince(start);
+                return;
+            }
+
+            if (attempt >= maxAttempts) {
+                // A single booking the database refuses fails the whole batch, find it by applying them one by one
+                LOGGER.log(Level.WARNING, "Could not apply {0} decisions after {1} attempts, applying them one by one", new Object[]{batch.size(), attempt});
+                applyTime.recordSince(start);
+                if (confirmed) {
+                    applied(confirms);
+                } else {
+                    applyEach(confirms);
+                }
+                if (aborted) {
+                    applied(aborts);
+                } else {
+                    applyEach(aborts);
+                }
+                return;
+            }
+
+            LOGGER.log(Level.WARNING, "Could not apply {0} decisions, retrying in {1} ms", new Object[]{batch.size(), TimeUnit.NANOSECONDS.toMillis(delay)});
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                // Woken up by close, the next attempt is the last one
+            }
+            delay = Math.min(delay * 2, maxRetryNanos);
+        }
+        applyTime.recordSince(start);
+
+        batches.increment();
+        applied(batch);
+    }
+
+    /**
+     * Apply decisions one at a time and park those that fail
+     */
+    private void applyEach(List<Decision> decisions) {
+        for (Decision decision : decisions) {
+            if (applyOne(decision)) {
+                applied(List.of(decision));
+            } else {
+                parkedDecisions.increment();
+                LOGGER.log(Level.SEVERE, "Could not apply the decision of transaction {0} to booking {1}, retrying it in the background",
+                        new Object[]{decision.transactionId(), decision.bookingId()});
+                parked.add(new Parked(decision, System.nanoTime() + retryNanos, retryNanos));
+            }
+        }
+    }
+
+    /**
+     * Make another attempt for the parked decisions that are due, those that fail again wait twice as long
+     * @param all true to try all parked decisions, e.g. when closing
+     */
+    private void retryParked(boolean all) {
+        long now = System.nanoTime();
+        List<Parked> failed = new ArrayList<>();
+
+        for (Iterator<Parked> iterator = parked.iterator(); iterator.hasNext(); ) {
+            Parked entry = iterator.next();
+            if (!all && entry.dueNanos() - now > 0) {
+                continue;
+            }
+
+            iterator.remove();
+            if (applyOne(entry.decision())) {
+                applied(List.of(entry.decision()));
+            } else {
+                retries.increment();
+                long delay = Math.min(entry.delayNanos() * 2, maxRetryNanos);
+                failed.add(new Parked(entry.decision(), System.nanoTime() + delay, delay));
+            }
+        }
+
+        parked.addAll(failed);
+    }
+
+    /**
+     * @return the time until the next parked decision is due, or practically forever if none is parked
+     */
+    private long untilNextParked() {
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        for (Parked entry : parked) {
+            wait = Math.min(wait, Math.max(0, entry.dueNanos() - now));
+        }
+        return wait;
+    }
+
+    private boolean applyOne(Decision decision) {
+        return decision.commit() ? rentalDAO.confirmRental(decision.bookingId()) : rentalDAO.abortRental(decision.bookingId());
+    }
+
+    private void applied(List<Decision> decisions) {
+        appliedDecisions.add(decisions.size());
+        for (Decision decision : decisions) {
+            lag.recordSince(decision.submittedNanos());
+            pending.remove(decision.transactionId());
+            onApplied.accept(decision.transactionId());
+        }
+    }
+
+    private static List<UUID> bookingIds(List<Decision> decisions) {
+        return decisions.stream().map(Decision::bookingId).toList();
+    }
+
+}
@@ -0,0 +1,273 @@
+package org.wwi21seb.vs.group5.service;
+
+import org.wwi21seb.vs.group5.Logger.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks on a shared worker pool while keeping all tasks submitted
+ * for the same key in submission order. Tasks for different keys, and
+ * tasks submitted without a key, run in parallel. A task with several keys
+ * runs after the previous tasks of all of its keys, without blocking a worker while it waits.
+ * Waiting tasks are started by their priority and in submission order within a priority.
+ * The number of tasks that are waiting or running is bounded, a task is only admitted
+ * while it is below the limit of its priority, so the lower priorities are turned away first.
+ * Tasks that must not be turned away, like internal tasks and decisions, are always admitted.
+ */
+public class OrderedExecutor {
+
+    /**
+     * The priority classes of the tasks, highest first
+     */
+    public enum Priority {
+        // Decisions of the two-phase commit, they release the resources of a transaction
+        DECISION,
+        PREPARE,
+        // Read-only queries
+        QUERY
+    }
+
+    private static final Logger LOGGER = LoggerFactory.setupLogger(OrderedExecutor.class.getName());
+    private final ThreadPoolExecutor workers;
+    private final ConcurrentHashMap<UUID, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+    private final Executor[] lanes = new Executor[Priority.values().length];
+    private final int[] limits = new int[Priority.values().length];
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param threads the number of worker threads
+     * @param capacity the maximum number of waiting or running tasks,
+     *                 PREPARE tasks are admitted up to three quarters and queries up to half of it
+     */
+    public OrderedExecutor(int threads, int capacity) {
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "rental-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (Priority priority : Priority.values()) {
+            lanes[priority.ordinal()] = runnable -> {
+                try {
+                    workers.execute(new PrioritizedTask(priority, sequence.getAndIncrement(), runnable));
+                } catch (RejectedExecutionException e) {
+                    // Rejected after the shutdown, the task will never run and count itself off
+                    pending.decrementAndGet();
+                    throw e;
+                }
+            };
+        }
+        limits[Priority.DECISION.ordinal()] = capacity;
+        limits[Priority.PREPARE.ordinal()] = capacity * 3 / 4;
+        limits[Priority.QUERY.ordinal()] = capacity / 2;
+    }
+
+    /**
+     * Execute an internal task with the highest priority and without any ordering guarantee
+     * The task is admitted even if the executor is full.
+     * @throws RejectedExecutionException if the executor was shut down
+     * @param task the task to execute
+     */
+    public void execute(Runnable task) {
+        pending.incrementAndGet();
+        submit(Priority.DECISION, task);
+    }
+
+    /**
+     * Execute a task with the highest priority after all previously submitted tasks with the same key have finished,
+     * e.g. an internal task or a decision of the two-phase commit, which must never be shed
+     * The task is admitted even if the executor is full.
+     * @throws RejectedExecutionException if the executor was shut down
+     * @param key the ordering key, e.g. the transaction id
+     * @param task the task to execute
+     */
+    public void execute(UUID key, Runnable task) {
+        pending.incrementAndGet();
+        submit(key, Priority.DECISION, task);
+    }
+
+    /**
+     * Execute a task without any ordering guarantee, unless the executor is too full for its priority
+     * @param priority the priority of the task
+     * @param task the task to execute
+     * @return whether the task was admitted
+     * @throws RejectedExecutionException if the executor was shut down
+     */
+    public boolean tryExecute(Priority priority, Runnable task) {
+        if (!admit(priority)) {
+            return false;
+        }
+
+        submit(priority, task);
+        return true;
+    }
+
+    /**
+     * Execute a task after all previously submitted tasks with the same key have finished,
+     * unless the executor is too full for its priority
+     * @param key the ordering key, e.g. the transaction id
+     * @param priority the priority of the task
+     * @param task the task to execute
+     * @return whether the task was admitted
+     * @throws RejectedExecutionException if the executor was shut down
+     */
+    public boolean tryExecute(UUID key, Priority priority, Runnable task) {
+        if (!admit(priority)) {
+            return false;
+        }
+
+        submit(key, priority, task);
+        return true;
+    }
+
+    /**
+     * Execute a task after all previously submitted tasks with any of its keys have finished,
+     * unless the executor is too full for its priority
+     * @param keys the ordering keys, e.g. the transaction id and the cars it reserves
+     * @param priority the priority of the task
+     * @param task the task to execute
+     * @return whether the task was admitted
+     * @throws RejectedExecutionException if the executor was shut down
+     */
+    public boolean tryExecute(Set<UUID> keys, Priority priority, Runnable task) {
+        if (!admit(priority)) {
+            return false;
+        }
+
+        submit(keys, priority, task);
+        return true;
+    }
+
+    /**
+     * @return the number of admitted tasks that are waiting or running
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Stop accepting tasks and wait for the running ones to finish
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        workers.shutdown();
+        workers.awaitTermination(timeout, unit);
+    }
+
+    private boolean admit(Priority priority) {
+        int limit = limits[priority.ordinal()];
+
+        while (true) {
+            int current = pending.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (pending.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void submit(Priority priority, Runnable task) {
+        lanes[priority.ordinal()].execute(() -> runLogged(task));
+    }
+
+    private void submit(UUID key, Priority priority, Runnable task) {
+        if (key == null) {
+            submit(priority, task);
+            return;
+        }
+
+        Executor lane = lanes[priority.ordinal()];
+        // A task only fails by being rejected, the next one is still handed to the lane so it is rejected and counted off too
+        CompletableFuture<Void> tail = tails.compute(key, (k, previous) -> previous == null
+                ? CompletableFuture.runAsync(() -> runLogged(task), lane)
+                : previous.exceptionally(rejected -> null).thenRunAsync(() -> runLogged(task), lane));
+
+        // Drop the chain once it is drained so the map only holds keys with pending work
+        tail.whenComplete((ignored, throwable) -> tails.remove(key, tail));
+    }
+
+    private void submit(Set<UUID> keys, Priority priority, Runnable task) {
+        if (keys.size() <= 1) {
+            submit(keys.isEmpty() ? null : keys.iterator().next(), priority, task);
+            return;
+        }
+
+        Executor lane = lanes[priority.ordinal()];
+        CompletableFuture<Void> tail = new CompletableFuture<>();
+        List<CompletableFuture<Void>> previous = new ArrayList<>(keys.size());
+
+        // Tasks with several keys take their places one at a time, so any two of them are in the same order
+        // on all the keys they share and can't wait for each other in a cycle
+        synchronized (tails) {
+            for (UUID key : keys) {
+                CompletableFuture<Void> last = tails.put(key, tail);
+                if (last != null) {
+                    previous.add(last.exceptionally(rejected -> null));
+                }
+            }
+        }
+
+        CompletableFuture.allOf(previous.toArray(new CompletableFuture<?>[0]))
+                .thenRunAsync(() -> runLogged(task), lane)
+                .whenComplete((ignored, throwable) -> {
+                    if (throwable == null) {
+                        tail.complete(null);
+                    } else {
+                        tail.completeExceptionally(throwable);
+                    }
+                });
+
+        for (UUID key : keys) {
+            tail.whenComplete((ignored, throwable) -> tails.remove(key, tail));
+        }
+    }
+
+    private void runLogged(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            // A failing task must not break the chain of the following tasks for the same key
+            LOGGER.log(Level.SEVERE, "Error while handling message", e);
+        } finally {
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * A task in the queue of the worker pool, ordered by priority and then by submission
+     */
+    private record PrioritizedTask(Priority priority, long sequence, Runnable task) implements Runnable, Comparable<PrioritizedTask> {
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+
+    }
+
+}
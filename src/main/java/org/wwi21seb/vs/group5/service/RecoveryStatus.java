@@ -0,0 +1,65 @@
+package org.wwi21seb.vs.group5.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress and duration of the crash recovery of the RentalService
+ */
+public class RecoveryStatus {
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicInteger recoveredTransactions = new AtomicInteger();
+    private volatile int restoredTransactions;
+    private volatile long loadMillis = -1;
+    private volatile long recoveryMillis = -1;
+
+    void loaded(int restoredTransactions) {
+        this.restoredTransactions = restoredTransactions;
+        this.loadMillis = (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    /**
+     * Count a recovered transaction
+     * @return true if it was the last transaction to recover
+     */
+    boolean transactionRecovered() {
+        return recoveredTransactions.incrementAndGet() >= restoredTransactions;
+    }
+
+    void finished() {
+        this.recoveryMillis = (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    /**
+     * @return the number of transactions read from the participant log
+     */
+    public int getRestoredTransactions() {
+        return restoredTransactions;
+    }
+
+    /**
+     * @return the number of transactions for which the recovery messages were handled so far
+     */
+    public int getRecoveredTransactions() {
+        return recoveredTransactions.get();
+    }
+
+    /**
+     * @return the time it took to load the participant log and rebuild the contexts, -1 while loading
+     */
+    public long getLoadMillis() {
+        return loadMillis;
+    }
+
+    /**
+     * @return the time until every restored transaction was recovered, -1 while the recovery is running
+     */
+    public long getRecoveryMillis() {
+        return recoveryMillis;
+    }
+
+    public boolean isFinished() {
+        return recoveryMillis >= 0;
+    }
+
+}
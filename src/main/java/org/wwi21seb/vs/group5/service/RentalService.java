@@ -1,22 +1,38 @@
 package org.wwi21seb.vs.group5.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.wwi21seb.vs.group5.Logger.LoggerFactory;
 import org.wwi21seb.vs.group5.Request.ReservationRequest;
 import org.wwi21seb.vs.group5.Request.TransactionResult;
 import org.wwi21seb.vs.group5.TwoPhaseCommit.*;
 import org.wwi21seb.vs.group5.UDP.Operation;
 import org.wwi21seb.vs.group5.UDP.UDPMessage;
+import org.wwi21seb.vs.group5.communication.EncodedPayload;
+import org.wwi21seb.vs.group5.communication.UDPMessageCodec;
+import org.wwi21seb.vs.group5.communication.UdpTransport;
 import org.wwi21seb.vs.group5.dao.RentalDAO;
+import org.wwi21seb.vs.group5.log.WriteAheadLog;
+import org.wwi21seb.vs.group5.metrics.LatencyHistogram;
+import org.wwi21seb.vs.group5.metrics.MetricsRegistry;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,174 +40,587 @@ public class RentalService {
 
     private static final Logger LOGGER = LoggerFactory.setupLogger(RentalService.class.getName());
     private static final String CAR_PROIVDER = "CarProvider";
-    private final DatagramSocket socket;
-    private final byte[] buffer = new byte[16384];
-    private final ConcurrentHashMap<UUID, ParticipantContext> contexts = new ConcurrentHashMap<>();
-    private final LogWriter<ParticipantContext> logWriter = new LogWriter<>();
+    private final UdpTransport transport;
+    // Only the fields the participant needs, the full contexts are kept encoded until the decision is done
+    private final CompactContextStore contexts = new CompactContextStore(Integer.getInteger("rental.contexts.expectedSize", 4096));
+    // Created before the log, so the recovery time includes reading the log
+    private final RecoveryStatus recoveryStatus = new RecoveryStatus();
+    private final WriteAheadLog<ParticipantContext> logWriter = new WriteAheadLog<>(
+            Path.of(System.getProperty("rental.log.dir", "participant-log")),
+            ParticipantContext.class,
+            Long.getLong("rental.log.groupCommitMicros", 200),
+            Long.getLong("rental.log.segmentSize", 16 * 1024 * 1024),
+            Long.getLong("rental.log.compactionIntervalMillis", 60000)
+    );
     private final RentalDAO rentalDAO;
+    // Applies the logged decisions to the rentals in batches, null to apply them before answering the coordinator
+    private final DecisionWriteBehind writeBehind;
     private final ObjectMapper mapper;
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final UDPMessageCodec codec;
+    private final String successPayload;
+    private final String failurePayload;
+    private final EncodedPayload encodedSuccess;
+    private final EncodedPayload encodedFailure;
+    private final ReplyCache replies = new ReplyCache(Integer.getInteger("rental.replies.maxSize", 100000));
+    private final OrderedExecutor executor = new OrderedExecutor(Runtime.getRuntime().availableProcessors(), Integer.getInteger("rental.ingress.capacity", 1024));
+    // Sent instead of handling a message that was shed, {"busy": true, "retryAfterMillis": n}.
+    // The busy reply is an extension of the protocol that the TravelBroker and the HotelProvider don't know,
+    // they expect a TransactionResult or an array of cars or rentals in its place. It is only sent if
+    // rental.ingress.busyReplies is enabled, for senders that understand it like the coordinator of the load test,
+    // otherwise a shed message is dropped and the sender repeats it after its timeout like a lost datagram.
+    private final String busyPayload;
+    private final boolean busyReplies = Boolean.getBoolean("rental.ingress.busyReplies");
+    private final TransactionTimers timers = new TransactionTimers(executor, Long.getLong("rental.timers.tickMillis", 100), TimeUnit.MILLISECONDS);
+    private final TerminationProtocol termination = new TerminationProtocol(timers, this::sendMessage, this::rebuildContext, this::isInDoubt, CAR_PROIVDER,
+            Long.getLong("rental.termination.decisionTimeoutMillis", 10000),
+            Long.getLong("rental.termination.initialBackoffMillis", 1000),
+            Long.getLong("rental.termination.maxBackoffMillis", 60000), TimeUnit.MILLISECONDS);
+
+    // Metrics, indexed by the ordinal of the Operation
+    private final LatencyHistogram[] requestLatencies = new LatencyHistogram[Operation.values().length];
+    private final LongAdder[] requestErrors = new LongAdder[Operation.values().length];
+    private final LongAdder[] duplicateMessages = new LongAdder[Operation.values().length];
+    private final LongAdder receivedDatagrams;
+    private final LongAdder malformedDatagrams;
+    private final LongAdder droppedDatagrams;
+    private final LongAdder failedSends;
+    private final LongAdder[] shedMessages = new LongAdder[OrderedExecutor.Priority.values().length];
+    // Transactions we voted yes for and that are waiting for a decision, with the time they got in doubt
+    private final ConcurrentHashMap<UUID, Long> inDoubtSince = new ConcurrentHashMap<>();
 
     public RentalService() {
         this.rentalDAO = new RentalDAO();
+        this.writeBehind = Boolean.parseBoolean(System.getProperty("rental.writeBehind.enabled", "true")) ? new DecisionWriteBehind(
+                rentalDAO,
+                this::decisionApplied,
+                Integer.getInteger("rental.writeBehind.maxBatch", 500),
+                Integer.getInteger("rental.writeBehind.maxBatchAttempts", 3),
+                Long.getLong("rental.writeBehind.retryMillis", 100),
+                Long.getLong("rental.writeBehind.maxRetryMillis", 10000),
+                TimeUnit.MILLISECONDS
+        ) : null;
         this.mapper = new ObjectMapper();
+        this.codec = new UDPMessageCodec(mapper);
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        for (Operation operation : Operation.values()) {
+            requestLatencies[operation.ordinal()] = metrics.histogram("rental_request_duration_seconds", "Time from receiving a message until it was handled", "operation", operation.name());
+            requestErrors[operation.ordinal()] = metrics.counter("rental_request_errors_total", "Messages whose handling failed with an exception", "operation", operation.name());
+            duplicateMessages[operation.ordinal()] = metrics.counter("rental_duplicate_messages_total", "Retransmitted messages answered with the cached reply", "operation", operation.name());
+        }
+        this.receivedDatagrams = metrics.counter("rental_datagrams_received_total", "Datagrams received on the service socket");
+        this.malformedDatagrams = metrics.counter("rental_datagrams_malformed_total", "Datagrams dropped because they are not a valid UDPMessage");
+        this.droppedDatagrams = metrics.counter("rental_datagrams_dropped_total", "Valid UDPMessages dropped because their operation is unknown");
+        this.failedSends = metrics.counter("rental_datagrams_send_failed_total", "Responses that could not be sent");
+        for (OrderedExecutor.Priority priority : OrderedExecutor.Priority.values()) {
+            shedMessages[priority.ordinal()] = metrics.counter("rental_ingress_shed_total", "Messages dropped or answered with a busy reply because the service was overloaded", "priority", priority.name());
+        }
+        metrics.gauge("rental_ingress_queue_depth", "Messages and internal tasks waiting or being handled", executor::getPending);
+        metrics.gauge("rental_wire_binary_peers", "Peers answered with binary messages because they sent binary messages", codec::getBinaryPeers);
+        metrics.gauge("rental_contexts", "Participant contexts held in memory", contexts::size);
+        metrics.gauge("rental_in_doubt_transactions", "Transactions voted yes for that are waiting for a decision", inDoubtSince::size);
+        metrics.gauge("rental_in_doubt_oldest_age_seconds", "Time the oldest in-doubt transaction has been waiting for a decision", this::getOldestInDoubtAgeSeconds);
+        metrics.gauge("rental_pending_timers", "Pending context deletion and decision timeout timers", timers::size);
+        metrics.gauge("rental_recovery_restored_transactions", "Transactions read from the participant log at startup", recoveryStatus::getRestoredTransactions);
+        metrics.gauge("rental_recovery_recovered_transactions", "Restored transactions whose recovery messages were handled", recoveryStatus::getRecoveredTransactions);
+        metrics.gauge("rental_recovery_duration_seconds", "Time until every restored transaction was recovered, -1 while the recovery is running",
+                () -> recoveryStatus.isFinished() ? recoveryStatus.getRecoveryMillis() / 1000.0 : -1);
 
         try {
-            socket = new DatagramSocket(5001);
-            LOGGER.info("Socket initialized on port 5001!");
-        } catch (SocketException e) {
+            this.successPayload = mapper.writeValueAsString(new TransactionResult(true));
+            this.failurePayload = mapper.writeValueAsString(new TransactionResult(false));
+            this.encodedSuccess = EncodedPayload.of(successPayload);
+            this.encodedFailure = EncodedPayload.of(failurePayload);
+            this.busyPayload = mapper.writeValueAsString(mapper.createObjectNode()
+                    .put("busy", true)
+                    .put("retryAfterMillis", Long.getLong("rental.ingress.retryAfterMillis", 100)));
+        } catch (JsonProcessingException e) {
+            LOGGER.log(Level.SEVERE, "Could not parse TransactionResult to JSON", e);
             throw new RuntimeException(e);
         }
 
-        // Restore the state of the service
-        // This is done by reading the log file and replaying the transactions
+        try {
+            // A larger receive buffer absorbs bursts of the broker, the OS may cap it, e.g. at net.core.rmem_max on Linux
+            int port = Integer.getInteger("rental.port", 5001);
+            transport = new UdpTransport(
+                    port,
+                    Integer.getInteger("rental.transport.receiveLoops", Math.min(4, Runtime.getRuntime().availableProcessors())),
+                    Integer.getInteger("rental.socket.receiveBufferSize", 4 * 1024 * 1024),
+                    16384
+            );
+            LOGGER.log(Level.INFO, "Socket initialized on port {0}!", String.valueOf(port));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        Map<UUID, ParticipantContext> restoredContexts = new LinkedHashMap<>();
         for (ParticipantContext participantContext : logWriter.readAllLogs()) {
-            LOGGER.log(Level.INFO, "Restoring transaction {0}", participantContext.getTransactionId());
-            contexts.put(participantContext.getTransactionId(), participantContext);
-
-            // Get participant
-            Participant participant = participantContext.getParticipants().stream().filter(p -> p.getName().equals(CAR_PROIVDER)).findFirst().orElseThrow();
-            UDPMessage response = null;
-
-            switch (participantContext.getTransactionState()) {
-                case PREPARE -> {
-                    if (participant.getVote().equals(Vote.NO)) {
-                        // If the participant voted no, abort the transaction
-                        UDPMessage message = new UDPMessage(Operation.ABORT, participantContext.getTransactionId(), participantContext.getCoordinator().getName(), null);
-                        response = abort(message);
-                    } else {
-                        // If the participant voted yes, we need to ask the coordinator
-                        // for the result of the transaction. This is because we probably
-                        // crashed after voting yes, which is why we didn't receive the
-                        // commit/abort message from the coordinator
-                        response = new UDPMessage(Operation.RESULT, participantContext.getTransactionId(), participant.getName(), null);
-
-                        // Schedule a timeout task to ask the other participants for their vote
-                        // after 10 seconds, since we assume that the coordinator crashed
-                        // We don't need to ask the coordinator for the result again, since the
-                        // coordinator will send the result to us again after it has recovered
-                        askParticipantForDecision(participantContext);
-                    }
-                }
-                case COMMIT -> {
-                    // If the transaction was already committed, commit it again
-                    // The Coordinator will ignore the commit request if the transaction
-                    // was already committed
-                    UDPMessage message = new UDPMessage(Operation.COMMIT, participantContext.getTransactionId(), participantContext.getCoordinator().getName(), null);
-                    response = commit(message);
-                }
-                case ABORT -> {
-                    // If the transaction was already aborted, abort it again
-                    // The Coordinator will ignore the abort request if the transaction
-                    // was already aborted
-                    UDPMessage message = new UDPMessage(Operation.ABORT, participantContext.getTransactionId(), participantContext.getCoordinator().getName(), null);
-                    response = abort(message);
+            restoredContexts.put(participantContext.getTransactionId(), participantContext);
+        }
+
+        // Move the contexts of the old file based log into the write-ahead log
+        LogWriter<ParticipantContext> legacyLogWriter = new LogWriter<>();
+        for (ParticipantContext participantContext : legacyLogWriter.readAllLogs()) {
+            logWriter.writeLog(participantContext.getTransactionId(), participantContext);
+            legacyLogWriter.deleteLog(participantContext.getTransactionId());
+            restoredContexts.put(participantContext.getTransactionId(), participantContext);
+        }
+
+        // Restore the state of the service
+        // The contexts are available right away, the recovery messages are sent in the background
+        // while the service already accepts new messages
+        for (ParticipantContext participantContext : restoredContexts.values()) {
+            CompactContextStore.Entry entry = toEntry(participantContext);
+            contexts.put(entry, entry.done() ? null : encode(participantContext));
+        }
+        recoveryStatus.loaded(restoredContexts.size());
+        LOGGER.log(Level.INFO, "Restored {0} transactions in {1} ms", new Object[]{restoredContexts.size(), recoveryStatus.getLoadMillis()});
+
+        startRecovery(List.copyOf(restoredContexts.keySet()));
+    }
+
+    /**
+     * Replay the restored transactions in the background
+     * The messages of each transaction are handled in order with the messages received for it,
+     * the number of transactions replayed per second is limited to not flood the coordinators
+     * @param restoredTransactions the IDs of the transactions read from the log
+     */
+    private void startRecovery(List<UUID> restoredTransactions) {
+        if (restoredTransactions.isEmpty()) {
+            recoveryStatus.finished();
+            LOGGER.info("Service restored!");
+            return;
+        }
+
+        int transactionsPerSecond = Integer.getInteger("rental.recovery.transactionsPerSecond", 500);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, transactionsPerSecond);
+
+        Thread recoveryThread = new Thread(() -> {
+            long next = System.nanoTime();
+
+            for (UUID transactionId : restoredTransactions) {
+                long delay = next - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
                 }
+                next += intervalNanos;
+
+                executor.execute(transactionId, () -> {
+                    try {
+                        recoverTransaction(transactionId);
+                    } finally {
+                        if (recoveryStatus.transactionRecovered()) {
+                            recoveryStatus.finished();
+                            LOGGER.log(Level.INFO, "Service restored! Recovered {0} transactions in {1} ms", new Object[]{recoveryStatus.getRecoveredTransactions(), recoveryStatus.getRecoveryMillis()});
+                        }
+                    }
+                });
             }
+        }, "recovery");
+        recoveryThread.setDaemon(true);
+        recoveryThread.start();
+    }
 
-            if (response != null) {
-                // Send the response to the coordinator
-                LOGGER.log(Level.INFO, "Restored transaction {0} with response {1}", new Object[]{participantContext.getTransactionId(), response.getOperation()});
-
-                try {
-                    byte[] responseBytes = mapper.writeValueAsBytes(response);
-                    LOGGER.info(participantContext.getCoordinator().toString());
-                    DatagramPacket responsePacket = new DatagramPacket(responseBytes, responseBytes.length, participantContext.getCoordinator().getUrl(), participantContext.getCoordinator().getPort());
-                    LOGGER.info(String.format("Sending %s message to %s: %s", response.getOperation(), participantContext.getCoordinator().getName(), response.getData()));
-                    socket.send(responsePacket);
-                } catch (JsonProcessingException e) {
-                    LOGGER.log(Level.SEVERE, "Failed to serialize response", e);
-                    throw new RuntimeException(e);
-                } catch (IOException e) {
-                    LOGGER.log(Level.SEVERE, "Failed to send response", e);
-                    throw new RuntimeException(e);
+    private void recoverTransaction(UUID transactionId) {
+        CompactContextStore.Entry entry = contexts.get(transactionId);
+        if (entry == null) {
+            // Already finished by messages received since the restart
+            return;
+        }
+
+        LOGGER.log(Level.INFO, "Restoring transaction {0}", transactionId);
+        UDPMessage response = null;
+
+        switch (entry.state()) {
+            case PREPARE -> {
+                if (entry.vote() != Vote.YES) {
+                    // If the participant voted no, abort the transaction
+                    // Without a vote we crashed during the prepare phase, so the coordinator can't have decided on commit
+                    // The booking ID was logged before reserving, so the abort also removes rentals inserted before the crash
+                    UDPMessage message = new UDPMessage(Operation.ABORT, transactionId, entry.coordinatorName(), null);
+                    response = abort(message);
+                } else {
+                    // If the participant voted yes, we need to ask the coordinator
+                    // for the result of the transaction. This is because we probably
+                    // crashed after voting yes, which is why we didn't receive the
+                    // commit/abort message from the coordinator
+                    response = new UDPMessage(Operation.RESULT, transactionId, CAR_PROIVDER, null);
+                    // The real age of the transaction is lost with the crash, it counts from the restart
+                    inDoubtSince.putIfAbsent(transactionId, System.nanoTime());
+
+                    // Ask the other participants for the result if the coordinator doesn't answer in time,
+                    // since we assume that the coordinator crashed
+                    // We don't need to ask the coordinator for the result again, since the
+                    // coordinator will send the result to us again after it has recovered
+                    askParticipantForDecision(transactionId);
                 }
-            } else {
-                LOGGER.log(Level.INFO, "Restored transaction {0}", participantContext.getTransactionId());
             }
+            case COMMIT -> {
+                // If the transaction was already committed, commit it again
+                // The Coordinator will ignore the commit request if the transaction
+                // was already committed
+                UDPMessage message = new UDPMessage(Operation.COMMIT, transactionId, entry.coordinatorName(), null);
+                response = commit(message);
+            }
+            case ABORT -> {
+                // If the transaction was already aborted, abort it again
+                // The Coordinator will ignore the abort request if the transaction
+                // was already aborted
+                UDPMessage message = new UDPMessage(Operation.ABORT, transactionId, entry.coordinatorName(), null);
+                response = abort(message);
+            }
+        }
+
+        if (response != null) {
+            // Send the response to the coordinator
+            LOGGER.log(Level.INFO, "Restored transaction {0} with response {1}", new Object[]{transactionId, response.getOperation()});
+            sendMessage(response, entry.coordinatorAddress(), entry.coordinatorPort(), entry.coordinatorName());
+        } else {
+            LOGGER.log(Level.INFO, "Restored transaction {0}", transactionId);
         }
+    }
+
+    private double getOldestInDoubtAgeSeconds() {
+        long now = System.nanoTime();
+        long oldest = now;
 
-        LOGGER.info("Service restored!");
+        for (long since : inDoubtSince.values()) {
+            oldest = Math.min(oldest, since);
+        }
+
+        return (now - oldest) / 1e9;
+    }
+
+    /**
+     * Drop all cached car data, e.g. after the cars were changed without notifying the service
+     */
+    public void invalidateCars() {
+        rentalDAO.invalidateCars();
+    }
+
+    /**
+     * @return the progress of the crash recovery
+     */
+    public RecoveryStatus getRecoveryStatus() {
+        return recoveryStatus;
     }
 
     public void start() {
+        LOGGER.info("Waiting for messages!");
+
         try {
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-
-            while (true) {
-                LOGGER.info("Waiting for message!");
-                socket.receive(packet);
-                String message = new String(packet.getData(), 0, packet.getLength());
-
-                UDPMessage parsedMessage = mapper.readValue(message, UDPMessage.class);
-                UDPMessage response = null;
-                LOGGER.info(String.format("Received %s message from %s: %s", parsedMessage.getOperation(), parsedMessage.getSender(), parsedMessage.getData()));
-
-                switch (parsedMessage.getOperation()) {
-                    case PREPARE -> response = prepare(parsedMessage);
-                    case COMMIT -> response = commit(parsedMessage);
-                    case ABORT -> response = abort(parsedMessage);
-                    case GET_BOOKINGS -> response = getRentals(parsedMessage);
-                    case GET_AVAILABILITY -> response = getAvailableRentals(parsedMessage);
-                    case RESULT -> response = sendResult(parsedMessage);
-                    default -> LOGGER.severe("Unknown operation received!");
+            transport.run(this::receive);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Parse a received datagram and hand it to the workers, called by the receive loops of the transport
+     * @param datagram the received datagram
+     * @param senderAddress the address of the sender
+     */
+    private void receive(ByteBuffer datagram, InetSocketAddress senderAddress) {
+        UDPMessage parsedMessage;
+        receivedDatagrams.increment();
+
+        try {
+            parsedMessage = codec.decode(datagram, senderAddress);
+        } catch (IOException | IllegalArgumentException e) {
+            malformedDatagrams.increment();
+            LOGGER.log(Level.WARNING, "Dropping malformed message", e);
+            return;
+        }
+
+        if (parsedMessage.getOperation() == null) {
+            droppedDatagrams.increment();
+            LOGGER.warning("Dropping message without operation");
+            return;
+        }
+
+        // The cars of a PREPARE are part of its ordering keys, so its payload is parsed here already
+        JsonNode coordinatorContextTree = null;
+        if (parsedMessage.getOperation() == Operation.PREPARE) {
+            try {
+                coordinatorContextTree = mapper.readTree(parsedMessage.getData());
+            } catch (JsonProcessingException | IllegalArgumentException e) {
+                malformedDatagrams.increment();
+                LOGGER.log(Level.WARNING, "Dropping PREPARE with a malformed CoordinatorContext", e);
+                return;
+            }
+        }
+
+        InetAddress sender = senderAddress.getAddress();
+        int senderPort = senderAddress.getPort();
+        long receivedNanos = System.nanoTime();
+
+        // Messages of the two-phase commit protocol have to be handled in the order
+        // they arrived for each transaction, read-only queries can run in any order
+        JsonNode prepareContext = coordinatorContextTree;
+        Runnable task = () -> handleMessage(parsedMessage, prepareContext, sender, senderPort, receivedNanos);
+        OrderedExecutor.Priority priority = getPriority(parsedMessage.getOperation());
+        boolean admitted = switch (parsedMessage.getOperation()) {
+            // Decisions are never shed, they have to be applied eventually and release the resources of the transaction
+            case COMMIT, ABORT, RESULT -> {
+                executor.execute(parsedMessage.getTransactionId(), task);
+                yield true;
+            }
+            // Reservations of the same car run one after another instead of competing for it
+            case PREPARE -> executor.tryExecute(getPrepareKeys(parsedMessage.getTransactionId(), coordinatorContextTree), priority, task);
+            default -> executor.tryExecute(priority, task);
+        };
+
+        if (!admitted) {
+            shed(parsedMessage, priority, sender, senderPort);
+        }
+    }
+
+    /**
+     * The ordering keys of a PREPARE, its transaction and the cars it reserves.
+     * A PREPARE waits for the earlier messages of its transaction and for the earlier PREPAREs of its cars,
+     * the workers handle other messages in the meantime.
+     * @param transactionId the transaction of the PREPARE
+     * @param coordinatorContextTree the parsed payload of the PREPARE
+     * @return the keys, without the IDs that are not valid UUIDs, the PREPARE fails on those anyway
+     */
+    private Set<UUID> getPrepareKeys(UUID transactionId, JsonNode coordinatorContextTree) {
+        Set<UUID> keys = new LinkedHashSet<>();
+        if (transactionId != null) {
+            keys.add(transactionId);
+        }
+
+        for (JsonNode participant : coordinatorContextTree.path("participants")) {
+            if (participant.path("name").asText().equals(CAR_PROIVDER)) {
+                JsonNode bookingContext = participant.path("bookingContext");
+                addCarKey(keys, bookingContext.path("resourceId"));
+                for (JsonNode resourceId : bookingContext.path("resourceIds")) {
+                    addCarKey(keys, resourceId);
                 }
+            }
+        }
 
-                if (response != null) {
-                    InetAddress recipient = null;
-                    int port = -1;
-                    String recipientName = null;
-
-                    if (parsedMessage.getSender().equals("HotelProvider") && (parsedMessage.getOperation().equals(Operation.COMMIT) || parsedMessage.getOperation().equals(Operation.ABORT))) {
-                        ParticipantContext participantContext = contexts.get(parsedMessage.getTransactionId());
-                        if (participantContext == null) {
-                            // This should not happen, but just in case
-                            LOGGER.log(Level.SEVERE, "No context found for transaction {0}", parsedMessage.getTransactionId());
-                            continue;
-                        }
+        return keys;
+    }
 
-                        Coordinator coordinator = participantContext.getCoordinator();
-                        recipient = coordinator.getUrl();
-                        port = coordinator.getPort();
-                        recipientName = coordinator.getName();
-                    } else {
-                        recipient = packet.getAddress();
-                        port = packet.getPort();
-                        recipientName = parsedMessage.getSender();
-                    }
+    private static void addCarKey(Set<UUID> keys, JsonNode resourceId) {
+        if (!resourceId.isTextual()) {
+            return;
+        }
 
-                    LOGGER.info(String.format("Sending %s message to %s: %s", response.getOperation(), recipientName, response.getData()));
-                    byte[] responseBytes = mapper.writeValueAsBytes(response);
-                    DatagramPacket responsePacket = new DatagramPacket(responseBytes, responseBytes.length, recipient, port);
-                    socket.send(responsePacket);
-                } else {
-                    LOGGER.info("No response to send!");
+        try {
+            keys.add(UUID.fromString(resourceId.asText()));
+        } catch (IllegalArgumentException e) {
+            // Not a car we could reserve
+        }
+    }
+
+    /**
+     * Decisions release the resources of a transaction and are handled first,
+     * then new transactions, read-only queries last
+     */
+    private static OrderedExecutor.Priority getPriority(Operation operation) {
+        return switch (operation) {
+            case COMMIT, ABORT, RESULT -> OrderedExecutor.Priority.DECISION;
+            case PREPARE -> OrderedExecutor.Priority.PREPARE;
+            default -> OrderedExecutor.Priority.QUERY;
+        };
+    }
+
+    /**
+     * Drop a message the service has no room for, or answer it with a busy reply if those are enabled,
+     * so a sender that understands it can retry right away instead of waiting for its timeout
+     */
+    private void shed(UDPMessage parsedMessage, OrderedExecutor.Priority priority, InetAddress sender, int senderPort) {
+        shedMessages[priority.ordinal()].increment();
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "Overloaded, shedding {0} message of transaction {1}", new Object[]{parsedMessage.getOperation(), parsedMessage.getTransactionId()});
+        }
+
+        if (busyReplies) {
+            UDPMessage busy = new UDPMessage(parsedMessage.getOperation(), parsedMessage.getTransactionId(), CAR_PROIVDER, busyPayload);
+            sendMessage(busy, sender, senderPort, parsedMessage.getSender());
+        }
+    }
+
+    /**
+     * Stop receiving messages and wait for the messages in progress to be handled
+     */
+    public void stop() {
+        transport.close();
+
+        try {
+            executor.shutdown(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        timers.stop();
+        if (writeBehind != null) {
+            writeBehind.close();
+        }
+        logWriter.close();
+        rentalDAO.close();
+    }
+
+    /**
+     * Handle a message and record its latency, measured from the time it was received
+     */
+    private void handleMessage(UDPMessage parsedMessage, JsonNode coordinatorContextTree, InetAddress sender, int senderPort, long receivedNanos) {
+        int operation = parsedMessage.getOperation().ordinal();
+
+        try {
+            handleMessage(parsedMessage, coordinatorContextTree, sender, senderPort);
+        } catch (RuntimeException e) {
+            requestErrors[operation].increment();
+            throw e;
+        } finally {
+            requestLatencies[operation].recordSince(receivedNanos);
+        }
+    }
+
+    /**
+     * @param coordinatorContextTree the parsed payload of a PREPARE, null for the other operations
+     */
+    private void handleMessage(UDPMessage parsedMessage, JsonNode coordinatorContextTree, InetAddress sender, int senderPort) {
+        UDPMessage response = null;
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.log(Level.INFO, "Received {0} message from {1}: {2}", new Object[]{parsedMessage.getOperation(), parsedMessage.getSender(), parsedMessage.getData()});
+        }
+
+        // A retransmitted PREPARE, COMMIT or ABORT is answered with the reply that was sent before
+        EncodedPayload cachedReply = null;
+        Boolean cachedSuccess = replies.get(parsedMessage.getTransactionId(), parsedMessage.getOperation());
+
+        if (cachedSuccess != null) {
+            duplicateMessages[parsedMessage.getOperation().ordinal()].increment();
+            LOGGER.log(Level.INFO, "Answering repeated {0} of transaction {1} with the cached reply", new Object[]{parsedMessage.getOperation(), parsedMessage.getTransactionId()});
+            response = new UDPMessage(parsedMessage.getOperation(), parsedMessage.getTransactionId(), CAR_PROIVDER, null);
+            cachedReply = cachedSuccess ? encodedSuccess : encodedFailure;
+        } else {
+            switch (parsedMessage.getOperation()) {
+                case PREPARE -> response = prepare(parsedMessage, coordinatorContextTree);
+                case COMMIT -> response = commit(parsedMessage);
+                case ABORT -> response = abort(parsedMessage);
+                case GET_BOOKINGS -> response = getRentals(parsedMessage, sender, senderPort);
+                case GET_AVAILABILITY -> response = getAvailableRentals(parsedMessage, sender, senderPort);
+                case RESULT -> response = sendResult(parsedMessage);
+                default -> {
+                    droppedDatagrams.increment();
+                    LOGGER.severe("Unknown operation received!");
                 }
+            }
 
-                System.exit(0);
+            cacheReply(parsedMessage, response);
+        }
+
+        if (response == null) {
+            LOGGER.info("No response to send!");
+            return;
+        }
+
+        InetAddress recipient = null;
+        int port = -1;
+        String recipientName = null;
+
+        if (parsedMessage.getSender().equals("HotelProvider") && (parsedMessage.getOperation().equals(Operation.COMMIT) || parsedMessage.getOperation().equals(Operation.ABORT))) {
+            CompactContextStore.Entry entry = contexts.get(parsedMessage.getTransactionId());
+            if (entry == null) {
+                // This should not happen, but just in case
+                LOGGER.log(Level.SEVERE, "No context found for transaction {0}", parsedMessage.getTransactionId());
+                return;
             }
-        } catch (SocketException e) {
-            LOGGER.severe("Error while initializing socket!");
-            throw new RuntimeException(e);
+
+            recipient = entry.coordinatorAddress();
+            port = entry.coordinatorPort();
+            recipientName = entry.coordinatorName();
+        } else {
+            recipient = sender;
+            port = senderPort;
+            recipientName = parsedMessage.getSender();
+        }
+
+        sendMessage(response, cachedReply, recipient, port, recipientName);
+    }
+
+    /**
+     * Remember the final reply to a PREPARE, COMMIT or ABORT of a known transaction
+     * A vote can't change, but a failed commit or abort has to be tried again when the message is repeated.
+     * The replies for unknown transactions are cheap to compute and are not kept, nothing would remove them.
+     */
+    private void cacheReply(UDPMessage parsedMessage, UDPMessage response) {
+        if (response == null || !contexts.contains(parsedMessage.getTransactionId())) {
+            return;
+        }
+
+        boolean success = successPayload.equals(response.getData());
+        if (success || parsedMessage.getOperation() == Operation.PREPARE) {
+            replies.put(parsedMessage.getTransactionId(), parsedMessage.getOperation(), success);
+        }
+    }
+
+    private void sendMessage(UDPMessage message, InetAddress recipient, int port, String recipientName) {
+        sendMessage(message, null, recipient, port, recipientName);
+    }
+
+    /**
+     * Send a message whose data was already encoded
+     * @param message the message to send, its data is replaced by the payload
+     * @param data the encoded payload or null to send the data of the message
+     */
+    private void sendMessage(UDPMessage message, EncodedPayload data, InetAddress recipient, int port, String recipientName) {
+        try {
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.log(Level.INFO, "Sending {0} message to {1}: {2}", new Object[]{message.getOperation(), recipientName, data == null ? message.getData() : data.getJson()});
+            }
+            codec.send(transport, message, data, recipient, port);
         } catch (IOException e) {
-            LOGGER.severe("Error while receiving message!");
-            throw new RuntimeException(e);
+            failedSends.increment();
+            LOGGER.log(Level.SEVERE, "Failed to send message", e);
         }
     }
 
     public void scheduleContextDeletion(UUID transactionId) {
-        scheduler.schedule(() -> {
+        // Repeated COMMIT/ABORT messages keep the deletion that is already scheduled
+        timers.scheduleIfAbsent(transactionId, TransactionTimers.Timer.CONTEXT_DELETION, 1, TimeUnit.MINUTES, () -> {
             LOGGER.log(Level.INFO, "Deleting transaction {0}", transactionId);
+            timers.cancelAll(transactionId);
+            inDoubtSince.remove(transactionId);
             logWriter.deleteLog(transactionId);
             contexts.remove(transactionId);
-        }, 1, TimeUnit.MINUTES);
+            replies.remove(transactionId);
+        });
     }
 
     public UDPMessage prepare(UDPMessage message) {
+        try {
+            return prepare(message, mapper.readTree(message.getData()));
+        } catch (JsonProcessingException e) {
+            LOGGER.log(Level.SEVERE, "Error parsing CoordinatorContext", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param coordinatorContextTree the parsed payload of the PREPARE, the additional cars are taken out of it
+     */
+    private UDPMessage prepare(UDPMessage message, JsonNode coordinatorContextTree) {
+        // A repeated PREPARE whose reply is no longer cached gets the vote that was already given,
+        // preparing again would reserve the cars a second time
+        CompactContextStore.Entry existingEntry = contexts.get(message.getTransactionId());
+        if (existingEntry != null) {
+            Vote vote = existingEntry.vote();
+            if (vote != null) {
+                LOGGER.log(Level.INFO, "Transaction {0} was already prepared, repeating vote {1}", new Object[]{message.getTransactionId(), vote});
+                return getSuccessMessage(message, new TransactionResult(vote == Vote.YES));
+            }
+        }
+
         // Parse the data payload of the UDPMessage to a CoordinatorContext
         CoordinatorContext coordinatorContext = null;
+        List<UUID> additionalResourceIds = null;
         try {
-            coordinatorContext = mapper.readValue(message.getData(), CoordinatorContext.class);
+            additionalResourceIds = removeAdditionalResourceIds(coordinatorContextTree);
+            coordinatorContext = mapper.treeToValue(coordinatorContextTree, CoordinatorContext.class);
         } catch (JsonProcessingException e) {
             LOGGER.log(Level.SEVERE, "Error parsing CoordinatorContext", e);
             throw new RuntimeException(e);
@@ -199,44 +628,99 @@ public class RentalService {
 
         // Create a new ParticipantContext with the coordinatorContext
         ParticipantContext participantContext = new ParticipantContext(coordinatorContext);
-        contexts.put(participantContext.getTransactionId(), participantContext);
-        logWriter.writeLog(participantContext.getTransactionId(), participantContext);
         LOGGER.log(Level.INFO, "Prepare Transaction {0}", participantContext.getTransactionId());
 
         // Get participant
-        Participant participant = participantContext.getParticipants().stream().filter(p -> p.getName().equals(CAR_PROIVDER)).findFirst().orElseThrow();
+        Participant participant = getCarProvider(participantContext);
 
         // Get the bookingContext of the car provider
         BookingContext bookingContext = participant.getBookingContext();
 
-        ReservationRequest reservationRequest = new ReservationRequest(bookingContext.getResourceId(), bookingContext.getStartDate(), bookingContext.getEndDate(), bookingContext.getNumberOfPersons());
-        UUID bookingId = rentalDAO.reserveCar(reservationRequest);
+        // All cars of the booking context are reserved together or not at all
+        LinkedHashSet<UUID> resourceIds = new LinkedHashSet<>();
+        if (bookingContext.getResourceId() != null) {
+            resourceIds.add(bookingContext.getResourceId());
+        }
+        resourceIds.addAll(additionalResourceIds);
+
+        List<ReservationRequest> reservationRequests = new ArrayList<>(resourceIds.size());
+        for (UUID resourceId : resourceIds) {
+            reservationRequests.add(new ReservationRequest(resourceId, bookingContext.getStartDate(), bookingContext.getEndDate(), bookingContext.getNumberOfPersons()));
+        }
+
+        // A PREPARE repeated after we crashed before voting may find the rentals of the first attempt
+        if (existingEntry != null && existingEntry.bookingId() != null) {
+            rentalDAO.abortRental(existingEntry.bookingId());
+        }
+
+        // The booking ID is logged before the cars are reserved, so if we crash before voting,
+        // the recovery aborts the transaction and removes the rentals that were already inserted
+        UUID bookingId = null;
+        if (!reservationRequests.isEmpty()) {
+            bookingId = UUID.randomUUID();
+            participantContext.setBookingIdForParticipant(bookingId, CAR_PROIVDER);
+        }
+        storeContext(participantContext);
+
+        if (bookingId != null) {
+            bookingId = rentalDAO.reserveCars(bookingId, reservationRequests);
+        }
         TransactionResult transactionResult = null;
 
         if (bookingId == null) {
             // If the bookingId is null, the reservation failed
             // We need to set our decision to ABORT and send it to the coordinator
+            // Nothing was reserved, so the decision doesn't have to remove a booking
             participant.setVote(Vote.NO);
+            participantContext.setBookingIdForParticipant(null, CAR_PROIVDER);
             transactionResult = new TransactionResult(false);
         } else {
             participant.setVote(Vote.YES);
-            participantContext.setBookingIdForParticipant(bookingId, CAR_PROIVDER);
+            inDoubtSince.put(participantContext.getTransactionId(), System.nanoTime());
+            // From now on only the coordinator or the other participants can tell us the decision
+            askParticipantForDecision(participantContext.getTransactionId());
             transactionResult = new TransactionResult(true);
         }
 
         LOGGER.log(Level.INFO, "Prepare rental {0}", transactionResult.isSuccess());
 
         // Update the context in the log
-        logWriter.writeLog(participantContext.getTransactionId(), participantContext);
+        storeContext(participantContext);
         return getSuccessMessage(message, transactionResult);
     }
 
+    /**
+     * Take the additional cars out of our booking context, the shared BookingContext only knows a single resourceId
+     * A booking context can reserve several cars at once with a "resourceIds" array next to its "resourceId"
+     * @param coordinatorContextTree the parsed payload of a PREPARE message
+     * @return the IDs of the additional cars to reserve, empty if there are none
+     */
+    private List<UUID> removeAdditionalResourceIds(JsonNode coordinatorContextTree) {
+        List<UUID> resourceIds = new ArrayList<>();
+
+        for (JsonNode participant : coordinatorContextTree.path("participants")) {
+            JsonNode bookingContext = participant.path("bookingContext");
+
+            if (participant.path("name").asText().equals(CAR_PROIVDER) && bookingContext.isObject()) {
+                JsonNode additionalResourceIds = ((ObjectNode) bookingContext).remove("resourceIds");
+
+                if (additionalResourceIds != null) {
+                    for (JsonNode resourceId : additionalResourceIds) {
+                        resourceIds.add(UUID.fromString(resourceId.asText()));
+                    }
+                }
+            }
+        }
+
+        return resourceIds;
+    }
+
     public UDPMessage commit(UDPMessage message) {
-        // Get the participantContext from the contexts map
-        ParticipantContext participantContext = contexts.get(message.getTransactionId());
+        // Get the record of the transaction
+        CompactContextStore.Entry entry = contexts.get(message.getTransactionId());
 
-        if (participantContext == null) {
-            // If the participantContext is null, the transaction is unknown to our service
+        if (entry == null) {
+            // If the record is null, the transaction is unknown to our service
             // This is because there was a prepare request in which we weren't available
             // To the coordinator, this means that the transaction was aborted which is why
             // we need to return a successful TransactionResult to let the coordinator finish
@@ -245,55 +729,36 @@ public class RentalService {
             return getSuccessMessage(message, transactionResult);
         }
 
-        participantContext.setTransactionState(TransactionState.COMMIT);
-        LOGGER.log(Level.INFO, "Commit Transaction {0}", participantContext.getTransactionId());
+        contexts.setState(entry.transactionId(), TransactionState.COMMIT);
+        inDoubtSince.remove(entry.transactionId());
+        LOGGER.log(Level.INFO, "Commit Transaction {0}", entry.transactionId());
 
-        // Get the participant from the participantContext
-        Participant participant = participantContext.getParticipants().stream().filter(p -> p.getName().equals(CAR_PROIVDER)).findFirst().orElseThrow();
+        // The decision arrived, from the coordinator or another participant, stop asking for it
+        termination.stop(entry.transactionId());
 
-        // Cancel the timeout task
-        CompletableFuture<Boolean> future = participant.getCommitFuture();
-        if (future != null) {
-            future.complete(true);
-        }
-
-        if (participant.isDone()) {
+        if (entry.done()) {
             // Double check if the transaction was already committed previously
             // If so, return a TransactionResult with success = true because
             // the transaction was already committed
-            scheduleContextDeletion(participantContext.getTransactionId());
+            scheduleContextDeletion(entry.transactionId());
             TransactionResult transactionResult = new TransactionResult(true);
             return getSuccessMessage(message, transactionResult);
         }
 
-        boolean success = rentalDAO.confirmRental(participant.getBookingContext().getBookingId());
+        boolean success = applyDecision(entry, true);
         LOGGER.log(Level.INFO, "Commit rental {0}", success);
 
-        if (success) {
-            // If the commit was successful, we finish the transaction
-            // by setting our participant status to done
-            participant.setDone();
-        }
-
-        // Set a timer to delete the context after 5 minutes
-        // This is to prevent the contexts map from growing too large
-        // After 5 minutes every participant should have finished its protocol
-        scheduleContextDeletion(participantContext.getTransactionId());
-
-        // Update the context in the log
-        logWriter.writeLog(participantContext.getTransactionId(), participantContext);
-
         // Create a new TransactionResult with the success status
         TransactionResult transactionResult = new TransactionResult(success);
         return getSuccessMessage(message, transactionResult);
     }
 
     public UDPMessage abort(UDPMessage message) {
-        // Get the participantContext from the contexts map
-        ParticipantContext participantContext = contexts.get(message.getTransactionId());
+        // Get the record of the transaction
+        CompactContextStore.Entry entry = contexts.get(message.getTransactionId());
 
-        if (participantContext == null) {
-            // If the participantContext is null, the transaction is unknown to our service
+        if (entry == null) {
+            // If the record is null, the transaction is unknown to our service
             // This is because there was a prepare request in which we weren't available
             // To the coordinator, this means that the transaction was aborted which is why
             // we need to return a successful TransactionResult to let the coordinator finish
@@ -302,73 +767,105 @@ public class RentalService {
             return getSuccessMessage(message, transactionResult);
         }
 
-        participantContext.setTransactionState(TransactionState.ABORT);
-        LOGGER.log(Level.INFO, "Abort Transaction {0}", participantContext.getTransactionId());
+        contexts.setState(entry.transactionId(), TransactionState.ABORT);
+        inDoubtSince.remove(entry.transactionId());
+        LOGGER.log(Level.INFO, "Abort Transaction {0}", entry.transactionId());
 
-        // Get the participant from the participantContext
-        Participant participant = participantContext.getParticipants().stream().filter(p -> p.getName().equals(CAR_PROIVDER)).findFirst().orElseThrow();
+        // The decision arrived, from the coordinator or another participant, stop asking for it
+        termination.stop(entry.transactionId());
 
-        // Cancel the timeout task
-        CompletableFuture<Boolean> future = participant.getCommitFuture();
-        if (future != null) {
-            future.complete(true);
-        }
-
-        if (participant.isDone()) {
+        if (entry.done()) {
             // Double check if the transaction was already aborted previously
             // If so, return a TransactionResult with success = true because
             // the transaction was already aborted
-            scheduleContextDeletion(participantContext.getTransactionId());
+            scheduleContextDeletion(entry.transactionId());
             TransactionResult transactionResult = new TransactionResult(true);
             return getSuccessMessage(message, transactionResult);
         }
 
-        boolean success = rentalDAO.abortRental(participant.getBookingContext().getBookingId());
+        boolean success = applyDecision(entry, false);
+
+        // Create a new TransactionResult with the success status
+        TransactionResult transactionResult = new TransactionResult(success);
+        return getSuccessMessage(message, transactionResult);
+    }
+
+    /**
+     * Apply the decision of a transaction to our booking and log it
+     * With the write-behind, the decision is applied in the background once it is logged,
+     * the transaction is only done and its context only deleted after the decision was applied
+     * @param entry the record of the transaction, read before its state was set to the decision
+     * @param commit true to confirm our booking, false to remove it
+     * @return whether the decision was applied or logged to be applied
+     */
+    private boolean applyDecision(CompactContextStore.Entry entry, boolean commit) {
+        UUID transactionId = entry.transactionId();
+
+        if (writeBehind != null && entry.bookingId() != null) {
+            // A retransmitted decision that is still waiting is already in the log
+            if (!writeBehind.isPending(transactionId)) {
+                logContext(transactionId);
+                writeBehind.submit(transactionId, entry.bookingId(), commit);
+            }
+            return true;
+        }
+
+        // Nothing was reserved if we voted no
+        boolean success = entry.bookingId() == null
+                || (commit ? rentalDAO.confirmRental(entry.bookingId()) : rentalDAO.abortRental(entry.bookingId()));
 
         if (success) {
-            // If the commit was successful, we finish the transaction
+            // If the decision was applied, we finish the transaction
             // by setting our participant status to done
-            participant.setDone();
+            contexts.setDone(transactionId);
         }
 
         // Set a timer to delete the context after 5 minutes
         // This is to prevent the contexts map from growing too large
         // After 5 minutes every participant should have finished its protocol
-        scheduleContextDeletion(participantContext.getTransactionId());
+        scheduleContextDeletion(transactionId);
 
         // Update the context in the log
-        logWriter.writeLog(participantContext.getTransactionId(), participantContext);
-
-        // Create a new TransactionResult with the success status
-        TransactionResult transactionResult = new TransactionResult(success);
-        return getSuccessMessage(message, transactionResult);
+        logContext(transactionId);
+        return success;
     }
 
-    private UDPMessage getSuccessMessage(UDPMessage message, TransactionResult transactionResult) {
-        String transactionResultString;
-
+    /**
+     * Finish a transaction whose decision the write-behind applied
+     * The log keeps the decision as not done, which only applies it once more if we crash before the context is deleted
+     * @param transactionId the ID of the transaction
+     */
+    private void decisionApplied(UUID transactionId) {
         try {
-            transactionResultString = mapper.writeValueAsString(transactionResult);
-        } catch (JsonProcessingException e) {
-            LOGGER.log(Level.SEVERE, "Could not parse TransactionResult to JSON", e);
-            throw new RuntimeException(e);
+            executor.execute(transactionId, () -> {
+                contexts.setDone(transactionId);
+                contexts.setEncoded(transactionId, null);
+                scheduleContextDeletion(transactionId);
+            });
+        } catch (RejectedExecutionException e) {
+            // The service is stopping, the context would be deleted with the process anyway
         }
+    }
+
+    private UDPMessage getSuccessMessage(UDPMessage message, TransactionResult transactionResult) {
+        // A TransactionResult only consists of its success flag, so both payloads are serialized once
+        String transactionResultString = transactionResult.isSuccess() ? successPayload : failurePayload;
 
         return new UDPMessage(message.getOperation(), message.getTransactionId(), CAR_PROIVDER, transactionResultString);
     }
 
     public UDPMessage sendResult(UDPMessage message) {
-        ParticipantContext participantContext = contexts.get(message.getTransactionId());
+        CompactContextStore.Entry entry = contexts.get(message.getTransactionId());
 
-        if (participantContext == null) {
-            // If the participantContext is null, the transaction is unknown to our service
+        if (entry == null) {
+            // If the record is null, the transaction is unknown to our service
             // This is either because we weren't available in the prepare phase or because
             // we already deleted the context
             return null;
         }
 
-        // Get the transaction state from the participantContext
-        TransactionState transactionState = participantContext.getTransactionState();
+        // Get the transaction state from the record
+        TransactionState transactionState = entry.state();
         UDPMessage udpMessage = null;
 
         if (transactionState == TransactionState.COMMIT) {
@@ -383,41 +880,128 @@ public class RentalService {
         return udpMessage;
     }
 
-    public void askParticipantForDecision(ParticipantContext participantContext) {
-        // Get the participant from the participantContext
-        Participant participant = participantContext.getParticipants().stream().filter(p -> p.getName().equals(CAR_PROIVDER)).findFirst().orElseThrow();
-
-        participant.resetCommitFuture();
-        CompletableFuture<Boolean> commitFuture = participant.getCommitFuture();
-        // After 10 seconds of no response, we assume the coordinator crashed
-        // and ask the other participants for the result of the transaction
-        commitFuture.orTimeout(10, TimeUnit.SECONDS).exceptionally(throwable -> {
-            LOGGER.log(Level.WARNING, "Coordinator crashed, asking other participants for result of transaction {0}", participantContext.getTransactionId());
-            for (Participant p : participantContext.getParticipants()) {
-                if (!p.getName().equals(CAR_PROIVDER)) {
-                    UDPMessage resultRequest = new UDPMessage(Operation.RESULT, participantContext.getTransactionId(), CAR_PROIVDER, null);
-                    DatagramPacket resultRequestPacket = new DatagramPacket(buffer, buffer.length, p.getUrl(), p.getPort());
-                    try {
-                        byte[] resultRequestBytes = mapper.writeValueAsBytes(resultRequest);
-                        resultRequestPacket.setData(resultRequestBytes);
-                        socket.send(resultRequestPacket);
-                    } catch (JsonProcessingException e) {
-                        LOGGER.log(Level.SEVERE, "Error while serializing message", e);
-                    } catch (IOException e) {
-                        LOGGER.log(Level.SEVERE, "Error while sending message", e);
-                    }
+    /**
+     * @param transactionId the ID of the transaction
+     * @return whether we voted yes for the transaction and don't know its decision yet
+     */
+    private boolean isInDoubt(UUID transactionId) {
+        CompactContextStore.Entry entry = contexts.get(transactionId);
+        return entry != null && entry.state() == TransactionState.PREPARE && inDoubtSince.containsKey(transactionId);
+    }
 
-                    // Trigger the askParticipantForDecision method to invoke another timeout
-                    // in case the participant also crashed
-                    askParticipantForDecision(participantContext);
-                }
-            }
+    /**
+     * Wait for the decision of a transaction we voted yes for
+     * If the coordinator doesn't send it in time, the other participants are asked for it until one of them answers
+     * @param transactionId the ID of the in-doubt transaction
+     */
+    public void askParticipantForDecision(UUID transactionId) {
+        termination.start(transactionId);
+    }
+
+    private static Participant getCarProvider(ParticipantContext participantContext) {
+        return participantContext.getParticipants().stream().filter(p -> p.getName().equals(CAR_PROIVDER)).findFirst().orElseThrow();
+    }
+
+    private static CompactContextStore.Entry toEntry(ParticipantContext participantContext) {
+        Participant participant = getCarProvider(participantContext);
+        Coordinator coordinator = participantContext.getCoordinator();
+        BookingContext bookingContext = participant.getBookingContext();
+
+        return new CompactContextStore.Entry(
+                participantContext.getTransactionId(),
+                participantContext.getTransactionState(),
+                participant.getVote(),
+                participant.isDone(),
+                bookingContext == null ? null : bookingContext.getBookingId(),
+                coordinator.getUrl(),
+                coordinator.getPort(),
+                coordinator.getName()
+        );
+    }
 
+    private byte[] encode(ParticipantContext participantContext) {
+        try {
+            return mapper.writeValueAsBytes(participantContext);
+        } catch (JsonProcessingException e) {
+            LOGGER.log(Level.SEVERE, "Could not parse ParticipantContext to JSON", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Replace the record of a transaction and write the context to the log, both from a single encoding of the context
+     * Once our part of the decision is done, the encoded context is dropped
+     * @param participantContext the current context of the transaction
+     */
+    private void storeContext(ParticipantContext participantContext) {
+        byte[] encoded = encode(participantContext);
+        CompactContextStore.Entry entry = toEntry(participantContext);
+        contexts.put(entry, entry.done() ? null : encoded);
+        logWriter.writeEncodedLog(participantContext.getTransactionId(), encoded);
+    }
+
+    /**
+     * Write the current state of a transaction to the log
+     * @param transactionId the ID of the transaction
+     */
+    private void logContext(UUID transactionId) {
+        ParticipantContext participantContext = rebuildContext(transactionId);
+        if (participantContext == null) {
+            LOGGER.log(Level.SEVERE, "No context found for transaction {0}", transactionId);
+            return;
+        }
+
+        storeContext(participantContext);
+    }
+
+    /**
+     * Rebuild the full context of a transaction from its encoded form and its current record
+     * @param transactionId the ID of the transaction
+     * @return the context or null if the transaction is unknown or its context was already dropped
+     */
+    private ParticipantContext rebuildContext(UUID transactionId) {
+        CompactContextStore.Entry entry = contexts.get(transactionId);
+        byte[] encoded = contexts.getEncoded(transactionId);
+        if (entry == null || encoded == null) {
             return null;
+        }
+
+        try {
+            ParticipantContext participantContext = mapper.readValue(encoded, ParticipantContext.class);
+            participantContext.setTransactionState(entry.state());
+            if (entry.done()) {
+                getCarProvider(participantContext).setDone();
+            }
+            return participantContext;
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error parsing ParticipantContext", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get a page of rentals matching the RentalQuery in the payload
+     * The page is streamed from the database and sent to the sender as a sequence
+     * of datagrams, each containing a numbered chunk of the page.
+     * Without a payload all rentals are returned in a single message as the JSON array that clients
+     * without a RentalQuery expect, it is not limited by the page size.
+     *
+     * @param parsedMessage the parsed UDPMessage
+     * @param sender the address of the sender
+     * @param senderPort the port of the sender
+     * @return a UDPMessage containing all rentals or null if the rentals were already streamed
+     */
+    public UDPMessage getRentals(UDPMessage parsedMessage, InetAddress sender, int senderPort) {
+        if (parsedMessage.getData() == null || parsedMessage.getData().isBlank()) {
+            return getRentals(parsedMessage);
+        }
+
+        rentalDAO.streamRentals(parsedMessage.getData(), chunk -> {
+            UDPMessage chunkMessage = new UDPMessage(parsedMessage.getOperation(), parsedMessage.getTransactionId(), CAR_PROIVDER, chunk);
+            sendMessage(chunkMessage, sender, senderPort, parsedMessage.getSender());
         });
 
-        // Update the context in the log
-        logWriter.writeLog(participantContext.getTransactionId(), participantContext);
+        return null;
     }
 
     /**
@@ -434,16 +1018,20 @@ public class RentalService {
     }
 
     /**
-     * Get all available rentals from the database
+     * Get all available rentals and send them to the sender
+     * The response is usually already encoded, so it is written into the datagram as it is.
      *
      * @param parsedMessage the parsed UDPMessage
-     * @return a UDPMessage containing all available rentals
+     * @param sender the address of the sender
+     * @param senderPort the port of the sender
+     * @return null, the response was already sent
      */
-    public UDPMessage getAvailableRentals(UDPMessage parsedMessage) {
-        String availableRentalsString = rentalDAO.getAvailableCars(parsedMessage.getData());
+    public UDPMessage getAvailableRentals(UDPMessage parsedMessage, InetAddress sender, int senderPort) {
+        EncodedPayload availableRentals = rentalDAO.getAvailableCarsPayload(parsedMessage.getData());
+        UDPMessage response = new UDPMessage(parsedMessage.getOperation(), parsedMessage.getTransactionId(), CAR_PROIVDER, null);
+        sendMessage(response, availableRentals, sender, senderPort, parsedMessage.getSender());
 
-        // Create a new UDPMessage with the availableRentalsString as payload
-        return new UDPMessage(parsedMessage.getOperation(), parsedMessage.getTransactionId(), CAR_PROIVDER, availableRentalsString);
+        return null;
     }
 
 }
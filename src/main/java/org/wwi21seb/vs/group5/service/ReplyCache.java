@@ -0,0 +1,118 @@
+package org.wwi21seb.vs.group5.service;
+
+import org.wwi21seb.vs.group5.UDP.Operation;
+import org.wwi21seb.vs.group5.metrics.MetricsRegistry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The replies to PREPARE, COMMIT and ABORT messages by transaction, so a message the coordinator
+ * retransmits because our reply got lost is answered again without touching the database or the log.
+ * A reply to these messages is nothing but a TransactionResult, so the replies of a transaction
+ * are packed into two bits per operation: no reply yet, success or failure.
+ * The entries are removed together with the context of the transaction, and the oldest ones are
+ * evicted once the cache is full. A message whose reply was evicted is handled again, which is safe
+ * but slower.
+ */
+public class ReplyCache {
+
+    private static final int SUCCESS = 1;
+    private static final int FAILURE = 2;
+
+    private final int maxSize;
+    private final LinkedHashMap<UUID, Byte> replies;
+    private final LongAdder evictions;
+
+    /**
+     * @param maxSize the maximum number of transactions to keep the replies of
+     */
+    public ReplyCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.replies = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Byte> eldest) {
+                if (size() > ReplyCache.this.maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.evictions = metrics.counter("rental_reply_cache_evictions_total", "Transactions whose replies were evicted from the full cache");
+        metrics.gauge("rental_reply_cache_size", "Transactions whose replies are cached", this::size);
+    }
+
+    /**
+     * Get the reply that was sent for a message
+     * @param transactionId the ID of the transaction
+     * @param operation the operation of the message
+     * @return the success flag of the reply or null if there is none, always null for other operations
+     */
+    public Boolean get(UUID transactionId, Operation operation) {
+        int shift = shift(operation);
+        if (shift < 0) {
+            return null;
+        }
+
+        Byte packed;
+        synchronized (replies) {
+            packed = replies.get(transactionId);
+        }
+
+        if (packed == null) {
+            return null;
+        }
+
+        int reply = (packed >> shift) & 3;
+        return reply == 0 ? null : reply == SUCCESS;
+    }
+
+    /**
+     * Remember the reply to a message, replies to other operations are ignored
+     * @param transactionId the ID of the transaction
+     * @param operation the operation of the message
+     * @param success the success flag of the reply
+     */
+    public void put(UUID transactionId, Operation operation, boolean success) {
+        int shift = shift(operation);
+        if (shift < 0) {
+            return;
+        }
+
+        byte reply = (byte) ((success ? SUCCESS : FAILURE) << shift);
+        synchronized (replies) {
+            replies.merge(transactionId, reply, (previous, added) -> (byte) (previous & ~(3 << shift) | added));
+        }
+    }
+
+    /**
+     * Forget the replies of a transaction, e.g. once its context was deleted
+     * @param transactionId the ID of the transaction
+     */
+    public void remove(UUID transactionId) {
+        synchronized (replies) {
+            replies.remove(transactionId);
+        }
+    }
+
+    public int size() {
+        synchronized (replies) {
+            return replies.size();
+        }
+    }
+
+    private static int shift(Operation operation) {
+        return switch (operation) {
+            case PREPARE -> 0;
+            case COMMIT -> 2;
+            case ABORT -> 4;
+            default -> -1;
+        };
+    }
+
+}
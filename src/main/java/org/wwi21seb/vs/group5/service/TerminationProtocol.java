@@ -0,0 +1,153 @@
+package org.wwi21seb.vs.group5.service;
+
+import org.wwi21seb.vs.group5.Logger.LoggerFactory;
+import org.wwi21seb.vs.group5.TwoPhaseCommit.Participant;
+import org.wwi21seb.vs.group5.TwoPhaseCommit.ParticipantContext;
+import org.wwi21seb.vs.group5.UDP.Operation;
+import org.wwi21seb.vs.group5.UDP.UDPMessage;
+import org.wwi21seb.vs.group5.metrics.MetricsRegistry;
+
+import java.net.InetAddress;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cooperative termination of the transactions we voted yes for.
+ * If the coordinator doesn't send a decision in time, all other participants are asked for the result
+ * of the transaction at once. A participant that knows it answers with a COMMIT or ABORT message,
+ * which arrives like any other message and resolves the transaction with the first answer, see {@link #stop(UUID)}.
+ * Until then the participants are asked again with an exponential backoff and jitter, so the requests
+ * of many transactions that got in doubt together, e.g. after a crash of the coordinator, spread out.
+ * Every transaction has a single DECISION_TIMEOUT timer that carries the number of the next round,
+ * the timer only keeps the transaction ID and the context is looked up when a round is due.
+ * A round that was already due when the decision arrived finds the transaction decided and ends the protocol.
+ */
+public class TerminationProtocol {
+
+    /**
+     * Sends a message of the protocol
+     */
+    @FunctionalInterface
+    public interface MessageSender {
+
+        void send(UDPMessage message, InetAddress recipient, int port, String recipientName);
+
+    }
+
+    private static final Logger LOGGER = LoggerFactory.setupLogger(TerminationProtocol.class.getName());
+
+    private final TransactionTimers timers;
+    private final MessageSender sender;
+    private final Function<UUID, ParticipantContext> contexts;
+    private final Predicate<UUID> inDoubt;
+    private final String name;
+    private final long decisionTimeoutNanos;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+
+    private final LongAdder rounds;
+    private final LongAdder requests;
+
+    /**
+     * @param timers the timers of the service
+     * @param sender sends the RESULT requests
+     * @param contexts looks up the context of a transaction, null if it is gone
+     * @param inDoubt whether a transaction is still waiting for its decision
+     * @param name the name of this participant
+     * @param decisionTimeout the time to wait for the coordinator before asking the other participants
+     * @param initialBackoff the time to wait for an answer after the first round
+     * @param maxBackoff the maximum time between two rounds
+     * @param unit the unit of the times
+     */
+    public TerminationProtocol(TransactionTimers timers, MessageSender sender, Function<UUID, ParticipantContext> contexts, Predicate<UUID> inDoubt, String name, long decisionTimeout, long initialBackoff, long maxBackoff, TimeUnit unit) {
+        this.timers = timers;
+        this.sender = sender;
+        this.contexts = contexts;
+        this.inDoubt = inDoubt;
+        this.name = name;
+        this.decisionTimeoutNanos = unit.toNanos(decisionTimeout);
+        this.initialBackoffNanos = Math.max(1, unit.toNanos(initialBackoff));
+        this.maxBackoffNanos = Math.max(initialBackoffNanos, unit.toNanos(maxBackoff));
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.rounds = metrics.counter("rental_termination_rounds_total", "Rounds of asking the other participants for the decision of a transaction");
+        this.requests = metrics.counter("rental_termination_requests_total", "RESULT requests sent to other participants");
+    }
+
+    /**
+     * Wait for the decision of a transaction, replaces the timer if the transaction is already waiting
+     * @param transactionId the ID of the in-doubt transaction
+     */
+    public void start(UUID transactionId) {
+        schedule(transactionId, decisionTimeoutNanos, 0);
+    }
+
+    /**
+     * Stop waiting for the decision of a transaction, e.g. once it arrived
+     * @param transactionId the ID of the transaction
+     */
+    public void stop(UUID transactionId) {
+        timers.cancel(transactionId, TransactionTimers.Timer.DECISION_TIMEOUT);
+    }
+
+    private void schedule(UUID transactionId, long delayNanos, int round) {
+        timers.schedule(transactionId, TransactionTimers.Timer.DECISION_TIMEOUT, delayNanos, TimeUnit.NANOSECONDS,
+                () -> askForDecision(transactionId, round));
+    }
+
+    private void askForDecision(UUID transactionId, int round) {
+        if (!inDoubt.test(transactionId)) {
+            return;
+        }
+
+        ParticipantContext participantContext = contexts.apply(transactionId);
+        if (participantContext == null) {
+            return;
+        }
+
+        LOGGER.log(Level.WARNING, "No decision for transaction {0}, asking the other participants (round {1})", new Object[]{transactionId, round + 1});
+
+        UDPMessage resultRequest = new UDPMessage(Operation.RESULT, transactionId, name, null);
+        int asked = 0;
+
+        for (Participant participant : participantContext.getParticipants()) {
+            if (!participant.getName().equals(name)) {
+                sender.send(resultRequest, participant.getUrl(), participant.getPort(), participant.getName());
+                asked++;
+            }
+        }
+
+        if (asked == 0) {
+            // Only the coordinator knows the decision, it sends it again once it has recovered
+            LOGGER.log(Level.WARNING, "Transaction {0} has no other participants to ask", transactionId);
+            return;
+        }
+
+        rounds.increment();
+        requests.add(asked);
+
+        // The decision may have arrived while asking, then it has already cancelled the timer
+        if (inDoubt.test(transactionId)) {
+            schedule(transactionId, backoff(round), round + 1);
+        }
+    }
+
+    /**
+     * The time to wait after a round, doubling with every round up to the maximum
+     * Equal jitter: at least half of the backoff is waited, the rest is random
+     */
+    private long backoff(int round) {
+        // Stop doubling once the maximum is reached, so the shift can't overflow
+        int doublings = Math.min(round, Long.numberOfLeadingZeros(initialBackoffNanos) - 1);
+        long ceiling = Math.min(maxBackoffNanos, initialBackoffNanos << doublings);
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    }
+
+}
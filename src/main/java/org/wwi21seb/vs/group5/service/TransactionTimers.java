@@ -0,0 +1,308 @@
+package org.wwi21seb.vs.group5.service;
+
+import org.wwi21seb.vs.group5.Logger.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Owns all per-transaction timers of the service in a hierarchical timing wheel.
+ * Every transaction has at most one timer of each {@link Timer} type, scheduling
+ * a timer again replaces or keeps the existing one instead of adding another.
+ * Scheduling and cancelling are O(1), timers that expire in the same tick are
+ * handed to the executor as one batch, ordered with the messages of their transaction.
+ */
+public class TransactionTimers {
+
+    private static final Logger LOGGER = LoggerFactory.setupLogger(TransactionTimers.class.getName());
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+
+    public enum Timer {
+        /** Removes the context and its log entry once the transaction is finished */
+        CONTEXT_DELETION,
+        /** Fires if the coordinator didn't send a decision for a transaction we voted yes for */
+        DECISION_TIMEOUT
+    }
+
+    private final OrderedExecutor executor;
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+
+    // Bucket heads of every level, each bucket is a circular doubly linked list
+    private final TimerEntry[][] wheels = new TimerEntry[LEVELS][WHEEL_SIZE];
+    private final Map<UUID, TimerEntry[]> timersByTransaction = new HashMap<>();
+    private final Object lock = new Object();
+    private long currentTick = 0;
+    private int size = 0;
+
+    private final Thread ticker;
+    private volatile boolean running = true;
+
+    /**
+     * Create the timers and start the ticker thread
+     * @param executor the executor the expired timers are run on
+     * @param tick the resolution of the timers
+     * @param unit the unit of the tick
+     */
+    public TransactionTimers(OrderedExecutor executor, long tick, TimeUnit unit) {
+        this.executor = executor;
+        this.tickNanos = unit.toNanos(tick);
+
+        for (TimerEntry[] wheel : wheels) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheel[i] = TimerEntry.sentinel();
+            }
+        }
+
+        this.ticker = new Thread(this::tickLoop, "transaction-timers");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    /**
+     * Schedule a timer for a transaction, replacing a pending timer of the same type
+     * @param transactionId the transaction the timer belongs to
+     * @param timer the type of the timer
+     * @param delay the delay after which the task runs
+     * @param unit the unit of the delay
+     * @param task the task to run
+     */
+    public void schedule(UUID transactionId, Timer timer, long delay, TimeUnit unit, Runnable task) {
+        synchronized (lock) {
+            unlink(transactionId, timer);
+            add(transactionId, timer, delay, unit, task);
+        }
+    }
+
+    /**
+     * Schedule a timer for a transaction unless a timer of the same type is already pending
+     * @param transactionId the transaction the timer belongs to
+     * @param timer the type of the timer
+     * @param delay the delay after which the task runs
+     * @param unit the unit of the delay
+     * @param task the task to run
+     * @return true if the timer was scheduled, false if there already was one
+     */
+    public boolean scheduleIfAbsent(UUID transactionId, Timer timer, long delay, TimeUnit unit, Runnable task) {
+        synchronized (lock) {
+            TimerEntry[] entries = timersByTransaction.get(transactionId);
+            if (entries != null && entries[timer.ordinal()] != null) {
+                return false;
+            }
+
+            add(transactionId, timer, delay, unit, task);
+            return true;
+        }
+    }
+
+    /**
+     * Cancel a pending timer of a transaction
+     * @param transactionId the transaction the timer belongs to
+     * @param timer the type of the timer
+     * @return true if a pending timer was cancelled
+     */
+    public boolean cancel(UUID transactionId, Timer timer) {
+        synchronized (lock) {
+            return unlink(transactionId, timer);
+        }
+    }
+
+    /**
+     * Cancel all pending timers of a transaction
+     * @param transactionId the transaction the timers belong to
+     */
+    public void cancelAll(UUID transactionId) {
+        synchronized (lock) {
+            for (Timer timer : Timer.values()) {
+                unlink(transactionId, timer);
+            }
+        }
+    }
+
+    /**
+     * @return the number of pending timers
+     */
+    public int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    /**
+     * Stop the ticker thread, pending timers are dropped
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(ticker);
+    }
+
+    private void add(UUID transactionId, Timer timer, long delay, TimeUnit unit, Runnable task) {
+        // Measured from the current time rather than the current tick, which may lag behind,
+        // and rounded up, so a timer never fires early
+        long deadlineNanos = System.nanoTime() - startNanos + unit.toNanos(delay);
+        long deadlineTick = Math.max(currentTick + 1, (deadlineNanos + tickNanos - 1) / tickNanos);
+        TimerEntry entry = new TimerEntry(transactionId, timer, deadlineTick, task);
+
+        timersByTransaction.computeIfAbsent(transactionId, id -> new TimerEntry[Timer.values().length])[timer.ordinal()] = entry;
+        insert(entry);
+        size++;
+    }
+
+    private boolean unlink(UUID transactionId, Timer timer) {
+        TimerEntry[] entries = timersByTransaction.get(transactionId);
+        if (entries == null || entries[timer.ordinal()] == null) {
+            return false;
+        }
+
+        entries[timer.ordinal()].remove();
+        entries[timer.ordinal()] = null;
+        size--;
+        forgetIfEmpty(transactionId, entries);
+        return true;
+    }
+
+    private void forgetIfEmpty(UUID transactionId, TimerEntry[] entries) {
+        for (TimerEntry entry : entries) {
+            if (entry != null) {
+                return;
+            }
+        }
+
+        timersByTransaction.remove(transactionId);
+    }
+
+    /**
+     * Put an entry into the lowest level whose range covers its deadline
+     */
+    private void insert(TimerEntry entry) {
+        long delta = entry.deadlineTick - currentTick;
+        int level = 0;
+
+        while (level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+
+        // Timers beyond the range of the highest level wait in its last reachable slot and are re-inserted
+        long tick = Math.min(entry.deadlineTick, currentTick + (1L << (WHEEL_BITS * LEVELS)) - 1);
+        int slot = (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        wheels[level][slot].append(entry);
+    }
+
+    private void tickLoop() {
+        List<TimerEntry> expired = new ArrayList<>();
+
+        while (running) {
+            long now = System.nanoTime();
+            long nextTickNanos;
+
+            synchronized (lock) {
+                // Catch up on all ticks that passed, e.g. after a long GC pause
+                long targetTick = (now - startNanos) / tickNanos;
+                while (currentTick < targetTick) {
+                    advance(expired);
+                }
+                nextTickNanos = startNanos + (currentTick + 1) * tickNanos;
+            }
+
+            for (TimerEntry entry : expired) {
+                executor.execute(entry.transactionId, () -> run(entry));
+            }
+            expired.clear();
+
+            LockSupport.parkNanos(nextTickNanos - System.nanoTime());
+        }
+    }
+
+    private void advance(List<TimerEntry> expired) {
+        currentTick++;
+
+        // Move the entries of the higher levels down when their slot comes up, highest level first
+        for (int level = LEVELS - 1; level > 0; level--) {
+            long mask = (1L << (WHEEL_BITS * level)) - 1;
+            if ((currentTick & mask) == 0) {
+                int slot = (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+                for (TimerEntry entry : wheels[level][slot].drain()) {
+                    insert(entry);
+                }
+            }
+        }
+
+        for (TimerEntry entry : wheels[0][(int) (currentTick & WHEEL_MASK)].drain()) {
+            if (entry.deadlineTick <= currentTick) {
+                TimerEntry[] entries = timersByTransaction.get(entry.transactionId);
+                entries[entry.timer.ordinal()] = null;
+                size--;
+                forgetIfEmpty(entry.transactionId, entries);
+                expired.add(entry);
+            } else {
+                insert(entry);
+            }
+        }
+    }
+
+    private void run(TimerEntry entry) {
+        try {
+            entry.task.run();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Error in " + entry.timer + " timer of transaction " + entry.transactionId, e);
+        }
+    }
+
+    private static final class TimerEntry {
+
+        private final UUID transactionId;
+        private final Timer timer;
+        private final long deadlineTick;
+        private final Runnable task;
+        private TimerEntry previous = this;
+        private TimerEntry next = this;
+
+        private TimerEntry(UUID transactionId, Timer timer, long deadlineTick, Runnable task) {
+            this.transactionId = transactionId;
+            this.timer = timer;
+            this.deadlineTick = deadlineTick;
+            this.task = task;
+        }
+
+        private static TimerEntry sentinel() {
+            return new TimerEntry(null, null, -1, null);
+        }
+
+        private void append(TimerEntry entry) {
+            entry.previous = previous;
+            entry.next = this;
+            previous.next = entry;
+            previous = entry;
+        }
+
+        private void remove() {
+            previous.next = next;
+            next.previous = previous;
+            previous = this;
+            next = this;
+        }
+
+        private List<TimerEntry> drain() {
+            List<TimerEntry> entries = new ArrayList<>();
+            while (next != this) {
+                TimerEntry entry = next;
+                entry.remove();
+                entries.add(entry);
+            }
+            return entries;
+        }
+
+    }
+
+}
@@ -0,0 +1,41 @@
+-- The schema as it was before migrations, databases created from the old schema.sql already have it
+CREATE TABLE IF NOT EXISTS cars
+(
+    car_id       uuid NOT NULL,
+    model        varchar(50),
+    manufacturer varchar(50),
+    capacity     integer,
+    price_per_day  numeric(10, 2)
+);
+
+CREATE TABLE IF NOT EXISTS rentals
+(
+    rental_id  uuid NOT NULL,
+    car_id     uuid NOT NULL,
+    start_date date,
+    end_date   date,
+    total_price numeric(10, 2)
+);
+
+DO
+$$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conrelid = 'cars'::regclass AND contype = 'p') THEN
+        ALTER TABLE cars
+            ADD CONSTRAINT car_id
+                PRIMARY KEY (car_id);
+    END IF;
+
+    IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conrelid = 'rentals'::regclass AND contype = 'p') THEN
+        ALTER TABLE rentals
+            ADD CONSTRAINT rental_id
+                PRIMARY KEY (rental_id);
+    END IF;
+
+    IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conrelid = 'rentals'::regclass AND conname = 'fk_rentals_cars') THEN
+        ALTER TABLE rentals
+            ADD CONSTRAINT fk_rentals_cars
+                FOREIGN KEY (car_id) REFERENCES cars (car_id);
+    END IF;
+END;
+$$;
@@ -0,0 +1,16 @@
+-- A reservation stays unconfirmed until the coordinator commits the transaction
+ALTER TABLE rentals
+    ADD COLUMN IF NOT EXISTS is_confirmed boolean NOT NULL DEFAULT false;
+
+-- The rentals of a booking of several cars share the booking ID, a single car booking has the ID of its rental
+ALTER TABLE rentals
+    ADD COLUMN IF NOT EXISTS booking_id uuid;
+
+UPDATE rentals
+SET booking_id = rental_id
+WHERE booking_id IS NULL;
+
+ALTER TABLE rentals
+    ALTER COLUMN booking_id SET NOT NULL;
+
+CREATE INDEX IF NOT EXISTS rentals_booking_id ON rentals (booking_id);
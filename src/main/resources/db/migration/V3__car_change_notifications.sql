@@ -0,0 +1,37 @@
+-- Announce changes of the car master data, the service drops the changed car from its cache
+CREATE OR REPLACE FUNCTION notify_cars_changed() RETURNS trigger AS
+$$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        PERFORM pg_notify('cars_changed', OLD.car_id::text);
+    ELSE
+        PERFORM pg_notify('cars_changed', NEW.car_id::text);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS cars_changed ON cars;
+
+CREATE TRIGGER cars_changed
+    AFTER INSERT OR UPDATE OR DELETE
+    ON cars
+    FOR EACH ROW
+EXECUTE FUNCTION notify_cars_changed();
+
+-- A truncate has no rows, the empty payload tells the service that every car may have changed
+CREATE OR REPLACE FUNCTION notify_cars_truncated() RETURNS trigger AS
+$$
+BEGIN
+    PERFORM pg_notify('cars_changed', '');
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS cars_truncated ON cars;
+
+CREATE TRIGGER cars_truncated
+    AFTER TRUNCATE
+    ON cars
+    FOR EACH STATEMENT
+EXECUTE FUNCTION notify_cars_truncated();
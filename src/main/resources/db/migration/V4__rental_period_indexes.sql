@@ -0,0 +1,67 @@
+CREATE EXTENSION IF NOT EXISTS btree_gist;
+
+-- V1 allows rentals without dates and overlapping rentals of the same car, both would fail the period column
+-- or the exclusion constraint below with an error that names no rental. They are listed instead.
+-- To fix them, give every listed rental a valid date range, or delete it or move it to another car.
+-- The failed migration leaves no trace and runs again on the next start.
+DO
+$$
+DECLARE
+    offending text;
+BEGIN
+    SELECT string_agg(rental_id::text, ', ' ORDER BY rental_id)
+    INTO offending
+    FROM rentals
+    WHERE start_date IS NULL OR end_date IS NULL OR end_date < start_date;
+
+    IF offending IS NOT NULL THEN
+        RAISE EXCEPTION 'Rentals without a valid date range: %', offending
+            USING HINT = 'Set start_date and end_date of these rentals or delete them, then restart the service';
+    END IF;
+
+    -- Every rental that starts before an earlier rental of the same car has ended
+    SELECT string_agg(rental_id::text, ', ' ORDER BY rental_id)
+    INTO offending
+    FROM (SELECT rental_id,
+                 start_date,
+                 max(end_date) OVER (PARTITION BY car_id ORDER BY start_date, rental_id
+                     ROWS BETWEEN UNBOUNDED PRECEDING AND 1 PRECEDING) AS booked_until
+          FROM rentals) r
+    WHERE start_date <= booked_until;
+
+    IF offending IS NOT NULL THEN
+        RAISE EXCEPTION 'Rentals overlapping an earlier rental of the same car: %', offending
+            USING HINT = 'Change the dates of these rentals, move them to another car or delete them, then restart the service';
+    END IF;
+END;
+$$;
+
+ALTER TABLE rentals
+    ALTER COLUMN start_date SET NOT NULL,
+    ALTER COLUMN end_date SET NOT NULL;
+
+-- The inclusive date range of a rental, kept by the database so the overlap queries can use a GiST index
+ALTER TABLE rentals
+    ADD COLUMN IF NOT EXISTS period daterange
+        GENERATED ALWAYS AS (daterange(start_date, end_date, '[]')) STORED;
+
+-- A car can't be rented twice on the same day, the constraint replaces the one on the expression
+-- and its index answers the overlap check of a single car
+ALTER TABLE rentals
+    DROP CONSTRAINT IF EXISTS rentals_no_overlap;
+
+ALTER TABLE rentals
+    ADD CONSTRAINT rentals_no_overlap
+        EXCLUDE USING gist (car_id WITH =, period WITH &&);
+
+-- Rentals in a date range across all cars, e.g. for GET_BOOKINGS
+CREATE INDEX IF NOT EXISTS rentals_period ON rentals USING gist (period);
+
+-- The rentals of a car, e.g. when the foreign key is checked on deleting a car
+CREATE INDEX IF NOT EXISTS rentals_car_id ON rentals (car_id);
+
+-- Availability searches only consider cars with enough seats
+CREATE INDEX IF NOT EXISTS cars_capacity ON cars (capacity);
+
+ANALYZE cars;
+ANALYZE rentals;